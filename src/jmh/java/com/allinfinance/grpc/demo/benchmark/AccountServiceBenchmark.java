@@ -0,0 +1,231 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import io.grpc.stub.StreamObserver;
+import com.allinfinance.grpc.demo.AccountProto;
+import com.allinfinance.grpc.demo.AccountServiceGrpc;
+import com.allinfinance.grpc.demo.account.journal.AccountJournal;
+import com.allinfinance.grpc.demo.account.service.AccountService;
+import com.allinfinance.grpc.demo.account.service.AccountStore;
+import com.allinfinance.grpc.demo.support.NamedThreadFactory;
+
+/**
+ * {@link AccountService} 四种 RPC 的基准测试
+ *
+ * <p>同时统计吞吐量与延迟分布（{@link Mode#SampleTime} 输出 p50/p90/p99/p99.9），
+ * 分配速率使用 {@code -prof gc} 查看。</p>
+ *
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class AccountServiceBenchmark {
+
+    /**
+     * 预置账户数
+     */
+    private static final int ACCOUNTS = 100_000;
+
+    /**
+     * 每个流式调用发送的消息数
+     */
+    private static final int STREAM_MESSAGES = 100;
+
+    @Param({BenchmarkServer.IN_PROCESS, BenchmarkServer.NETTY})
+    public String transport;
+
+    /**
+     * 预写日志：none 不持久化，其余为 {@link AccountJournal.Durability} 的名称
+     */
+    @Param({"none", "STREAM"})
+    public String journal;
+
+    private BenchmarkServer server;
+
+    private AccountJournal accountJournal;
+
+    private Path journalDir;
+
+    private ExecutorService executor;
+
+    private AccountServiceGrpc.AccountServiceBlockingStub blockingStub;
+
+    private AccountServiceGrpc.AccountServiceStub asyncStub;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        AccountStore store = new AccountStore();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            store.add("user#" + i, 6666600L);
+        }
+        if (!"none".equals(this.journal)) {
+            this.journalDir = Files.createTempDirectory("account-journal");
+            this.accountJournal = new AccountJournal(this.journalDir, AccountJournal.Durability.valueOf(this.journal));
+        }
+        this.executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                new NamedThreadFactory("account-query"));
+        AccountService service = new AccountService(store, this.accountJournal, this.executor,
+                AccountService.DEFAULT_MAX_IN_FLIGHT);
+        this.server = BenchmarkServer.start(this.transport, service);
+        this.blockingStub = AccountServiceGrpc.newBlockingStub(this.server.channel());
+        this.asyncStub = AccountServiceGrpc.newStub(this.server.channel());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        this.server.stop();
+        this.executor.shutdownNow();
+        if (this.accountJournal != null) {
+            this.accountJournal.close();
+            try (Stream<Path> files = Files.list(this.journalDir)) {
+                files.forEach(file -> file.toFile().delete());
+            }
+            Files.deleteIfExists(this.journalDir);
+        }
+    }
+
+    @Benchmark
+    public AccountProto.QueryResponse query() {
+        return this.blockingStub.query(randomQuery());
+    }
+
+    /**
+     * 前缀 user#1 加两位随机数，每次匹配 11 个账户
+     */
+    @Benchmark
+    public void queryServerStreaming(Blackhole bh) {
+        AccountProto.QueryRequest request = AccountProto.QueryRequest.newBuilder()
+                .setSerialNo("serial#stream")
+                .setUserId("user#1" + (10 + ThreadLocalRandom.current().nextInt(90)))
+                .build();
+        Iterator<AccountProto.QueryResponse> it = this.blockingStub.queryServerStreaming(request);
+        while (it.hasNext()) {
+            bh.consume(it.next());
+        }
+    }
+
+    @Benchmark
+    public AccountProto.AddResponse addClientStreaming() throws InterruptedException {
+        LatchObserver<AccountProto.AddResponse> observer = new LatchObserver<>();
+        StreamObserver<AccountProto.AddRequest> requests = this.asyncStub.addClientStreaming(observer);
+        AccountProto.AddRequest.Builder builder = AccountProto.AddRequest.newBuilder();
+        for (int i = 0; i < STREAM_MESSAGES; i++) {
+            requests.onNext(builder.setSerialNo("serial#" + i)
+                    .setUserId("user#" + ThreadLocalRandom.current().nextInt(ACCOUNTS))
+                    .setUserName("User")
+                    .setAmountMinor(100L)
+                    .setAmountScale(2)
+                    .build());
+        }
+        requests.onCompleted();
+        return observer.await();
+    }
+
+    @Benchmark
+    public AccountProto.QueryResponse queryBidiStreaming() throws InterruptedException {
+        LatchObserver<AccountProto.QueryResponse> observer = new LatchObserver<>();
+        StreamObserver<AccountProto.QueryRequest> requests = this.asyncStub.queryBidiStreaming(observer);
+        for (int i = 0; i < STREAM_MESSAGES; i++) {
+            requests.onNext(randomQuery());
+        }
+        requests.onCompleted();
+        return observer.await();
+    }
+
+    private static AccountProto.QueryRequest randomQuery() {
+        return AccountProto.QueryRequest.newBuilder()
+                .setSerialNo("serial#query")
+                .setUserId("user#" + ThreadLocalRandom.current().nextInt(ACCOUNTS))
+                .build();
+    }
+
+    /**
+     * 等待流结束，返回最后一个响应
+     */
+    static final class LatchObserver<T> implements StreamObserver<T> {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private volatile T last;
+
+        private volatile Throwable error;
+
+        @Override
+        public void onNext(T value) {
+            this.last = value;
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            this.error = t;
+            this.done.countDown();
+        }
+
+        @Override
+        public void onCompleted() {
+            this.done.countDown();
+        }
+
+        T await() throws InterruptedException {
+            this.done.await();
+            if (this.error != null) {
+                throw new IllegalStateException(this.error);
+            }
+            return this.last;
+        }
+    }
+
+    /**
+     * 在 IDE 中直接运行，附带 GC 分配速率统计
+     */
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(AccountServiceBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.benchmark;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.BindableService;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.NettyServerBuilder;
+
+/**
+ * 基准测试使用的服务端与通道
+ *
+ */
+final class BenchmarkServer {
+
+    /**
+     * 传输方式：进程内（不经过网络与序列化以外的开销）、Netty 回环地址
+     */
+    static final String IN_PROCESS = "inprocess";
+
+    static final String NETTY = "netty";
+
+    private final Server server;
+
+    private final ManagedChannel channel;
+
+    private BenchmarkServer(Server server, ManagedChannel channel) {
+        this.server = server;
+        this.channel = channel;
+    }
+
+    /**
+     * 启动服务端并创建通道
+     *
+     * @param transport {@link #IN_PROCESS} 或 {@link #NETTY}
+     * @param services 服务
+     * @return 服务端
+     * @throws IOException 启动失败
+     */
+    static BenchmarkServer start(String transport, BindableService... services) throws IOException {
+        if (IN_PROCESS.equals(transport)) {
+            String name = "benchmark-" + UUID.randomUUID();
+            InProcessServerBuilder builder = InProcessServerBuilder.forName(name);
+            for (BindableService service : services) {
+                builder.addService(service);
+            }
+            Server server = builder.build().start();
+            return new BenchmarkServer(server, InProcessChannelBuilder.forName(name).build());
+        }
+        if (NETTY.equals(transport)) {
+            NettyServerBuilder builder = NettyServerBuilder.forAddress(new InetSocketAddress("localhost", 0));
+            for (BindableService service : services) {
+                builder.addService(service);
+            }
+            Server server = builder.build().start();
+            ManagedChannel channel = NettyChannelBuilder.forAddress("localhost", server.getPort())
+                    .usePlaintext()
+                    .build();
+            return new BenchmarkServer(server, channel);
+        }
+        throw new IllegalArgumentException("Unknown transport: " + transport);
+    }
+
+    ManagedChannel channel() {
+        return this.channel;
+    }
+
+    void stop() throws InterruptedException {
+        this.channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        this.server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+}
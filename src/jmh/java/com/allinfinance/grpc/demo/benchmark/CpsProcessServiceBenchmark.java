@@ -0,0 +1,116 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.allinfinance.grpc.demo.CpsProcessProto;
+import com.allinfinance.grpc.demo.CpsProcessServiceGrpc;
+import com.allinfinance.grpc.demo.YakMessageProto;
+import com.allinfinance.grpc.demo.yak.CpsProcessService;
+import com.allinfinance.grpc.demo.yak.YakMessageBridge;
+import com.allinfinance.grpc.demo.yak.iso8583.Iso8583Encoder;
+
+/**
+ * {@link CpsProcessService#authorize} 的基准测试
+ *
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class CpsProcessServiceBenchmark {
+
+    @Param({BenchmarkServer.IN_PROCESS, BenchmarkServer.NETTY})
+    public String transport;
+
+    /**
+     * 报文格式：legacy（YakMessage）、compact（CompactYakMessage）
+     */
+    @Param({"legacy", "compact"})
+    public String layout;
+
+    private BenchmarkServer server;
+
+    private CpsProcessServiceGrpc.CpsProcessServiceBlockingStub blockingStub;
+
+    private CpsProcessProto.YakMessageRequest request;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.server = BenchmarkServer.start(this.transport, new CpsProcessService());
+        this.blockingStub = CpsProcessServiceGrpc.newBlockingStub(this.server.channel());
+        YakMessageProto.YakMessage yakMessage = YakMessageProto.YakMessage.newBuilder()
+                .setSrcChannelId("benchmark")
+                .setIsRequest(true)
+                .setIsInComing(true)
+                .setRawMessageBytes(new Iso8583Encoder()
+                        .mti(100)
+                        .set(2, "6222021234567890123")
+                        .setNumber(3, 0)
+                        .setNumber(4, 10000)
+                        .setNumber(11, 1)
+                        .set(41, "BENCH001")
+                        .set(42, "BENCHMARK000001")
+                        .toByteString())
+                .build();
+        CpsProcessProto.YakMessageRequest.Builder builder = CpsProcessProto.YakMessageRequest.newBuilder();
+        if ("compact".equals(this.layout)) {
+            builder.setCompactMessage(YakMessageBridge.toCompact(yakMessage));
+        } else {
+            builder.setYakMessage(yakMessage);
+        }
+        this.request = builder.build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        this.server.stop();
+    }
+
+    @Benchmark
+    public CpsProcessProto.YakMessageResponse authorize() {
+        return this.blockingStub.authorize(this.request);
+    }
+
+    /**
+     * 在 IDE 中直接运行，附带 GC 分配速率统计
+     */
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(CpsProcessServiceBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+
+}
@@ -0,0 +1,15 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+/**
+ * JMH 基准测试
+ *
+ * <p>构建：{@code mvn -P jmh package}</p>
+ * <p>运行：{@code java -jar target/benchmarks.jar -prof gc}</p>
+ *
+ */
+package com.allinfinance.grpc.demo.benchmark;
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.accesslog;
+
+import io.grpc.Status;
+
+/**
+ * 访问日志事件（环形缓冲区中的可复用槽位）
+ *
+ * <p>只保存引用与基本类型，不做任何格式化；格式化在后台写线程中进行。</p>
+ *
+ */
+public final class AccessLogEvent {
+
+    /**
+     * 事件类型
+     */
+    public enum Type {
+        /**
+         * 收到请求消息
+         */
+        REQUEST,
+        /**
+         * 发送响应消息
+         */
+        RESPONSE,
+        /**
+         * 调用结束
+         */
+        CLOSE
+    }
+
+    private Type type;
+
+    private String method;
+
+    private Object message;
+
+    private Status.Code code;
+
+    private long latencyNanos;
+
+    private long timestampMillis;
+
+    AccessLogEvent() {
+    }
+
+    void set(Type type, String method, Object message, Status.Code code, long latencyNanos, long timestampMillis) {
+        this.type = type;
+        this.method = method;
+        this.message = message;
+        this.code = code;
+        this.latencyNanos = latencyNanos;
+        this.timestampMillis = timestampMillis;
+    }
+
+    void clear() {
+        this.method = null;
+        this.message = null;
+        this.code = null;
+    }
+
+    public Type type() {
+        return this.type;
+    }
+
+    public String method() {
+        return this.method;
+    }
+
+    public Object message() {
+        return this.message;
+    }
+
+    public Status.Code code() {
+        return this.code;
+    }
+
+    public long latencyNanos() {
+        return this.latencyNanos;
+    }
+
+    public long timestampMillis() {
+        return this.timestampMillis;
+    }
+
+}
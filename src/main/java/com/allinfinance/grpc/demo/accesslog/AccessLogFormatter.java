@@ -0,0 +1,127 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.accesslog;
+
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.MessageOrBuilder;
+
+/**
+ * 访问日志格式化（只在后台写线程中使用，非线程安全）
+ *
+ * <p>protobuf 消息按字段输出为单行 {@code {name=value, ...}}，不使用 {@code toString()} 的多行文本；
+ * 名字在脱敏列表中的字段（包括嵌套消息、map 中的字段）输出为 {@value #MASK}。</p>
+ *
+ */
+final class AccessLogFormatter {
+
+    private static final String MASK = "***";
+
+    private final Set<String> redactedFields;
+
+    private final int maxMessageLength;
+
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+    private final Date date = new Date();
+
+    /**
+     * @param redactedFields 需要脱敏的字段名
+     * @param maxMessageLength 消息部分的最大长度，超出部分截断
+     */
+    AccessLogFormatter(Collection<String> redactedFields, int maxMessageLength) {
+        this.redactedFields = new HashSet<>(redactedFields);
+        this.maxMessageLength = maxMessageLength;
+    }
+
+    /**
+     * 格式化一条事件
+     *
+     * @param out 输出
+     * @param event 事件
+     */
+    void format(StringBuilder out, AccessLogEvent event) {
+        this.date.setTime(event.timestampMillis());
+        out.append(this.dateFormat.format(this.date))
+                .append(' ').append(event.type())
+                .append(' ').append(event.method());
+        if (event.code() != null) {
+            out.append(' ').append(event.code())
+                    .append(' ').append(event.latencyNanos() / 1000L).append("us");
+        }
+        Object message = event.message();
+        if (message != null) {
+            out.append(' ');
+            int start = out.length();
+            if (message instanceof MessageOrBuilder) {
+                this.appendMessage(out, (MessageOrBuilder) message);
+            } else {
+                out.append(message);
+            }
+            if (out.length() - start > this.maxMessageLength) {
+                out.setLength(start + this.maxMessageLength);
+                out.append("...");
+            }
+        }
+    }
+
+    private void appendMessage(StringBuilder out, MessageOrBuilder message) {
+        out.append('{');
+        boolean first = true;
+        for (Map.Entry<FieldDescriptor, Object> entry : message.getAllFields().entrySet()) {
+            FieldDescriptor field = entry.getKey();
+            if (!first) {
+                out.append(", ");
+            }
+            first = false;
+            out.append(field.getName()).append('=');
+            if (this.redactedFields.contains(field.getName())) {
+                out.append(MASK);
+            } else if (field.isRepeated()) {
+                out.append('[');
+                List<?> values = (List<?>) entry.getValue();
+                for (int i = 0; i < values.size(); i++) {
+                    if (i > 0) {
+                        out.append(", ");
+                    }
+                    this.appendValue(out, field, values.get(i));
+                }
+                out.append(']');
+            } else {
+                this.appendValue(out, field, entry.getValue());
+            }
+        }
+        out.append('}');
+    }
+
+    private void appendValue(StringBuilder out, FieldDescriptor field, Object value) {
+        switch (field.getJavaType()) {
+            case MESSAGE:
+                this.appendMessage(out, (MessageOrBuilder) value);
+                break;
+            case STRING:
+                out.append('"').append(value).append('"');
+                break;
+            case BYTE_STRING:
+                out.append('<').append(((ByteString) value).size()).append(" bytes>");
+                break;
+            default:
+                out.append(value);
+                break;
+        }
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.accesslog;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+/**
+ * 访问日志拦截器
+ *
+ * <p>按调用采样：被采样的调用记录请求、响应消息（每个调用最多 {@code maxMessagesPerCall} 条）与结束状态；
+ * 未被采样的调用只在返回非 OK 状态时记录一条结束事件。</p>
+ * <p>业务线程只把消息引用写入 {@link AccessLogRing}，不做格式化与 I/O；缓冲区满时丢弃。</p>
+ *
+ */
+public final class AccessLogInterceptor implements ServerInterceptor {
+
+    private final AccessLogRing ring;
+
+    private final double sampleRate;
+
+    private final int maxMessagesPerCall;
+
+    /**
+     * @param ring 缓冲区
+     * @param sampleRate 采样率，0 ~ 1
+     * @param maxMessagesPerCall 被采样的调用最多记录的消息数（请求与响应合计）
+     */
+    public AccessLogInterceptor(AccessLogRing ring, double sampleRate, int maxMessagesPerCall) {
+        if (sampleRate < 0.0 || sampleRate > 1.0) {
+            throw new IllegalArgumentException("sampleRate: " + sampleRate);
+        }
+        this.ring = ring;
+        this.sampleRate = sampleRate;
+        this.maxMessagesPerCall = maxMessagesPerCall;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+            ServerCallHandler<ReqT, RespT> next) {
+        boolean sampled = this.sampleRate >= 1.0
+                || (this.sampleRate > 0.0 && ThreadLocalRandom.current().nextDouble() < this.sampleRate);
+        AccessLogServerCall<ReqT, RespT> logCall = new AccessLogServerCall<>(call, this.ring, sampled,
+                this.maxMessagesPerCall);
+        ServerCall.Listener<ReqT> listener = next.startCall(logCall, headers);
+        return sampled ? new AccessLogListener<>(listener, logCall) : listener;
+    }
+
+    /**
+     * 记录发送的消息与调用结束
+     */
+    private static final class AccessLogServerCall<ReqT, RespT>
+            extends ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT> {
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<AccessLogServerCall> LOGGED =
+                AtomicIntegerFieldUpdater.newUpdater(AccessLogServerCall.class, "logged");
+
+        private final AccessLogRing ring;
+
+        private final String method;
+
+        private final boolean sampled;
+
+        private final int maxMessages;
+
+        private final long startNanos;
+
+        private volatile int logged;
+
+        AccessLogServerCall(ServerCall<ReqT, RespT> delegate, AccessLogRing ring, boolean sampled,
+                int maxMessages) {
+            super(delegate);
+            this.ring = ring;
+            this.method = delegate.getMethodDescriptor().getFullMethodName();
+            this.sampled = sampled;
+            this.maxMessages = maxMessages;
+            this.startNanos = System.nanoTime();
+        }
+
+        @Override
+        public void sendMessage(RespT message) {
+            if (this.sampled) {
+                this.message(AccessLogEvent.Type.RESPONSE, message);
+            }
+            super.sendMessage(message);
+        }
+
+        @Override
+        public void close(Status status, Metadata trailers) {
+            if (this.sampled || !status.isOk()) {
+                this.close(status.getCode(), status.getDescription());
+            }
+            super.close(status, trailers);
+        }
+
+        void message(AccessLogEvent.Type type, Object message) {
+            if (LOGGED.incrementAndGet(this) <= this.maxMessages) {
+                this.ring.offer(type, this.method, message, null, 0L);
+            }
+        }
+
+        void close(Status.Code code, String description) {
+            this.ring.offer(AccessLogEvent.Type.CLOSE, this.method, description, code,
+                    System.nanoTime() - this.startNanos);
+        }
+    }
+
+    /**
+     * 记录接收的消息与客户端取消（只用于被采样的调用）
+     */
+    private static final class AccessLogListener<ReqT>
+            extends ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT> {
+
+        private final AccessLogServerCall<ReqT, ?> call;
+
+        AccessLogListener(ServerCall.Listener<ReqT> delegate, AccessLogServerCall<ReqT, ?> call) {
+            super(delegate);
+            this.call = call;
+        }
+
+        @Override
+        public void onMessage(ReqT message) {
+            this.call.message(AccessLogEvent.Type.REQUEST, message);
+            super.onMessage(message);
+        }
+
+        @Override
+        public void onCancel() {
+            this.call.close(Status.Code.CANCELLED, null);
+            super.onCancel();
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.accesslog;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.grpc.Status;
+
+/**
+ * 访问日志环形缓冲区：多生产者、单消费者、无锁、有界
+ *
+ * <p>槽位（{@link AccessLogEvent}）预先分配并循环使用；每个槽位有一个序号，
+ * 生产者通过 CAS 领取槽位，写完后发布序号，消费者按序号读取（Vyukov 有界队列）。</p>
+ * <p>缓冲区满时直接丢弃并计数，不阻塞业务线程。</p>
+ *
+ */
+public final class AccessLogRing {
+
+    private final AccessLogEvent[] slots;
+
+    private final AtomicLongArray sequences;
+
+    private final int mask;
+
+    private final AtomicLong tail = new AtomicLong(0L);
+
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * 只由消费者线程访问
+     */
+    private long head;
+
+    /**
+     * @param capacity 容量，向上取 2 的幂
+     */
+    public AccessLogRing(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new AccessLogEvent[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            this.slots[i] = new AccessLogEvent();
+            this.sequences.set(i, i);
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * 写入一条事件（生产者，线程安全）
+     *
+     * @param type 事件类型
+     * @param method 方法全名
+     * @param message 消息对象，由消费者线程格式化；没有时为 null
+     * @param code 返回码；没有时为 null
+     * @param latencyNanos 延迟（纳秒）
+     * @return 缓冲区已满时返回 false
+     */
+    public boolean offer(AccessLogEvent.Type type, String method, Object message, Status.Code code,
+            long latencyNanos) {
+        long position;
+        int index;
+        while (true) {
+            position = this.tail.get();
+            index = (int) (position & this.mask);
+            long sequence = this.sequences.get(index);
+            if (sequence == position) {
+                if (this.tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (sequence < position) {
+                this.dropped.increment();
+                return false;
+            }
+            // sequence > position：其他生产者已经领取，重试
+        }
+        this.slots[index].set(type, method, message, code, latencyNanos, System.currentTimeMillis());
+        this.sequences.lazySet(index, position + 1);
+        return true;
+    }
+
+    /**
+     * 读取下一条事件（消费者，单线程）；返回的槽位在 {@link #release()} 之前有效
+     *
+     * @return 事件；没有时返回 null
+     */
+    AccessLogEvent peek() {
+        int index = (int) (this.head & this.mask);
+        if (this.sequences.get(index) != this.head + 1) {
+            return null;
+        }
+        return this.slots[index];
+    }
+
+    /**
+     * 归还 {@link #peek()} 读取的槽位
+     */
+    void release() {
+        int index = (int) (this.head & this.mask);
+        this.slots[index].clear();
+        this.sequences.lazySet(index, this.head + this.slots.length);
+        this.head++;
+    }
+
+    /**
+     * @return 因缓冲区已满而丢弃的事件数
+     */
+    public long dropped() {
+        return this.dropped.sum();
+    }
+
+}
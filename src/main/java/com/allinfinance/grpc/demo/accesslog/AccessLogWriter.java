@@ -0,0 +1,113 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.accesslog;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.allinfinance.grpc.demo.metrics.MetricsSource;
+import com.allinfinance.grpc.demo.metrics.PrometheusText;
+import com.allinfinance.grpc.demo.support.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 访问日志写线程：从 {@link AccessLogRing} 取出事件，格式化后写入名为 {@code access} 的 logger
+ *
+ * <p>格式化与 logger 的 I/O 都在这一个后台线程中完成；{@code access} logger 未开启 INFO 时只消费不格式化。
+ * 缓冲区为空时短暂 park，生产者不需要唤醒写线程。</p>
+ *
+ */
+public final class AccessLogWriter implements MetricsSource, Closeable {
+
+    private static final Logger accessLogger = LoggerFactory.getLogger("access");
+
+    private static final Logger logger = LoggerFactory.getLogger(AccessLogWriter.class);
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1L);
+
+    private final AccessLogRing ring;
+
+    private final AccessLogFormatter formatter;
+
+    private final Thread thread;
+
+    private volatile boolean running = true;
+
+    private volatile long written;
+
+    /**
+     * @param ring 缓冲区
+     * @param redactedFields 需要脱敏的字段名
+     * @param maxMessageLength 每条日志中消息部分的最大长度
+     */
+    public AccessLogWriter(AccessLogRing ring, Collection<String> redactedFields, int maxMessageLength) {
+        this.ring = ring;
+        this.formatter = new AccessLogFormatter(redactedFields, maxMessageLength);
+        this.thread = new NamedThreadFactory("access-log").newThread(this::run);
+    }
+
+    /**
+     * 启动写线程
+     */
+    public void start() {
+        this.thread.start();
+    }
+
+    private void run() {
+        StringBuilder line = new StringBuilder(512);
+        long count = 0L;
+        while (true) {
+            AccessLogEvent event = this.ring.peek();
+            if (event == null) {
+                if (!this.running) {
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            try {
+                if (accessLogger.isInfoEnabled()) {
+                    line.setLength(0);
+                    this.formatter.format(line, event);
+                    accessLogger.info(line.toString());
+                }
+            } catch (RuntimeException e) {
+                logger.warn("Access log format error", e);
+            } finally {
+                this.ring.release();
+            }
+            this.written = ++count;
+        }
+    }
+
+    /**
+     * 停止写线程；缓冲区中剩余的事件写完后才返回（最多等待 5 秒）
+     */
+    @Override
+    public void close() {
+        this.running = false;
+        try {
+            this.thread.join(TimeUnit.SECONDS.toMillis(5L));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void writeTo(StringBuilder out) {
+        PrometheusText.header(out, "access_log_events_written_total", "counter", "Access log events written.");
+        PrometheusText.sample(out, "access_log_events_written_total", this.written);
+        PrometheusText.header(out, "access_log_events_dropped_total", "counter",
+                "Access log events dropped because the buffer was full.");
+        PrometheusText.sample(out, "access_log_events_dropped_total", this.ring.dropped());
+    }
+
+}
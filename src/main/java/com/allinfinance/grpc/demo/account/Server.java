@@ -8,53 +8,357 @@
 package com.allinfinance.grpc.demo.account;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
 
 import com.allinfinance.grpc.demo.AccountServiceGrpc;
+import com.allinfinance.grpc.demo.CpsProcessProto;
 import com.allinfinance.grpc.demo.CpsProcessServiceGrpc;
+import com.allinfinance.grpc.demo.admission.AdmissionControlInterceptor;
+import com.allinfinance.grpc.demo.admission.Priority;
+import com.allinfinance.grpc.demo.accesslog.AccessLogInterceptor;
+import com.allinfinance.grpc.demo.accesslog.AccessLogRing;
+import com.allinfinance.grpc.demo.accesslog.AccessLogWriter;
+import com.allinfinance.grpc.demo.account.journal.AccountJournal;
+import com.allinfinance.grpc.demo.account.service.AccountSnapshots;
+import com.allinfinance.grpc.demo.account.service.AccountStore;
+import com.allinfinance.grpc.demo.account.service.AddRecord;
+import com.allinfinance.grpc.demo.account.service.QueryResponseCache;
+import com.allinfinance.grpc.demo.metrics.AdminServer;
+import com.allinfinance.grpc.demo.metrics.MetricsInterceptor;
+import com.allinfinance.grpc.demo.metrics.MetricsRegistry;
+import com.allinfinance.grpc.demo.support.CallDeadlines;
+import com.allinfinance.grpc.demo.support.IdempotencyCache;
+import com.allinfinance.grpc.demo.support.NamedThreadFactory;
+import com.allinfinance.grpc.demo.yak.ChannelBulkheads;
 import com.allinfinance.grpc.demo.yak.CpsProcessService;
+import com.allinfinance.grpc.demo.yak.HeartbeatInterceptor;
+import com.allinfinance.grpc.demo.yak.YakRequestKey;
+import com.allinfinance.grpc.demo.yak.auth.AuthorizationRules;
+import com.allinfinance.grpc.demo.yak.auth.BinProfileSource;
+import com.allinfinance.grpc.demo.yak.auth.RuleBasedAuthorizationService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import io.grpc.ServerBuilder;
+import io.grpc.netty.NettyServerBuilder;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import com.allinfinance.grpc.demo.account.service.AccountService;
 
 /**
  * 服务器端
+ *
+ * <p>线程模型、传输与流量控制参数见 {@link ServerConfig}。</p>
  */
 public final class Server {
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
-    private static final int PORT = 8883;
-
     private io.grpc.Server server;
 
-    public static void main(String[] args) throws InterruptedException {
+    private ExecutorService queryExecutor;
+
+    private ExecutorService authorizeExecutor;
+
+    private RuleBasedAuthorizationService authorizationService;
+
+    /**
+     * 执行服务方法的线程池；DIRECT、CACHED 时为 null
+     */
+    private ExecutorService appExecutor;
+
+    private EventLoopGroup bossGroup;
+
+    private EventLoopGroup workerGroup;
+
+    private AccountJournal journal;
+
+    private AccountSnapshots snapshots;
+
+    private AdminServer adminServer;
+
+    private AccessLogWriter accessLogWriter;
+
+    public static void main(String[] args) throws InterruptedException, IOException {
         Server server = new Server();
-        server.start(PORT);
+        server.start(ServerConfig.load());
         server.await();
     }
 
     /**
      * @see io.grpc.internal.ServerImpl#start()
      */
-    private void start(final int port) {
-        AccountServiceGrpc.AccountServiceImplBase accountService = new AccountService();
+    private void start(final ServerConfig config) {
+        // 管理端口先启动：恢复期间即可查看指标，/ready 在开始服务前返回 503
+        MetricsRegistry metrics = new MetricsRegistry();
+        if (config.adminPort() > 0) {
+            try {
+                this.adminServer = new AdminServer(config.adminHost(), config.adminPort(), metrics);
+                this.adminServer.start();
+            } catch (IOException e) {
+                logger.error("Admin endpoint start error", e);
+                return;
+            }
+        }
+        // 入账的幂等缓存在恢复时从日志重新加载，重启前已入账的请求重发时同样去重
+        IdempotencyCache<String, AddRecord> addIdempotency = config.idempotencyEnabled()
+                ? new IdempotencyCache<>("add", config.idempotencyMaxEntries(), config.idempotencyWindowSeconds(),
+                        TimeUnit.SECONDS)
+                : null;
+        AccountStore store;
+        try {
+            store = this.recover(config, addIdempotency);
+        } catch (IOException | RuntimeException e) {
+            logger.error("Account recovery error", e);
+            this.stop();
+            return;
+        }
+        // 恢复之后的任何一步失败（配置错误、端口占用等）都要关闭已启动的管理端口、日志与线程池，
+        // 否则管理端口的非守护线程使进程一直存活，/ready 一直返回 503
+        try {
+            this.serve(config, store, addIdempotency, metrics);
+        } catch (IOException | RuntimeException e) {
+            logger.error("gRPC start error", e);
+            this.stop();
+        }
+    }
 
-        CpsProcessServiceGrpc.CpsProcessServiceImplBase cpsProcessService = new CpsProcessService();
+    /**
+     * 创建服务与线程池，启动 gRPC 服务端
+     *
+     * @param config 配置
+     * @param store 恢复的账户存储
+     * @param addIdempotency 入账的幂等缓存（已从日志恢复），不去重时为 null
+     * @param metrics 指标
+     * @throws IOException 启动出错
+     */
+    private void serve(ServerConfig config, AccountStore store,
+            @Nullable IdempotencyCache<String, AddRecord> addIdempotency, MetricsRegistry metrics) throws IOException {
+        if (this.snapshots != null) {
+            metrics.register(this.snapshots);
+        }
+        this.queryExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                new NamedThreadFactory("account-query"));
+        IdempotencyCache<YakRequestKey, CpsProcessProto.YakMessageResponse> authorizeIdempotency = null;
+        if (config.idempotencyEnabled()) {
+            authorizeIdempotency = new IdempotencyCache<>("authorize", config.idempotencyMaxEntries(),
+                    config.idempotencyWindowSeconds(), TimeUnit.SECONDS);
+        }
+        QueryResponseCache queryCache = config.queryCacheEnabled()
+                ? new QueryResponseCache(config.queryCacheMaxEntries(), config.queryCacheTtlSeconds(), TimeUnit.SECONDS)
+                : null;
+        AccountService accountService = new AccountService(store, this.journal,
+                this.queryExecutor, config.queryMaxInFlight(), addIdempotency, queryCache);
 
-        this.server = ServerBuilder.forPort(port)
-                .addService(accountService.bindService())
-                .addService(cpsProcessService)
-                .build();
         try {
-            this.server.start();
-            logger.info("gRPC started on {} (http)", port);
+            this.authorizationService = this.createAuthorizationService(config);
+        } catch (IOException | IllegalArgumentException e) {
+            logger.error("Authorization rules load error", e);
+            this.stop();
+            return;
+        }
+        this.authorizeExecutor = Executors.newFixedThreadPool(config.authorizeThreads(),
+                new NamedThreadFactory("cps-authorize"));
+        ChannelBulkheads bulkheads = null;
+        if (config.authorizeBulkheadEnabled()) {
+            bulkheads = new ChannelBulkheads(this.authorizeExecutor, config.authorizeBulkheadQueueSize(),
+                    config.authorizeBulkheadMaxConcurrency(), config.authorizeBulkheadRatePerSecond(),
+                    config.authorizeBulkheadBurst(), config.authorizeBulkheadMaxChannels());
+        }
+        CpsProcessService cpsProcessService = new CpsProcessService(
+                this.authorizeExecutor, config.authorizeMaxInFlight(), this.authorizationService,
+                authorizeIdempotency, bulkheads);
 
-            this.addHook();
-        } catch (IOException e) {
-            logger.error("gRPC start error", e);
+        metrics.register(AccountServiceGrpc.getServiceDescriptor());
+        metrics.register(CpsProcessServiceGrpc.getServiceDescriptor());
+        metrics.register(cpsProcessService.heartbeats());
+        metrics.register(CallDeadlines.metrics(accountService.deadlines(), cpsProcessService.deadlines()));
+        metrics.register(this.authorizationService);
+        if (queryCache != null) {
+            metrics.register(queryCache);
+        }
+        if (bulkheads != null) {
+            metrics.register(bulkheads);
+        }
+        if (addIdempotency != null) {
+            metrics.register(IdempotencyCache.metrics(addIdempotency, authorizeIdempotency));
+        }
+
+        NettyServerBuilder builder = NettyServerBuilder.forPort(config.port())
+                .flowControlWindow(config.flowControlWindow())
+                .maxConcurrentCallsPerConnection(config.maxConcurrentCallsPerConnection());
+        this.configureTransport(builder, config);
+        this.configureExecutor(builder, config);
+        builder.addService(accountService.bindService())
+                .addService(cpsProcessService);
+        if (config.admissionEnabled()) {
+            // 最内层：被拒绝的调用同样计入指标与访问日志
+            AdmissionControlInterceptor admission = new AdmissionControlInterceptor(priorities(),
+                    config.admissionInitialLimit(), config.admissionMinLimit(), config.admissionMaxLimit(),
+                    config.admissionMaxStreams());
+            metrics.register(admission);
+            builder.addStreamTracerFactory(AdmissionControlInterceptor.arrivalTracer())
+                    .intercept(admission);
         }
+        if (config.accessLogEnabled()) {
+            AccessLogRing ring = new AccessLogRing(config.accessLogBufferSize());
+            this.accessLogWriter = new AccessLogWriter(ring, config.accessLogRedactedFields(),
+                    config.accessLogMaxMessageLength());
+            this.accessLogWriter.start();
+            metrics.register(this.accessLogWriter);
+            builder.intercept(new AccessLogInterceptor(ring, config.accessLogSampleRate(),
+                    config.accessLogMaxMessagesPerCall()));
+        }
+        this.server = builder
+                .intercept(new MetricsInterceptor(metrics))
+                // 最外层：心跳不经过指标与访问日志
+                .intercept(new HeartbeatInterceptor(cpsProcessService.heartbeats()))
+                .build();
+        this.server.start();
+        logger.info("gRPC started on {} (http)", config.port());
+        if (this.adminServer != null) {
+            this.adminServer.setReady(true);
+        }
+
+        this.addHook();
+    }
+
+    /**
+     * 方法的优先级：授权优先，批量入账最低
+     */
+    private static Map<String, Priority> priorities() {
+        Map<String, Priority> priorities = new HashMap<>();
+        priorities.put(CpsProcessServiceGrpc.getAuthorizeMethod().getFullMethodName(), Priority.HIGH);
+        priorities.put(CpsProcessServiceGrpc.getAuthorizeStreamMethod().getFullMethodName(), Priority.HIGH);
+        priorities.put(AccountServiceGrpc.getAddClientStreamingMethod().getFullMethodName(), Priority.LOW);
+        return priorities;
+    }
+
+    /**
+     * 配置 Netty 事件循环：boss 线程负责 accept，worker 线程负责读写；Linux 下优先使用 epoll
+     *
+     * <p>事件循环线程使用 Netty 的 {@link DefaultThreadFactory}：它创建的 {@code FastThreadLocalThread}
+     * 才能走 {@code FastThreadLocal} 与内存池线程缓存的快速路径。</p>
+     *
+     * @param builder 服务端 builder
+     * @param config 配置
+     */
+    private void configureTransport(NettyServerBuilder builder, ServerConfig config) {
+        ServerConfig.Transport transport = config.transport();
+        if (transport == ServerConfig.Transport.EPOLL && !Epoll.isAvailable()) {
+            throw new IllegalStateException("epoll is not available", Epoll.unavailabilityCause());
+        }
+        boolean epoll = transport == ServerConfig.Transport.EPOLL
+                || (transport == ServerConfig.Transport.AUTO && Epoll.isAvailable());
+        if (epoll) {
+            this.bossGroup = new EpollEventLoopGroup(config.bossThreads(), new DefaultThreadFactory("grpc-boss", true));
+            this.workerGroup = new EpollEventLoopGroup(config.workerThreads(),
+                    new DefaultThreadFactory("grpc-worker", true));
+            builder.channelType(EpollServerSocketChannel.class);
+        } else {
+            this.bossGroup = new NioEventLoopGroup(config.bossThreads(), new DefaultThreadFactory("grpc-boss", true));
+            this.workerGroup = new NioEventLoopGroup(config.workerThreads(),
+                    new DefaultThreadFactory("grpc-worker", true));
+            builder.channelType(NioServerSocketChannel.class);
+        }
+        builder.bossEventLoopGroup(this.bossGroup)
+                .workerEventLoopGroup(this.workerGroup);
+        logger.info("Netty transport: {} (boss: {}, worker: {})",
+                epoll ? "epoll" : "nio", config.bossThreads(), config.workerThreads());
+    }
+
+    /**
+     * 配置执行服务方法的线程池
+     *
+     * @param builder 服务端 builder
+     * @param config 配置
+     */
+    private void configureExecutor(NettyServerBuilder builder, ServerConfig config) {
+        ServerConfig.ExecutorType type = config.executorType();
+        int threads = config.executorThreads();
+        switch (type) {
+            case DIRECT:
+                builder.directExecutor();
+                break;
+            case FIXED:
+                this.appExecutor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("grpc-app"));
+                break;
+            case FORK_JOIN:
+                this.appExecutor = new ForkJoinPool(threads, ForkJoinPool.defaultForkJoinWorkerThreadFactory,
+                        null, true);
+                break;
+            case BOUNDED:
+                this.appExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(config.executorQueueSize()), new NamedThreadFactory("grpc-app"),
+                        new ThreadPoolExecutor.AbortPolicy());
+                break;
+            case CACHED:
+            default:
+                break;
+        }
+        if (this.appExecutor != null) {
+            builder.executor(this.appExecutor);
+        }
+        logger.info("Application executor: {} (threads: {})", type, threads);
+    }
+
+    /**
+     * 打开预写日志，加载最新的账户快照并回放其后的日志，恢复入账的幂等缓存；启用快照时创建快照任务
+     *
+     * @param config 配置
+     * @param addIdempotency 入账的幂等缓存，为 null 时不恢复
+     * @return 恢复的账户存储
+     */
+    private AccountStore recover(ServerConfig config, @Nullable IdempotencyCache<String, AddRecord> addIdempotency)
+            throws IOException {
+        AccountJournal.Durability durability = AccountJournal.Durability.valueOf(config.journalDurability());
+        this.journal = new AccountJournal(Paths.get(config.journalDir()), durability);
+        Path snapshotDir = Paths.get(config.snapshotDir());
+        AccountStore store = AccountSnapshots.recover(snapshotDir, this.journal);
+        if (addIdempotency != null) {
+            long reloaded = AddRecord.reload(this.journal, addIdempotency, config.idempotencyMaxEntries(),
+                    config.idempotencyWindowSeconds(), TimeUnit.SECONDS);
+            logger.info("Add idempotency entries reloaded from journal: {}", reloaded);
+        }
+        if (config.snapshotEnabled()) {
+            this.snapshots = new AccountSnapshots(snapshotDir, store, this.journal,
+                    TimeUnit.SECONDS.toMillis(config.snapshotIntervalSeconds()), config.snapshotMinRecords(),
+                    config.snapshotRetain());
+        }
+        return store;
+    }
+
+    /**
+     * 创建授权服务：配置了规则文件时从文件加载并定期检查修改
+     *
+     * @param config 配置
+     * @return 授权服务
+     */
+    private RuleBasedAuthorizationService createAuthorizationService(ServerConfig config) throws IOException {
+        BinProfileSource binSource = config.authorizeBinProfiles().isEmpty()
+                ? BinProfileSource.NONE
+                : BinProfileSource.fromFile(Paths.get(config.authorizeBinProfiles()));
+        if (config.authorizeRules().isEmpty()) {
+            return new RuleBasedAuthorizationService(AuthorizationRules.EMPTY, binSource,
+                    config.authorizeBinCacheSize(), config.authorizeVelocityCacheSize());
+        }
+        return new RuleBasedAuthorizationService(Paths.get(config.authorizeRules()),
+                config.authorizeRulesReloadMillis(), binSource,
+                config.authorizeBinCacheSize(), config.authorizeVelocityCacheSize());
     }
 
     /**
@@ -74,8 +378,45 @@ public final class Server {
      * 关闭服务
      */
     private void stop() {
+        if (this.adminServer != null) {
+            this.adminServer.stop();
+        }
         if (this.server != null) {
             this.server.shutdown();
+            try {
+                // 等待进行中的请求结束后再关闭预写日志
+                this.server.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (this.queryExecutor != null) {
+            this.queryExecutor.shutdown();
+        }
+        if (this.authorizeExecutor != null) {
+            this.authorizeExecutor.shutdown();
+        }
+        if (this.authorizationService != null) {
+            this.authorizationService.close();
+        }
+        if (this.appExecutor != null) {
+            this.appExecutor.shutdown();
+        }
+        if (this.bossGroup != null) {
+            this.bossGroup.shutdownGracefully();
+        }
+        if (this.workerGroup != null) {
+            this.workerGroup.shutdownGracefully();
+        }
+        if (this.snapshots != null) {
+            // 快照在日志关闭之前完成，下次启动几乎不需要回放
+            this.snapshots.close();
+        }
+        if (this.journal != null) {
+            this.journal.close();
+        }
+        if (this.accessLogWriter != null) {
+            this.accessLogWriter.close();
         }
     }
 
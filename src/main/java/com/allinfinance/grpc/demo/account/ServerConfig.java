@@ -0,0 +1,473 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.account;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+import com.allinfinance.grpc.demo.account.service.AccountService;
+import com.allinfinance.grpc.demo.yak.CpsProcessService;
+
+/**
+ * 服务端配置
+ *
+ * <p>按优先级从高到低读取：系统属性（{@code -Dserver.port=8884}）、配置文件、默认值。
+ * 配置文件由 {@code -Dserver.config=server.properties} 指定，使用与系统属性相同的 key。</p>
+ *
+ */
+public final class ServerConfig {
+
+    /**
+     * 应用线程池类型（执行服务方法的线程池）
+     */
+    public enum ExecutorType {
+        /**
+         * gRPC 默认的 cached 线程池（不限线程数）
+         */
+        CACHED,
+        /**
+         * 直接在 Netty 的 I/O 线程上执行，只适用于不阻塞的服务方法
+         */
+        DIRECT,
+        /**
+         * 固定大小线程池，队列不限长度
+         */
+        FIXED,
+        /**
+         * ForkJoinPool（异步模式）
+         */
+        FORK_JOIN,
+        /**
+         * 固定大小线程池 + 有界队列，队列满时拒绝
+         */
+        BOUNDED
+    }
+
+    /**
+     * Netty 传输类型
+     */
+    public enum Transport {
+        /**
+         * Linux 且 epoll 可用时使用 epoll，否则使用 NIO
+         */
+        AUTO,
+        NIO,
+        EPOLL
+    }
+
+    private final Properties properties;
+
+    private ServerConfig(Properties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * 加载配置
+     *
+     * @return 配置
+     * @throws IOException 读取配置文件出错
+     */
+    public static ServerConfig load() throws IOException {
+        Properties properties = new Properties();
+        String file = System.getProperty("server.config");
+        if (file != null) {
+            try (InputStream in = Files.newInputStream(Paths.get(file))) {
+                properties.load(in);
+            }
+        }
+        return new ServerConfig(properties);
+    }
+
+    /**
+     * @return 监听端口，默认 8883
+     */
+    public int port() {
+        return this.getInt("server.port", 8883);
+    }
+
+    /**
+     * @return 应用线程池类型，默认 {@link ExecutorType#FIXED}
+     */
+    public ExecutorType executorType() {
+        return ExecutorType.valueOf(this.get("server.executor", "FIXED").toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * @return 应用线程池的线程数，默认为 CPU 核数
+     */
+    public int executorThreads() {
+        return this.getInt("server.executor.threads", Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @return {@link ExecutorType#BOUNDED} 的队列长度，默认 10000
+     */
+    public int executorQueueSize() {
+        return this.getInt("server.executor.queueSize", 10_000);
+    }
+
+    /**
+     * @return Netty 传输类型，默认 {@link Transport#AUTO}
+     */
+    public Transport transport() {
+        return Transport.valueOf(this.get("server.netty.transport", "AUTO").toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * @return boss 事件循环（accept）线程数，默认 1
+     */
+    public int bossThreads() {
+        return this.getInt("server.netty.bossThreads", 1);
+    }
+
+    /**
+     * @return worker 事件循环（I/O）线程数，默认为 CPU 核数
+     */
+    public int workerThreads() {
+        return this.getInt("server.netty.workerThreads", Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @return HTTP/2 流量控制窗口（字节），默认 1MB
+     */
+    public int flowControlWindow() {
+        return this.getInt("server.flowControlWindow", 1024 * 1024);
+    }
+
+    /**
+     * @return 每个连接的最大并发调用数，默认 1000
+     */
+    public int maxConcurrentCallsPerConnection() {
+        return this.getInt("server.maxConcurrentCallsPerConnection", 1000);
+    }
+
+    /**
+     * @return 管理端口（指标）的监听地址，默认只监听本机
+     */
+    public String adminHost() {
+        return this.get("admin.host", "127.0.0.1");
+    }
+
+    /**
+     * @return 管理端口，默认 9883；小于等于 0 时不启动
+     */
+    public int adminPort() {
+        return this.getInt("admin.port", 9883);
+    }
+
+    /**
+     * @return 预写日志目录
+     */
+    public String journalDir() {
+        return this.get("journal.dir", "data/journal");
+    }
+
+    /**
+     * @return 预写日志持久化模式：STREAM、BATCH、INTERVAL
+     */
+    public String journalDurability() {
+        return this.get("journal.durability", "STREAM").toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * @return 账户快照目录，默认 data/snapshot
+     */
+    public String snapshotDir() {
+        return this.get("snapshot.dir", "data/snapshot");
+    }
+
+    /**
+     * @return 是否定期与关闭时写账户快照，默认 true；关闭时启动仍会加载已有的快照
+     */
+    public boolean snapshotEnabled() {
+        return Boolean.parseBoolean(this.get("snapshot.enabled", "true"));
+    }
+
+    /**
+     * @return 快照间隔（秒），默认 300；小于等于 0 时只在关闭时快照
+     */
+    public int snapshotIntervalSeconds() {
+        return this.getInt("snapshot.intervalSeconds", 300);
+    }
+
+    /**
+     * @return 距上一个快照至少新增的日志记录数，默认 100000；不足时跳过定期快照
+     */
+    public int snapshotMinRecords() {
+        return this.getInt("snapshot.minRecords", 100_000);
+    }
+
+    /**
+     * @return 保留的快照数，默认 2
+     */
+    public int snapshotRetain() {
+        return this.getInt("snapshot.retain", 2);
+    }
+
+    /**
+     * @return 每个双向流同时处理的最大请求数
+     */
+    public int queryMaxInFlight() {
+        return this.getInt("query.maxInFlight", AccountService.DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @return 是否缓存查询响应，默认 true
+     */
+    public boolean queryCacheEnabled() {
+        return Boolean.parseBoolean(this.get("query.cache.enabled", "true"));
+    }
+
+    /**
+     * @return 查询响应缓存的最大条目数（账户数），默认 100000
+     */
+    public int queryCacheMaxEntries() {
+        return this.getInt("query.cache.maxEntries", 100_000);
+    }
+
+    /**
+     * @return 查询响应缓存条目的存活时间（秒），默认 60；0 表示只在写入时失效
+     */
+    public int queryCacheTtlSeconds() {
+        return this.getInt("query.cache.ttlSeconds", 60);
+    }
+
+    /**
+     * @return 每个 authorizeStream 流同时处理的最大请求数
+     */
+    public int authorizeMaxInFlight() {
+        return this.getInt("authorize.maxInFlight", CpsProcessService.DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @return authorizeStream 处理线程数，默认为 CPU 核数
+     */
+    public int authorizeThreads() {
+        return this.getInt("authorize.threads", Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @return 是否按渠道（srcChannelId）隔离授权请求，默认 true
+     */
+    public boolean authorizeBulkheadEnabled() {
+        return Boolean.parseBoolean(this.get("authorize.bulkhead.enabled", "true"));
+    }
+
+    /**
+     * @return 每个渠道的最大积压请求数，默认 1000；超过时拒绝该渠道的请求
+     */
+    public int authorizeBulkheadQueueSize() {
+        return this.getInt("authorize.bulkhead.queueSize", 1000);
+    }
+
+    /**
+     * @return 每个渠道同时执行的最大请求数，默认为授权线程数的一半（至少 1）
+     */
+    public int authorizeBulkheadMaxConcurrency() {
+        return this.getInt("authorize.bulkhead.maxConcurrency", Math.max(1, this.authorizeThreads() / 2));
+    }
+
+    /**
+     * @return 每个渠道每秒的最大请求数，默认 0（不限速）
+     */
+    public double authorizeBulkheadRatePerSecond() {
+        return this.getDouble("authorize.bulkhead.ratePerSecond", 0);
+    }
+
+    /**
+     * @return 限速时每个渠道允许的突发请求数，默认 100
+     */
+    public int authorizeBulkheadBurst() {
+        return this.getInt("authorize.bulkhead.burst", 100);
+    }
+
+    /**
+     * @return 独立舱壁的最大渠道数，默认 1024；超出的渠道共用一个舱壁
+     */
+    public int authorizeBulkheadMaxChannels() {
+        return this.getInt("authorize.bulkhead.maxChannels", 1024);
+    }
+
+    /**
+     * @return 授权规则文件；为空时不配置规则（只检查主账号与金额）
+     */
+    public String authorizeRules() {
+        return this.get("authorize.rules", "");
+    }
+
+    /**
+     * @return 检查授权规则文件是否被修改的间隔（毫秒），默认 5000；小于等于 0 时不重新加载
+     */
+    public int authorizeRulesReloadMillis() {
+        return this.getInt("authorize.rulesReloadMillis", 5000);
+    }
+
+    /**
+     * @return 卡 BIN 资料文件；为空时没有 BIN 资料
+     */
+    public String authorizeBinProfiles() {
+        return this.get("authorize.binProfiles", "");
+    }
+
+    /**
+     * @return BIN 资料缓存的最大条目数，默认 100000
+     */
+    public int authorizeBinCacheSize() {
+        return this.getInt("authorize.binCacheSize", 100_000);
+    }
+
+    /**
+     * @return 交易频率计数器的最大条目数（卡数），默认 1000000
+     */
+    public int authorizeVelocityCacheSize() {
+        return this.getInt("authorize.velocityCacheSize", 1_000_000);
+    }
+
+    /**
+     * @return 是否启用准入控制（自适应并发限制），默认 true
+     */
+    public boolean admissionEnabled() {
+        return Boolean.parseBoolean(this.get("admission.enabled", "true"));
+    }
+
+    /**
+     * @return 一元方法的初始并发限制，默认 100
+     */
+    public int admissionInitialLimit() {
+        return this.getInt("admission.initialLimit", 100);
+    }
+
+    /**
+     * @return 一元方法的最小并发限制，默认 10
+     */
+    public int admissionMinLimit() {
+        return this.getInt("admission.minLimit", 10);
+    }
+
+    /**
+     * @return 一元方法的最大并发限制，默认 2000
+     */
+    public int admissionMaxLimit() {
+        return this.getInt("admission.maxLimit", 2000);
+    }
+
+    /**
+     * @return 每个流式方法的最大并发流数，默认 1000
+     */
+    public int admissionMaxStreams() {
+        return this.getInt("admission.maxStreams", 1000);
+    }
+
+    /**
+     * @return 是否对入账（按 serialNo）与授权（按渠道与报文原文）去重，默认 true
+     */
+    public boolean idempotencyEnabled() {
+        return Boolean.parseBoolean(this.get("idempotency.enabled", "true"));
+    }
+
+    /**
+     * @return 去重的时间窗口（秒），默认 300；超过窗口的重发按新请求处理
+     */
+    public int idempotencyWindowSeconds() {
+        return this.getInt("idempotency.windowSeconds", 300);
+    }
+
+    /**
+     * @return 每个幂等缓存的最大条目数，默认 1000000
+     */
+    public int idempotencyMaxEntries() {
+        return this.getInt("idempotency.maxEntries", 1_000_000);
+    }
+
+    /**
+     * @return 是否记录访问日志，默认 true
+     */
+    public boolean accessLogEnabled() {
+        return Boolean.parseBoolean(this.get("accesslog.enabled", "true"));
+    }
+
+    /**
+     * @return 访问日志采样率（0 ~ 1），默认 0.01；未被采样的调用只记录失败
+     */
+    public double accessLogSampleRate() {
+        return this.getDouble("accesslog.sampleRate", 0.01);
+    }
+
+    /**
+     * @return 访问日志缓冲区大小（条），默认 8192；满时丢弃
+     */
+    public int accessLogBufferSize() {
+        return this.getInt("accesslog.bufferSize", 8192);
+    }
+
+    /**
+     * @return 每个被采样的调用最多记录的消息数，默认 16
+     */
+    public int accessLogMaxMessagesPerCall() {
+        return this.getInt("accesslog.maxMessagesPerCall", 16);
+    }
+
+    /**
+     * @return 每条访问日志中消息部分的最大长度，默认 1024
+     */
+    public int accessLogMaxMessageLength() {
+        return this.getInt("accesslog.maxMessageLength", 1024);
+    }
+
+    /**
+     * @return 访问日志中需要脱敏的字段名，默认 userId、rawMessage
+     */
+    public List<String> accessLogRedactedFields() {
+        List<String> fields = new ArrayList<>();
+        for (String field : this.get("accesslog.redactedFields", "userId,rawMessage").split(",")) {
+            if (!field.trim().isEmpty()) {
+                fields.add(field.trim());
+            }
+        }
+        return fields;
+    }
+
+    private String get(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            value = this.properties.getProperty(key);
+        }
+        return value == null ? defaultValue : value.trim();
+    }
+
+    private int getInt(String key, int defaultValue) {
+        String value = this.get(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + key + ": " + value, e);
+        }
+    }
+
+    private double getDouble(String key, double defaultValue) {
+        String value = this.get(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + key + ": " + value, e);
+        }
+    }
+
+}
@@ -0,0 +1,704 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.account.journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.allinfinance.grpc.demo.support.NamedThreadFactory;
+
+/**
+ * 账户预写日志（Write-Ahead Journal）
+ *
+ * <p>只追加写入，按段（segment）切分文件，文件名为该段第一条记录的序号：{@code account-<seq>.journal}。</p>
+ * <p>记录格式（大端）：</p>
+ * <pre>
+ * int    length      payload 长度
+ * int    crc32       payload 的 CRC32
+ * long   seq         记录序号，从 1 开始连续递增
+ * long   amount      金额（最小单位）
+ * short  userIdLen   userId 的 UTF-8 字节数
+ * byte[] userId
+ * long   timestamp   写入时间（毫秒）
+ * short  serialNoLen serialNo 的 UTF-8 字节数
+ * byte[] serialNo
+ * </pre>
+ * <p>timestamp 与 serialNo 只在有流水号时写入，没有流水号的记录（包括之前版本写入的记录）payload 到 userId 为止；
+ * 启动时据此恢复幂等缓存。</p>
+ * <p>写入先进入内存缓冲区，由后台线程 {@code account-journal-sync} 统一写入文件并 fsync（group commit）：
+ * 同一时刻等待落盘的所有流共享一次 {@link FileChannel#force(boolean)}。</p>
+ * <p>切换段文件前先落盘旧段，因此只有最后一段可能不完整：启动时只读映射（mmap）最后一段扫描记录，
+ * 截断末尾不完整的记录。回放时跳过全部已在快照中的段，中间段不完整视为损坏。</p>
+ *
+ */
+public final class AccountJournal implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(AccountJournal.class);
+
+    /**
+     * 持久化模式
+     */
+    public enum Durability {
+        /**
+         * 每个流结束（onCompleted）时等待落盘后再应答
+         */
+        STREAM,
+        /**
+         * 每个流每写入 batchSize 条记录等待一次落盘，流结束时再等待一次
+         */
+        BATCH,
+        /**
+         * 后台按固定时间间隔落盘，应答不等待；宕机时最多丢失一个间隔内的数据
+         */
+        INTERVAL
+    }
+
+    /**
+     * 回放记录的处理器
+     */
+    @FunctionalInterface
+    public interface RecordHandler {
+
+        /**
+         * @param seq 记录序号
+         * @param userId 用户ID
+         * @param amount 金额（最小单位）
+         * @param serialNo 流水号，没有时为空字符串
+         * @param timestamp 写入时间（毫秒）；没有 serialNo 的记录为 0
+         */
+        void apply(long seq, String userId, long amount, String serialNo, long timestamp);
+    }
+
+    private static final String SEGMENT_PREFIX = "account-";
+
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    private static final int HEADER_BYTES = 8;
+
+    private static final int FIXED_PAYLOAD_BYTES = 8 + 8 + 2;
+
+    private static final int SERIAL_NO_FIXED_BYTES = 8 + 2;
+
+    private static final int BUFFER_BYTES = 256 * 1024;
+
+    private static final CompletableFuture<Void> COMPLETED = CompletableFuture.completedFuture(null);
+
+    private final Path dir;
+
+    private final Durability durability;
+
+    private final int batchSize;
+
+    private final long syncIntervalMillis;
+
+    private final long segmentBytes;
+
+    /**
+     * 保护写缓冲区与当前段文件
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+
+    private final CRC32 crc = new CRC32();
+
+    private FileChannel channel;
+
+    private long segmentSize;
+
+    /**
+     * 已分配的最大序号（writeLock 保护）
+     */
+    private long lastSeq;
+
+    /**
+     * 保护落盘等待队列
+     */
+    private final ReentrantLock syncLock = new ReentrantLock();
+
+    private final Condition syncRequested = this.syncLock.newCondition();
+
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+
+    private volatile long durableSeq;
+
+    private volatile IOException failure;
+
+    private volatile boolean closed;
+
+    private final Thread syncThread;
+
+    /**
+     * 等待落盘超时的计时器
+     */
+    private final ScheduledThreadPoolExecutor timer;
+
+    /**
+     * 打开日志：扫描已有的段文件，确定最大序号，并启动后台落盘线程
+     *
+     * @param dir 日志目录，不存在时自动创建
+     * @param durability 持久化模式
+     * @param batchSize {@link Durability#BATCH} 模式下每批的记录数
+     * @param syncIntervalMillis {@link Durability#INTERVAL} 模式下的落盘间隔（毫秒）
+     * @param segmentBytes 单个段文件的大小上限
+     * @throws IOException 读写日志文件出错
+     */
+    public AccountJournal(Path dir, Durability durability, int batchSize, long syncIntervalMillis,
+            long segmentBytes) throws IOException {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize: " + batchSize);
+        }
+        if (syncIntervalMillis <= 0L) {
+            throw new IllegalArgumentException("syncIntervalMillis: " + syncIntervalMillis);
+        }
+        this.dir = Files.createDirectories(dir);
+        this.durability = durability;
+        this.batchSize = batchSize;
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.segmentBytes = Math.max(segmentBytes, BUFFER_BYTES);
+
+        this.lastSeq = this.recover();
+        this.durableSeq = this.lastSeq;
+        this.openSegment(this.lastSeq + 1);
+
+        this.syncThread = new Thread(this::syncLoop, "account-journal-sync");
+        this.syncThread.setDaemon(true);
+        this.syncThread.start();
+        this.timer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("account-journal-timeout"));
+        this.timer.setRemoveOnCancelPolicy(true);
+        logger.info("Journal opened: {} (durability: {}, last seq: {})", dir, durability, this.lastSeq);
+    }
+
+    /**
+     * 使用默认参数打开日志：每批 256 条，间隔 10 毫秒，段文件 64MB
+     *
+     * @param dir 日志目录
+     * @param durability 持久化模式
+     * @throws IOException 读写日志文件出错
+     */
+    public AccountJournal(Path dir, Durability durability) throws IOException {
+        this(dir, durability, 256, 10L, 64L * 1024 * 1024);
+    }
+
+    /**
+     * @return 持久化模式
+     */
+    public Durability durability() {
+        return this.durability;
+    }
+
+    /**
+     * @return {@link Durability#BATCH} 模式下每批的记录数
+     */
+    public int batchSize() {
+        return this.batchSize;
+    }
+
+    /**
+     * @return 已分配的最大序号
+     */
+    public long lastSeq() {
+        this.writeLock.lock();
+        try {
+            return this.lastSeq;
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return 已落盘的最大序号
+     */
+    public long durableSeq() {
+        return this.durableSeq;
+    }
+
+    /**
+     * 追加一条没有流水号的记录（只写入内存缓冲区，不等待落盘）
+     *
+     * @param userId 用户ID
+     * @param amount 金额（最小单位）
+     * @return 记录序号
+     * @throws UncheckedIOException 写入文件出错
+     */
+    public long append(String userId, long amount) {
+        return this.append(userId, amount, "");
+    }
+
+    /**
+     * 追加一条记录（只写入内存缓冲区，不等待落盘）
+     *
+     * @param userId 用户ID
+     * @param amount 金额（最小单位）
+     * @param serialNo 流水号，为空时不写入（也不写入写入时间）
+     * @return 记录序号
+     * @throws UncheckedIOException 写入文件出错
+     */
+    public long append(String userId, long amount, String serialNo) {
+        byte[] id = userId.getBytes(StandardCharsets.UTF_8);
+        if (id.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("userId too long: " + id.length);
+        }
+        byte[] serial = serialNo.getBytes(StandardCharsets.UTF_8);
+        if (serial.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("serialNo too long: " + serial.length);
+        }
+        int payload = FIXED_PAYLOAD_BYTES + id.length
+                + (serial.length == 0 ? 0 : SERIAL_NO_FIXED_BYTES + serial.length);
+        this.writeLock.lock();
+        try {
+            this.checkOpen();
+            if (this.buffer.remaining() < HEADER_BYTES + payload) {
+                this.flushBuffer();
+            }
+            long seq = ++this.lastSeq;
+            int start = this.buffer.position();
+            this.buffer.putInt(payload).putInt(0)
+                    .putLong(seq).putLong(amount).putShort((short) id.length).put(id);
+            if (serial.length > 0) {
+                this.buffer.putLong(System.currentTimeMillis()).putShort((short) serial.length).put(serial);
+            }
+            // 计算 payload 的 CRC32，回填到记录头
+            ByteBuffer view = this.buffer.duplicate();
+            view.position(start + HEADER_BYTES).limit(start + HEADER_BYTES + payload);
+            this.crc.reset();
+            this.crc.update(view);
+            this.buffer.putInt(start + 4, (int) this.crc.getValue());
+            return seq;
+        } catch (IOException e) {
+            this.failure = e;
+            throw new UncheckedIOException(e);
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * 等待序号不大于 {@code seq} 的记录全部落盘
+     *
+     * <p>不会阻塞调用线程；返回的 future 在后台落盘线程中完成，回调应尽量轻量。
+     * 日志已关闭时（没有落盘线程）返回的 future 以 {@link IllegalStateException} 失败。</p>
+     *
+     * @param seq 记录序号
+     * @return 落盘完成（或失败）的 future
+     */
+    public CompletableFuture<Void> sync(long seq) {
+        if (seq <= this.durableSeq) {
+            return COMPLETED;
+        }
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        this.syncLock.lock();
+        try {
+            if (this.failure != null) {
+                future.completeExceptionally(this.failure);
+                return future;
+            }
+            if (this.closed) {
+                future.completeExceptionally(new IllegalStateException("Journal closed: " + this.dir));
+                return future;
+            }
+            this.waiters.add(new Waiter(seq, future));
+            this.syncRequested.signal();
+        } finally {
+            this.syncLock.unlock();
+        }
+        return future;
+    }
+
+    /**
+     * 等待序号不大于 {@code seq} 的记录全部落盘，最多等待 {@code timeout}
+     *
+     * <p>超时后返回的 future 以 {@link TimeoutException} 失败，记录之后仍会正常落盘；
+     * 调用方据此放弃等待（如调用已超过截止时间），不必等到落盘完成。</p>
+     *
+     * @param seq 记录序号
+     * @param timeout 最长等待时间
+     * @param unit 时间单位
+     * @return 落盘完成（或失败、超时）的 future
+     */
+    public CompletableFuture<Void> sync(long seq, long timeout, TimeUnit unit) {
+        CompletableFuture<Void> future = this.sync(seq);
+        if (future.isDone()) {
+            return future;
+        }
+        CompletableFuture<Void> timed = new CompletableFuture<>();
+        ScheduledFuture<?> expiry;
+        try {
+            expiry = this.timer.schedule(() -> timed.completeExceptionally(
+                    new TimeoutException("Journal sync timed out: " + seq)), timeout, unit);
+        } catch (RejectedExecutionException e) {
+            // 已关闭：不再计时，等待 sync(seq) 的结果
+            return future;
+        }
+        future.whenComplete((v, t) -> {
+            expiry.cancel(false);
+            if (t == null) {
+                timed.complete(null);
+            } else {
+                timed.completeExceptionally(t);
+            }
+        });
+        return timed;
+    }
+
+    /**
+     * 回放序号大于 {@code afterSeq} 的记录：记录全部不大于 {@code afterSeq} 的段不读取
+     *
+     * @param afterSeq 起始序号（不含）
+     * @param handler 记录处理器
+     * @return 回放的记录数
+     * @throws IOException 读取日志文件出错，或中间的段不完整
+     */
+    public long replay(long afterSeq, RecordHandler handler) throws IOException {
+        long[] count = {0L};
+        List<Path> segments = this.segments();
+        for (int i = 0; i < segments.size(); i++) {
+            boolean last = i == segments.size() - 1;
+            if (!last && firstSeq(segments.get(i + 1)) - 1 <= afterSeq) {
+                continue;
+            }
+            Path segment = segments.get(i);
+            try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.READ)) {
+                long valid = scanValid(ch, (seq, userId, amount, serialNo, timestamp) -> {
+                    if (seq > afterSeq) {
+                        handler.apply(seq, userId, amount, serialNo, timestamp);
+                        count[0]++;
+                    }
+                });
+                if (!last && valid < ch.size()) {
+                    throw new IOException("Corrupted journal segment: " + segment);
+                }
+            }
+        }
+        return count[0];
+    }
+
+    /**
+     * 删除记录全部不大于 {@code seq} 的段文件（当前写入的段除外），在快照之后清理日志
+     *
+     * @param seq 记录序号
+     * @return 删除的段文件数
+     * @throws IOException 删除文件出错
+     */
+    public int deleteSegmentsUpTo(long seq) throws IOException {
+        List<Path> segments = this.segments();
+        int deleted = 0;
+        for (int i = 0; i < segments.size() - 1 && firstSeq(segments.get(i + 1)) - 1 <= seq; i++) {
+            Files.delete(segments.get(i));
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * 关闭日志：落盘剩余的记录并停止后台线程
+     */
+    @Override
+    public void close() {
+        this.syncLock.lock();
+        try {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            this.syncRequested.signal();
+        } finally {
+            this.syncLock.unlock();
+        }
+        try {
+            this.syncThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.timer.shutdownNow();
+        this.writeLock.lock();
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            logger.error("Journal close error", e);
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * 后台落盘线程：有等待者时立即落盘（合并所有等待者），
+     * {@link Durability#INTERVAL} 模式下另外按固定间隔落盘
+     */
+    private void syncLoop() {
+        while (true) {
+            boolean stop;
+            this.syncLock.lock();
+            try {
+                try {
+                    if (this.waiters.isEmpty() && !this.closed) {
+                        if (this.durability == Durability.INTERVAL) {
+                            this.syncRequested.await(this.syncIntervalMillis, TimeUnit.MILLISECONDS);
+                        } else {
+                            this.syncRequested.await();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    this.closed = true;
+                }
+                stop = this.closed;
+            } finally {
+                this.syncLock.unlock();
+            }
+
+            this.syncOnce();
+            if (stop) {
+                return;
+            }
+        }
+    }
+
+    private void syncOnce() {
+        long target;
+        FileChannel ch;
+        this.writeLock.lock();
+        try {
+            if (this.failure == null) {
+                this.flushBuffer();
+            }
+            target = this.lastSeq;
+            ch = this.channel;
+        } catch (IOException e) {
+            this.failure = e;
+            target = -1L;
+            ch = null;
+        } finally {
+            this.writeLock.unlock();
+        }
+
+        if (ch != null && target > this.durableSeq) {
+            try {
+                ch.force(false);
+            } catch (ClosedChannelException e) {
+                // 段文件已切换：切换前已经落盘
+            } catch (IOException e) {
+                this.failure = e;
+            }
+        }
+        if (this.failure == null) {
+            this.durableSeq = Math.max(this.durableSeq, target);
+        } else {
+            logger.error("Journal sync error", this.failure);
+        }
+        this.completeWaiters();
+    }
+
+    private void completeWaiters() {
+        List<Waiter> done = new ArrayList<>();
+        IOException error = this.failure;
+        long durable = this.durableSeq;
+        this.syncLock.lock();
+        try {
+            Iterator<Waiter> it = this.waiters.iterator();
+            while (it.hasNext()) {
+                Waiter waiter = it.next();
+                if (error != null || waiter.seq <= durable) {
+                    done.add(waiter);
+                    it.remove();
+                }
+            }
+        } finally {
+            this.syncLock.unlock();
+        }
+        for (Waiter waiter : done) {
+            if (error != null) {
+                waiter.future.completeExceptionally(error);
+            } else {
+                waiter.future.complete(null);
+            }
+        }
+    }
+
+    /**
+     * 将缓冲区写入当前段文件，必要时切换到新的段文件（调用方持有 writeLock）
+     */
+    private void flushBuffer() throws IOException {
+        if (this.buffer.position() == 0) {
+            return;
+        }
+        this.buffer.flip();
+        while (this.buffer.hasRemaining()) {
+            this.segmentSize += this.channel.write(this.buffer);
+        }
+        this.buffer.clear();
+        if (this.segmentSize >= this.segmentBytes) {
+            FileChannel old = this.channel;
+            old.force(false);
+            this.openSegment(this.lastSeq + 1);
+            old.close();
+        }
+    }
+
+    private void openSegment(long firstSeq) throws IOException {
+        Path file = this.dir.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSeq, SEGMENT_SUFFIX));
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        this.segmentSize = this.channel.size();
+    }
+
+    private void checkOpen() throws IOException {
+        if (this.failure != null) {
+            throw this.failure;
+        }
+        if (this.closed) {
+            throw new IllegalStateException("Journal closed: " + this.dir);
+        }
+    }
+
+    /**
+     * 扫描最后一个段文件，截断末尾不完整的记录
+     *
+     * @return 最大序号
+     */
+    private long recover() throws IOException {
+        List<Path> segments = this.segments();
+        if (segments.isEmpty()) {
+            return 0L;
+        }
+        Path segment = segments.get(segments.size() - 1);
+        long[] last = {firstSeq(segment) - 1};
+        try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long valid = scanValid(ch, (seq, userId, amount, serialNo, timestamp) -> last[0] = seq);
+            if (valid < ch.size()) {
+                logger.warn("Truncate journal segment {} from {} to {} bytes", segment, ch.size(), valid);
+                ch.truncate(valid);
+            }
+        }
+        return last[0];
+    }
+
+    /**
+     * @return 段文件第一条记录的序号（文件名）
+     */
+    private static long firstSeq(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.dir,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                segments.add(path);
+            }
+        }
+        // 文件名中的序号定长补零，按名称排序即按序号排序
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * 通过只读映射扫描段文件中的完整记录
+     *
+     * @return 最后一条完整记录结束的位置
+     */
+    private static long scanValid(FileChannel ch, RecordHandler handler) throws IOException {
+        long size = ch.size();
+        if (size == 0L) {
+            return 0L;
+        }
+        MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0L, size);
+        CRC32 crc = new CRC32();
+        byte[] bytes = new byte[256];
+        while (map.remaining() >= HEADER_BYTES) {
+            int start = map.position();
+            int payload = map.getInt();
+            int checksum = map.getInt();
+            if (payload < FIXED_PAYLOAD_BYTES || payload > map.remaining()) {
+                return start;
+            }
+            ByteBuffer view = map.duplicate();
+            view.limit(view.position() + payload);
+            crc.reset();
+            crc.update(view);
+            if ((int) crc.getValue() != checksum) {
+                return start;
+            }
+            long seq = map.getLong();
+            long amount = map.getLong();
+            int idLength = map.getShort();
+            int rest = payload - FIXED_PAYLOAD_BYTES - idLength;
+            if (idLength < 0 || rest < 0) {
+                return start;
+            }
+            if (bytes.length < idLength) {
+                bytes = new byte[idLength];
+            }
+            map.get(bytes, 0, idLength);
+            String userId = new String(bytes, 0, idLength, StandardCharsets.UTF_8);
+            String serialNo = "";
+            long timestamp = 0L;
+            if (rest > 0) {
+                if (rest < SERIAL_NO_FIXED_BYTES) {
+                    return start;
+                }
+                timestamp = map.getLong();
+                int serialLength = map.getShort();
+                if (serialLength != rest - SERIAL_NO_FIXED_BYTES) {
+                    return start;
+                }
+                if (bytes.length < serialLength) {
+                    bytes = new byte[serialLength];
+                }
+                map.get(bytes, 0, serialLength);
+                serialNo = new String(bytes, 0, serialLength, StandardCharsets.UTF_8);
+            }
+            handler.apply(seq, userId, amount, serialNo, timestamp);
+        }
+        return map.position();
+    }
+
+    /**
+     * 等待落盘的请求
+     */
+    private static final class Waiter {
+
+        private final long seq;
+
+        private final CompletableFuture<Void> future;
+
+        Waiter(long seq, CompletableFuture<Void> future) {
+            this.seq = seq;
+            this.future = future;
+        }
+    }
+
+}
@@ -7,28 +7,158 @@
 
 package com.allinfinance.grpc.demo.account.service;
 
-import java.math.BigDecimal;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.rpc.Code;
 
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.Status;
 import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import com.allinfinance.grpc.demo.AccountProto;
 import com.allinfinance.grpc.demo.AccountServiceGrpc;
+import com.allinfinance.grpc.demo.account.journal.AccountJournal;
+import com.allinfinance.grpc.demo.support.CallDeadlines;
+import com.allinfinance.grpc.demo.support.IdempotencyCache;
+import com.allinfinance.grpc.demo.support.PipelinedStreamObserver;
+import com.allinfinance.grpc.demo.support.SerializingExecutor;
 
 /**
  * 账户服务实现
  *
+ * <p>每个方法处理前检查调用是否已超过截止时间或被取消，处理过程中调用失效时尽快停止，见 {@link CallDeadlines}。</p>
+ *
  */
 public class AccountService extends AccountServiceGrpc.AccountServiceImplBase {
 
     protected final Logger logger = LoggerFactory.getLogger(getClass());
 
-    private static final int DATA_COUNT = 1024;
+    /**
+     * 流式请求的入站窗口：服务端最多缓冲的未处理消息数
+     */
+    private static final int PREFETCH = 32;
+
+    /**
+     * 每个双向流同时处理的最大请求数（默认值）
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+
+    /**
+     * queryBatch 一次最多查询的账户数，更多时使用 queryBatchStreaming
+     */
+    public static final int MAX_BATCH_SIZE = 10_000;
+
+    /**
+     * queryBatchStreaming 每块返回的结果数
+     */
+    private static final int BATCH_CHUNK_SIZE = 1024;
+
+    /**
+     * 批量查询时每个并行任务至少查询的账户数，小批量在当前线程查询
+     */
+    private static final int PARALLEL_SLICE = 4096;
+
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    private final AccountStore store;
+
+    @Nullable
+    private final AccountJournal journal;
+
+    private final Executor executor;
+
+    private final int maxInFlight;
+
+    @Nullable
+    private final IdempotencyCache<String, AddRecord> idempotency;
+
+    @Nullable
+    private final QueryResponseCache queryCache;
+
+    private final CallDeadlines deadlines = new CallDeadlines();
+
+    private final CallDeadlines.Tracker queryDeadlines =
+            this.deadlines.tracker(AccountServiceGrpc.getQueryMethod());
+
+    private final CallDeadlines.Tracker queryServerStreamingDeadlines =
+            this.deadlines.tracker(AccountServiceGrpc.getQueryServerStreamingMethod());
+
+    private final CallDeadlines.Tracker addDeadlines =
+            this.deadlines.tracker(AccountServiceGrpc.getAddClientStreamingMethod());
+
+    private final CallDeadlines.Tracker queryBidiDeadlines =
+            this.deadlines.tracker(AccountServiceGrpc.getQueryBidiStreamingMethod());
+
+    private final CallDeadlines.Tracker queryBatchDeadlines =
+            this.deadlines.tracker(AccountServiceGrpc.getQueryBatchMethod());
+
+    private final CallDeadlines.Tracker queryBatchStreamingDeadlines =
+            this.deadlines.tracker(AccountServiceGrpc.getQueryBatchStreamingMethod());
+
+    public AccountService() {
+        this(new AccountStore(), null, ForkJoinPool.commonPool(), DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @param store 账户存储
+     * @param journal 预写日志，为 null 时不持久化
+     * @param executor 双向流查询的处理线程池
+     * @param maxInFlight 每个双向流同时处理的最大请求数
+     */
+    public AccountService(AccountStore store, @Nullable AccountJournal journal, Executor executor,
+            int maxInFlight) {
+        this(store, journal, executor, maxInFlight, null);
+    }
+
+    /**
+     * @param store 账户存储
+     * @param journal 预写日志，为 null 时不持久化
+     * @param executor 双向流查询的处理线程池
+     * @param maxInFlight 每个双向流同时处理的最大请求数
+     * @param idempotency 入账的幂等缓存（按 serialNo），为 null 时不去重
+     */
+    public AccountService(AccountStore store, @Nullable AccountJournal journal, Executor executor,
+            int maxInFlight, @Nullable IdempotencyCache<String, AddRecord> idempotency) {
+        this(store, journal, executor, maxInFlight, idempotency, null);
+    }
+
+    /**
+     * @param store 账户存储
+     * @param journal 预写日志，为 null 时不持久化
+     * @param executor 双向流查询的处理线程池，也执行入账流的应答与落盘后的回调
+     * @param maxInFlight 每个双向流同时处理的最大请求数
+     * @param idempotency 入账的幂等缓存（按 serialNo），为 null 时不去重
+     * @param queryCache 查询响应缓存，为 null 时不缓存
+     */
+    public AccountService(AccountStore store, @Nullable AccountJournal journal, Executor executor,
+            int maxInFlight, @Nullable IdempotencyCache<String, AddRecord> idempotency,
+            @Nullable QueryResponseCache queryCache) {
+        this.store = store;
+        this.journal = journal;
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.idempotency = idempotency;
+        this.queryCache = queryCache;
+    }
+
+    /**
+     * @return 失效调用的计数，供指标使用
+     */
+    public CallDeadlines deadlines() {
+        return this.deadlines;
+    }
 
     /**
      * {@inheritDoc}
@@ -36,14 +166,16 @@ public class AccountService extends AccountServiceGrpc.AccountServiceImplBase {
     @Override
     public void query(AccountProto.QueryRequest request,
             StreamObserver<AccountProto.QueryResponse> responseObserver) {
-        logger.info("QueryRequest: " + request);
+        Context context = Context.current();
+        if (this.queryDeadlines.rejectIfDead(context, responseObserver)) {
+            return;
+        }
         try {
-            AccountProto.QueryResponse rsp = AccountProto.QueryResponse.newBuilder()
-                    .setCode(Code.OK)
-                    .setSerialNo(request.getSerialNo())
-                    .setMsg("OK; User: " + request.getUserId())
-                    .setAmount(666.6601D)
-                    .build();
+            AccountProto.QueryResponse rsp = this.buildQueryResponse(AccountProto.QueryResponse.newBuilder(),
+                    request.getSerialNo(), request.getUserId());
+            if (this.queryDeadlines.wastedIfDead(context)) {
+                return;
+            }
             responseObserver.onNext(rsp);
         } catch (Exception e) {
             logger.error("query error", e);
@@ -58,30 +190,168 @@ public class AccountService extends AccountServiceGrpc.AccountServiceImplBase {
     @Override
     public void queryServerStreaming(AccountProto.QueryRequest request,
             StreamObserver<AccountProto.QueryResponse> responseObserver) {
-        logger.info("QueryRequest: " + request);
-        for (int i = 1; i <= DATA_COUNT; i++) {
-            AccountProto.QueryResponse rsp = AccountProto.QueryResponse.newBuilder()
-                    .setCode(Code.OK)
-                    .setSerialNo(request.getSerialNo() + '#' + i)
-                    .setMsg("OK; User: " + request.getUserId())
-                    .setAmount(this.calcAmount(666.6602D, i))
+        // 以 userId 作为前缀，返回匹配的账户列表；由 onReadyHandler 驱动，客户端可接收时才生成下一条
+        Context context = Context.current();
+        if (this.queryServerStreamingDeadlines.rejectIfDead(context, responseObserver)) {
+            return;
+        }
+        ServerCallStreamObserver<AccountProto.QueryResponse> observer =
+                (ServerCallStreamObserver<AccountProto.QueryResponse>) responseObserver;
+        AccountListStream stream = new AccountListStream(observer, context, request.getSerialNo(),
+                this.store.cursor(request.getUserId()));
+        observer.setOnCancelHandler(stream::cancel);
+        observer.setOnReadyHandler(stream);
+    }
+
+    /**
+     * 账户列表流
+     *
+     * <p>只在 onReadyHandler 中生成消息，{@link ServerCallStreamObserver#isReady()} 为 false 时立即返回，
+     * 等待下一次 onReady；每个流只持有一个游标（一批账户）与一个 builder，内存占用固定。</p>
+     * <p>gRPC 对同一个调用的回调是串行的，因此 {@link #run()} 不会并发执行。</p>
+     * <p>每生成一条前检查流是否已取消或超过截止时间，失效后不再读取游标。</p>
+     */
+    private final class AccountListStream implements Runnable {
+
+        private final ServerCallStreamObserver<AccountProto.QueryResponse> observer;
+
+        private final Context context;
+
+        private final String serialNo;
+
+        private final AccountStore.Cursor cursor;
+
+        private final AccountProto.QueryResponse.Builder builder = AccountProto.QueryResponse.newBuilder();
+
+        private volatile boolean cancelled;
+
+        private boolean completed;
+
+        private int index;
+
+        AccountListStream(ServerCallStreamObserver<AccountProto.QueryResponse> observer, Context context,
+                String serialNo, AccountStore.Cursor cursor) {
+            this.observer = observer;
+            this.context = context;
+            this.serialNo = serialNo;
+            this.cursor = cursor;
+        }
+
+        @Override
+        public void run() {
+            while (!this.completed && this.observer.isReady()) {
+                if (this.cancelled || CallDeadlines.isDead(this.context)) {
+                    this.abandon();
+                    return;
+                }
+                if (!this.cursor.next()) {
+                    this.completed = true;
+                    this.observer.onCompleted();
+                    return;
+                }
+                AccountProto.QueryResponse rsp = setBalance(this.builder, this.cursor.balance())
+                        .setCode(Code.OK)
+                        .setSerialNo(this.serialNo + '#' + (++this.index))
+                        .setMsg("OK; User: " + this.cursor.userId())
+                        .build();
+                this.observer.onNext(rsp);
+            }
+        }
+
+        void cancel() {
+            this.cancelled = true;
+            this.abandon();
+        }
+
+        /**
+         * 流已失效：不再生成，未生成完的计为放弃（与 {@link #run()} 同在调用的回调中执行）
+         */
+        private void abandon() {
+            if (!this.completed) {
+                this.completed = true;
+                queryServerStreamingDeadlines.abandoned(this.context);
+            }
+        }
+    }
+
+    /**
+     * 从存储中查询账户，构建查询响应；配置了响应缓存时先查缓存，命中时复制缓存响应的字段并设置 serialNo
+     *
+     * @param builder 响应 builder
+     * @param serialNo 请求流水号
+     * @param userId 用户ID
+     * @return 查询响应；账户不存在时返回码为 {@link Code#NOT_FOUND}
+     */
+    private AccountProto.QueryResponse buildQueryResponse(AccountProto.QueryResponse.Builder builder,
+            String serialNo, String userId) {
+        if (this.queryCache == null) {
+            return buildQueryResponse(builder, serialNo, userId, this.store.get(userId));
+        }
+        AccountProto.QueryResponse cached = this.queryCache.get(userId);
+        if (cached == null) {
+            // 先放入加载令牌再读余额：读取期间有写入时令牌已被删除，响应不缓存
+            Object token = this.queryCache.reserve(userId);
+            cached = buildQueryResponse(builder, "", userId, this.store.get(userId));
+            this.queryCache.put(userId, cached, token);
+        }
+        return builder.clear().mergeFrom(cached).setSerialNo(serialNo).build();
+    }
+
+    /**
+     * 构建查询响应
+     *
+     * @param builder 响应 builder
+     * @param serialNo 请求流水号
+     * @param userId 用户ID
+     * @param balance 余额（最小单位），账户不存在时为 {@link AccountStore#ABSENT}
+     * @return 查询响应；账户不存在时返回码为 {@link Code#NOT_FOUND}
+     */
+    private static AccountProto.QueryResponse buildQueryResponse(AccountProto.QueryResponse.Builder builder,
+            String serialNo, String userId, long balance) {
+        if (balance == AccountStore.ABSENT) {
+            return setBalance(builder, 0L)
+                    .setCode(Code.NOT_FOUND)
+                    .setSerialNo(serialNo)
+                    .setMsg("User not found: " + userId)
                     .build();
-            responseObserver.onNext(rsp);
         }
-        responseObserver.onCompleted();
+        return setBalance(builder, balance)
+                .setCode(Code.OK)
+                .setSerialNo(serialNo)
+                .setMsg("OK; User: " + userId)
+                .build();
     }
 
     /**
-     * 计算金额
+     * 设置响应中的余额：定点金额（最小单位 + 精度），同时填充已废弃的 double 字段兼容旧客户端
      *
-     * @param amount 金额
-     * @param i 顺序
-     * @return 金额
-     * @since
+     * @param builder 响应 builder
+     * @param balance 余额（最小单位）
+     * @return builder
      */
-    private double calcAmount(double amount, int i) {
-        BigDecimal val = BigDecimal.valueOf(amount).multiply(BigDecimal.valueOf(i));
-        return val.doubleValue();
+    @SuppressWarnings("deprecation")
+    private static AccountProto.QueryResponse.Builder setBalance(AccountProto.QueryResponse.Builder builder,
+            long balance) {
+        return builder.setAmountMinor(balance)
+                .setAmountScale(AccountStore.AMOUNT_SCALE)
+                .setAmount(Amounts.toDouble(balance, AccountStore.AMOUNT_SCALE));
+    }
+
+    /**
+     * 读取请求中的金额，转换为存储使用的精度
+     *
+     * <p>优先使用定点金额字段；两个字段都为 0 时按旧客户端处理，读取已废弃的 double 字段。</p>
+     *
+     * @param request 添加请求
+     * @return 金额（最小单位）
+     * @throws ArithmeticException 金额溢出或精度超出存储精度
+     */
+    @SuppressWarnings("deprecation")
+    private static long amountOf(AccountProto.AddRequest request) {
+        if (request.getAmountMinor() != 0L || request.getAmountScale() != 0) {
+            return Amounts.rescale(request.getAmountMinor(), request.getAmountScale(), AccountStore.AMOUNT_SCALE);
+        }
+        return Amounts.fromDouble(request.getAmount(), AccountStore.AMOUNT_SCALE);
     }
 
     /**
@@ -90,85 +360,304 @@ public class AccountService extends AccountServiceGrpc.AccountServiceImplBase {
      * @since Rename: queryClientStreaming -> addClientStreaming
      * @since 修改参数为 AddRequest、AddResponse
      * @since 服务端的观察者使用 {@link ServerCallStreamObserver}
+     * @since 使用调用自身的 {@link ServerCallStreamObserver}，手动 request(n) 控制入站流量
      */
     @Override
     public StreamObserver<AccountProto.AddRequest> addClientStreaming(
             StreamObserver<AccountProto.AddResponse> responseObserver) {
+        ServerCallStreamObserver<AccountProto.AddResponse> observer =
+                (ServerCallStreamObserver<AccountProto.AddResponse>) responseObserver;
+        observer.disableAutoRequest();
 
         // 返回 observer 应对多个请求对象
-        return new ServerCallStreamObserver<AccountProto.AddRequest>() {
+        Context context = Context.current();
+        AddStream stream = new AddStream(observer, context);
+        observer.setOnCancelHandler(stream::cancel);
+        if (this.addDeadlines.rejectIfDead(context, observer)) {
+            stream.cancel();
+            return stream;
+        }
+        observer.request(PREFETCH);
+        return stream;
+    }
 
-            private final AtomicInteger count = new AtomicInteger(0);
+    /**
+     * 添加账户流
+     *
+     * <p>入站窗口固定为 {@link #PREFETCH} 条：处理完的消息累计到半个窗口时一次 request(n) 归还。
+     * {@link AccountJournal.Durability#BATCH} 模式下每批等待落盘期间暂停拉取，
+     * 因此客户端推送再快，服务端缓冲的消息也不会超过窗口大小。</p>
+     * <p>超过截止时间后不再入账；等待落盘期间流失效的，落盘后不再应答。</p>
+     * <p>落盘完成的回调在落盘线程上触发，此时调用线程可能正在 onNext 中；{@link ServerCallStreamObserver}
+     * 不是线程安全的，因此 onNext、onError、onCompleted（包括调用线程上的）都经过本流的 {@link SerializingExecutor}；
+     * request(n) 是线程安全的，在调用线程或落盘线程上直接调用，不经过线程池。</p>
+     */
+    private final class AddStream implements StreamObserver<AccountProto.AddRequest> {
 
-            private final ThreadLocal<String> localSerialNo = new InheritableThreadLocal<>();
+        private final ServerCallStreamObserver<AccountProto.AddResponse> observer;
 
-            @Override
-            public void onNext(AccountProto.AddRequest request) {
-                logger.info("AddRequest: {}", request);
-                this.localSerialNo.set(request.getSerialNo());
-                // 获取客户端推送的流数据，处理成功（比如添加到数据库中）后返回结果
-                this.count.incrementAndGet();
-            }
+        private final Executor serializer = new SerializingExecutor(executor);
+
+        private final Context context;
+
+        private volatile boolean cancelled;
 
-            @Override
-            public void onError(Throwable t) {
-                // other side closed with non OK
-                logger.error("Build response error", t);
+        /**
+         * 已调用 onError 或 onCompleted（只在串行执行器中访问）
+         */
+        private boolean closed;
+
+        private int count;
+
+        private String serialNo = "";
+
+        /**
+         * 本流写入预写日志的最大序号
+         */
+        private long lastSeq;
+
+        /**
+         * 本流自上次等待落盘以来写入的记录数
+         */
+        private int unsynced;
+
+        /**
+         * 等待落盘期间暂停拉取；已处理、还没有归还的窗口数（this 保护）
+         */
+        private boolean paused;
+
+        private int credits;
+
+        private long pendingSyncSeq;
+
+        AddStream(ServerCallStreamObserver<AccountProto.AddResponse> observer, Context context) {
+            this.observer = observer;
+            this.context = context;
+        }
+
+        @Override
+        public void onNext(AccountProto.AddRequest request) {
+            if (this.cancelled) {
+                return;
+            }
+            if (addDeadlines.abandonIfDead(this.context)) {
+                this.fail(CallDeadlines.statusOf(this.context));
+                return;
+            }
+            this.serialNo = request.getSerialNo();
+            // 获取客户端推送的流数据，先写预写日志，再写入账户存储
+            long amount;
+            try {
+                amount = amountOf(request);
+            } catch (ArithmeticException e) {
+                this.fail(Status.INVALID_ARGUMENT.withDescription("Invalid amount: " + e.getMessage()));
+                return;
+            }
+            // 重发的请求（serialNo 已入账）不再入账，只计数；第一次入账可能在另一个流中、还没有落盘，
+            // 因此取第一次入账的日志序号，同样等待它落盘后再应答。userId 或金额不同的不是重发，拒绝
+            long seq = this.lastSeq;
+            try {
+                AddRecord record;
+                if (idempotency == null || request.getSerialNo().isEmpty()) {
+                    record = this.apply(request, amount);
+                } else {
+                    record = idempotency.execute(request.getSerialNo(), () -> this.apply(request, amount));
+                    if (!record.matches(request.getUserId(), amount)) {
+                        this.fail(Status.ALREADY_EXISTS.withDescription(
+                                "serialNo " + request.getSerialNo() + " already used by another add"));
+                        return;
+                    }
+                }
+                this.lastSeq = Math.max(this.lastSeq, record.seq());
+            } catch (ArithmeticException e) {
+                this.fail(Status.OUT_OF_RANGE.withDescription("Balance overflow: " + request.getUserId()));
+                return;
+            } catch (RuntimeException e) {
+                // 写日志失败、日志已关闭等：本条没有入账，结束流
+                logger.error("Add error", e);
+                this.fail(Status.INTERNAL.withDescription("Add failed: " + e.getMessage()).withCause(e));
+                return;
             }
+            this.count++;
+
+            if (journal != null && journal.durability() == AccountJournal.Durability.BATCH
+                    && this.lastSeq != seq && ++this.unsynced >= journal.batchSize()) {
+                this.unsynced = 0;
+                this.pauseUntilSynced(this.lastSeq);
+            } else {
+                this.release();
+            }
+        }
 
-            @Override
-            public void onCompleted() {
-                // other side closed with OK
-                AccountProto.AddResponse rsp = AccountProto.AddResponse.newBuilder()
-                        .setCode(Code.OK)
-                        .setSerialNo(this.localSerialNo.get())
-                        .setMsg("All users added.")
-                        .setCount(this.count.get())
-                        .build();
-                responseObserver.onNext(rsp);
-                responseObserver.onCompleted();
+        /**
+         * 入账
+         *
+         * @return 入账的记录；不持久化时日志序号为 0
+         */
+        private AddRecord apply(AccountProto.AddRequest request, long amount) {
+            long[] recordSeq = {0L};
+            if (journal != null) {
+                // 与快照的切点互斥；余额会溢出时不写日志
+                long stamp = store.beginUpdate();
+                try {
+                    store.add(request.getUserId(), amount,
+                            () -> recordSeq[0] = journal.append(request.getUserId(), amount, request.getSerialNo()));
+                } finally {
+                    store.endUpdate(stamp);
+                }
+            } else {
+                store.add(request.getUserId(), amount);
+            }
+            if (queryCache != null) {
+                queryCache.invalidate(request.getUserId());
             }
+            return new AddRecord(recordSeq[0], request.getUserId(), amount);
+        }
 
-            @Override
-            public boolean isReady() {
-                return false;
+        @Override
+        public void onError(Throwable t) {
+            // other side closed with non OK
+            this.cancelled = true;
+            logger.warn("AddRequest stream closed: {}", Status.fromThrowable(t));
+        }
+
+        @Override
+        public void onCompleted() {
+            // other side closed with OK
+            if (this.cancelled) {
+                return;
             }
+            if (journal == null || journal.durability() == AccountJournal.Durability.INTERVAL) {
+                this.serializer.execute(this::reply);
+                return;
+            }
+            // 等待本流的记录落盘后再应答（与其他流共享 fsync）
+            this.sync(this.lastSeq).whenCompleteAsync((v, t) -> {
+                if (t == null) {
+                    this.reply();
+                } else {
+                    this.syncFailed(t);
+                }
+            }, this.serializer);
+        }
 
-            @Override
-            public void setOnReadyHandler(Runnable onReadyHandler) {
-                logger.info("setOnReadyHandler");
+        /**
+         * 等待 {@code seq} 落盘，最多等到调用的截止时间
+         */
+        private CompletableFuture<Void> sync(long seq) {
+            Deadline deadline = this.context.getDeadline();
+            if (deadline == null) {
+                return journal.sync(seq);
             }
+            return journal.sync(seq, Math.max(0L, deadline.timeRemaining(TimeUnit.NANOSECONDS)),
+                    TimeUnit.NANOSECONDS);
+        }
 
-            @Override
-            public void disableAutoInboundFlowControl() {
-                logger.info("disableAutoInboundFlowControl");
+        /**
+         * 等待落盘失败时结束流（在串行执行器中调用）：超过截止时间的计为放弃，不再等到落盘后计为浪费
+         */
+        private void syncFailed(Throwable t) {
+            this.cancelled = true;
+            if (t instanceof TimeoutException) {
+                addDeadlines.abandoned(this.context);
+                this.close(Status.DEADLINE_EXCEEDED.withDescription("Deadline exceeded waiting for journal sync"));
+                return;
             }
+            logger.error("Journal sync error", t);
+            this.close(Status.INTERNAL.withDescription("Journal sync failed").withCause(t));
+        }
+
+        void cancel() {
+            this.cancelled = true;
+        }
 
-            @Override
-            public void request(int count) {
-                logger.info("request: " + count);
+        /**
+         * 结束流（在串行执行器中调用 onError）
+         */
+        private void fail(Status status) {
+            this.cancelled = true;
+            this.serializer.execute(() -> this.close(status));
+        }
+
+        /**
+         * 以错误结束调用，只结束一次（在串行执行器中调用）
+         */
+        private void close(Status status) {
+            if (!this.closed) {
+                this.closed = true;
+                this.observer.onError(status.asRuntimeException());
             }
+        }
 
-            @Override
-            public void setMessageCompression(boolean enable) {
-                logger.info("setMessageCompression: " + enable);
+        /**
+         * 应答（在串行执行器中调用）
+         */
+        private void reply() {
+            if (this.cancelled || CallDeadlines.isDead(this.context)) {
+                // 等待落盘期间流已失效
+                addDeadlines.wasted();
+                return;
             }
+            this.closed = true;
+            AccountProto.AddResponse rsp = AccountProto.AddResponse.newBuilder()
+                    .setCode(Code.OK)
+                    .setSerialNo(this.serialNo)
+                    .setMsg("All users added.")
+                    .setCount(this.count)
+                    .build();
+            this.observer.onNext(rsp);
+            this.observer.onCompleted();
+        }
 
-            @Override
-            public boolean isCancelled() {
-                return false;
+        /**
+         * 处理完一条消息：累计到半个窗口时归还，暂停期间只累计
+         */
+        private void release() {
+            int n;
+            synchronized (this) {
+                if (++this.credits < PREFETCH / 2 || this.paused) {
+                    return;
+                }
+                n = this.credits;
+                this.credits = 0;
             }
+            this.request(n);
+        }
 
-            @Override
-            public void setOnCancelHandler(Runnable onCancelHandler) {
-                logger.info("setOnCancelHandler");
+        private void request(int n) {
+            if (n > 0 && !this.cancelled) {
+                this.observer.request(n);
             }
+        }
 
-            @Override
-            public void setCompression(String compression) {
-                logger.info("setCompression: " + compression);
+        /**
+         * 暂停拉取，直到 {@code seq} 落盘
+         */
+        private void pauseUntilSynced(long seq) {
+            synchronized (this) {
+                this.paused = true;
+                this.credits++;
+                this.pendingSyncSeq = seq;
             }
-        };
+            // 在落盘线程上恢复拉取；失败时结束流要调用 onError，交给串行执行器
+            this.sync(seq).whenComplete((v, t) -> {
+                if (t != null) {
+                    this.serializer.execute(() -> this.syncFailed(t));
+                    return;
+                }
+                int n;
+                synchronized (this) {
+                    if (seq < this.pendingSyncSeq) {
+                        // 之后又有一批在等待落盘，由那一批恢复拉取
+                        return;
+                    }
+                    this.paused = false;
+                    n = this.credits;
+                    this.credits = 0;
+                }
+                this.request(n);
+            });
+        }
     }
 
     /**
@@ -176,82 +665,252 @@ public class AccountService extends AccountServiceGrpc.AccountServiceImplBase {
      *
      * @since
      * @since 服务端的观察者使用 {@link ServerCallStreamObserver}
+     * @since 请求提交到线程池并发处理，响应按完成顺序返回，以 serialNo 对应请求
      */
     @Override
     public StreamObserver<AccountProto.QueryRequest> queryBidiStreaming(
             StreamObserver<AccountProto.QueryResponse> responseObserver) {
-
         // 返回observer应对多个请求对象
-        return new ServerCallStreamObserver<AccountProto.QueryRequest>() {
-
-            private final AccountProto.QueryResponse.Builder builder = AccountProto.QueryResponse.newBuilder();
-
-            @Override
-            public void onNext(AccountProto.QueryRequest request) {
-                logger.info("QueryRequest: {}", request);
-               // for (int i = 1; i <= DATA_COUNT; i++) {
-                for (int i = 1; i <= 2; i++) {
-                    AccountProto.QueryResponse rsp = this.builder.setSerialNo(request.getSerialNo() + '#' + i)
-                            .setCode(Code.OK)
-                            .setMsg("OK; User: " + request.getUserId())
-                            .setAmount(calcAmount(666.6603D, i))
-                            .build();
-                    responseObserver.onNext(rsp);
+        return PipelinedStreamObserver.start(responseObserver, request -> this.executor, this.maxInFlight,
+                request -> this.buildQueryResponse(AccountProto.QueryResponse.newBuilder(),
+                        request.getSerialNo(), request.getUserId()),
+                request -> null, null, this.queryBidiDeadlines);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void queryBatch(AccountProto.QueryBatchRequest request,
+            StreamObserver<AccountProto.QueryBatchResponse> responseObserver) {
+        List<String> userIds = request.getUserIdsList();
+        if (userIds.size() > MAX_BATCH_SIZE) {
+            responseObserver.onError(Status.INVALID_ARGUMENT
+                    .withDescription("Batch too large: " + userIds.size() + " > " + MAX_BATCH_SIZE
+                            + ", use queryBatchStreaming")
+                    .asRuntimeException());
+            return;
+        }
+        Context context = Context.current();
+        // 不在调用线程上等待并行查询，查询完成后（在最后完成的线程上）应答
+        this.getAll(userIds, context).whenComplete((balances, t) -> {
+            try {
+                if (t != null) {
+                    throw t instanceof CompletionException ? t.getCause() : t;
+                }
+                if (balances == null) {
+                    this.queryBatchDeadlines.abandoned(context);
+                    responseObserver.onError(CallDeadlines.statusOf(context).asRuntimeException());
+                    return;
                 }
+                AccountProto.QueryBatchResponse rsp = buildBatchResponse(request.getSerialNo(), userIds, balances,
+                        0, userIds.size());
+                if (this.queryBatchDeadlines.wastedIfDead(context)) {
+                    return;
+                }
+                responseObserver.onNext(rsp);
+            } catch (Throwable e) {
+                logger.error("queryBatch error", e);
+                responseObserver.onError(Status.INTERNAL.withDescription("queryBatch failed").withCause(e)
+                        .asRuntimeException());
+                return;
             }
+            responseObserver.onCompleted();
+        });
+    }
 
-            @Override
-            public void onError(Throwable t) {
-                // other side closed with non OK
-                logger.error("Build response error", t);
-            }
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void queryBatchStreaming(AccountProto.QueryBatchRequest request,
+            StreamObserver<AccountProto.QueryBatchResponse> responseObserver) {
+        Context context = Context.current();
+        // 由 onReadyHandler 驱动，客户端可接收时才构建下一块；查询完成的回调与 gRPC 的回调不在同一个线程，
+        // 都经过串行执行器
+        ServerCallStreamObserver<AccountProto.QueryBatchResponse> observer =
+                (ServerCallStreamObserver<AccountProto.QueryBatchResponse>) responseObserver;
+        Executor serializer = new SerializingExecutor(this.executor);
+        BatchStream stream = new BatchStream(observer, context, this.queryBatchStreamingDeadlines,
+                request.getSerialNo(), request.getUserIdsList());
+        observer.setOnCancelHandler(() -> serializer.execute(stream::cancel));
+        observer.setOnReadyHandler(() -> serializer.execute(stream));
+        this.getAll(request.getUserIdsList(), context).whenCompleteAsync(stream::start, serializer);
+    }
+
+    /**
+     * 批量查询余额：大批量切分为多段，在线程池中并行查询（每段内再按存储分片分组，见
+     * {@link AccountStore#getAll(List, int, int, long[])}），第一段在当前线程查询
+     *
+     * <p>不等待其他段：返回的 future 在最后一段查询完时完成，调用线程不会阻塞在共享的查询线程池上。
+     * 线程池拒绝的段在当前线程查询；查询出错时 future 以该异常失败。</p>
+     * <p>每查询 {@link #PARALLEL_SLICE} 个账户前检查调用是否已失效，失效时其余的段都不再查询。</p>
+     *
+     * @param userIds 用户ID
+     * @param context 调用的上下文
+     * @return 余额，与 {@code userIds} 下标对应；调用已失效时为 null
+     */
+    private CompletableFuture<long[]> getAll(List<String> userIds, Context context) {
+        try {
+            return this.getAllAsync(userIds, context);
+        } catch (RuntimeException e) {
+            CompletableFuture<long[]> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
 
-            @Override
-            public void onCompleted() {
-                // other side closed with OK
-                responseObserver.onCompleted();
+    private CompletableFuture<long[]> getAllAsync(List<String> userIds, Context context) {
+        int n = userIds.size();
+        long[] balances = new long[n];
+        int tasks = Math.min(PARALLELISM, n / PARALLEL_SLICE);
+        if (tasks <= 1) {
+            return CompletableFuture.completedFuture(this.getAll(userIds, 0, n, balances, context) ? balances : null);
+        }
+        int slice = (n + tasks - 1) / tasks;
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[tasks];
+        for (int t = 1; t < tasks; t++) {
+            int from = t * slice;
+            int to = Math.min(n, from + slice);
+            try {
+                futures[t] = CompletableFuture.runAsync(() -> this.getAll(userIds, from, to, balances, context),
+                        this.executor);
+            } catch (RejectedExecutionException e) {
+                this.getAll(userIds, from, to, balances, context);
+                futures[t] = CompletableFuture.completedFuture(null);
             }
+        }
+        this.getAll(userIds, 0, slice, balances, context);
+        futures[0] = CompletableFuture.completedFuture(null);
+        // 某一段因调用失效而提前返回时，调用一定已失效
+        return CompletableFuture.allOf(futures).thenApply(v -> CallDeadlines.isDead(context) ? null : balances);
+    }
 
-            @Override
-            public boolean isReady() {
+    /**
+     * 分段查询 {@code [from, to)} 的余额
+     *
+     * @return 是否全部查询完；调用失效时返回 false
+     */
+    private boolean getAll(List<String> userIds, int from, int to, long[] balances, Context context) {
+        for (int i = from; i < to; i += PARALLEL_SLICE) {
+            if (CallDeadlines.isDead(context)) {
                 return false;
             }
+            this.store.getAll(userIds, i, Math.min(to, i + PARALLEL_SLICE), balances);
+        }
+        return true;
+    }
 
-            @Override
-            public void setOnReadyHandler(Runnable onReadyHandler) {
-                logger.info("setOnReadyHandler");
-            }
+    /**
+     * 构建批量查询响应，包含 {@code [from, to)} 的结果
+     */
+    private static AccountProto.QueryBatchResponse buildBatchResponse(String serialNo, List<String> userIds,
+            long[] balances, int from, int to) {
+        AccountProto.QueryBatchResponse.Builder rsp = AccountProto.QueryBatchResponse.newBuilder()
+                .setCode(Code.OK)
+                .setSerialNo(serialNo)
+                .setMsg("OK")
+                .setOffset(from);
+        AccountProto.QueryResponse.Builder builder = AccountProto.QueryResponse.newBuilder();
+        for (int i = from; i < to; i++) {
+            rsp.addResults(buildQueryResponse(builder, serialNo, userIds.get(i), balances[i]));
+        }
+        return rsp.build();
+    }
 
-            @Override
-            public void disableAutoInboundFlowControl() {
-                logger.info("disableAutoInboundFlowControl");
-            }
+    /**
+     * 批量查询结果流：每块 {@link #BATCH_CHUNK_SIZE} 个结果，只在 onReadyHandler 中构建；流失效后不再构建
+     *
+     * <p>查询完成（{@link #start(long[], Throwable)}）前 onReady 直接返回。所有方法都在同一个串行执行器中调用。</p>
+     */
+    private final class BatchStream implements Runnable {
 
-            @Override
-            public void request(int count) {
-                logger.info("request: " + count);
-            }
+        private final ServerCallStreamObserver<AccountProto.QueryBatchResponse> observer;
 
-            @Override
-            public void setMessageCompression(boolean enable) {
-                logger.info("setMessageCompression: " + enable);
-            }
+        private final Context context;
 
-            @Override
-            public boolean isCancelled() {
-                return false;
+        private final CallDeadlines.Tracker deadlines;
+
+        private final String serialNo;
+
+        private final List<String> userIds;
+
+        /**
+         * 查询完成前为 null
+         */
+        private long[] balances;
+
+        private volatile boolean cancelled;
+
+        private boolean completed;
+
+        private int offset;
+
+        BatchStream(ServerCallStreamObserver<AccountProto.QueryBatchResponse> observer, Context context,
+                CallDeadlines.Tracker deadlines, String serialNo, List<String> userIds) {
+            this.observer = observer;
+            this.context = context;
+            this.deadlines = deadlines;
+            this.serialNo = serialNo;
+            this.userIds = userIds;
+        }
+
+        /**
+         * 查询完成：开始发送
+         *
+         * @param balances 余额；调用已失效时为 null
+         * @param t 查询出错时的异常
+         */
+        void start(@Nullable long[] balances, @Nullable Throwable t) {
+            if (this.completed) {
+                return;
             }
+            if (t != null) {
+                logger.error("queryBatchStreaming error", t);
+                this.completed = true;
+                this.observer.onError(Status.INTERNAL.withDescription("queryBatchStreaming failed").withCause(t)
+                        .asRuntimeException());
+                return;
+            }
+            if (balances == null) {
+                this.abandon();
+                this.observer.onError(CallDeadlines.statusOf(this.context).asRuntimeException());
+                return;
+            }
+            this.balances = balances;
+            this.run();
+        }
 
-            @Override
-            public void setOnCancelHandler(Runnable onCancelHandler) {
-                logger.info("setOnCancelHandler");
+        @Override
+        public void run() {
+            while (this.balances != null && !this.completed && this.observer.isReady()) {
+                if (this.cancelled || CallDeadlines.isDead(this.context)) {
+                    this.abandon();
+                    return;
+                }
+                if (this.offset >= this.balances.length) {
+                    this.completed = true;
+                    this.observer.onCompleted();
+                    return;
+                }
+                int to = Math.min(this.balances.length, this.offset + BATCH_CHUNK_SIZE);
+                this.observer.onNext(buildBatchResponse(this.serialNo, this.userIds, this.balances, this.offset, to));
+                this.offset = to;
             }
+        }
 
-            @Override
-            public void setCompression(String compression) {
-                logger.info("setCompression: " + compression);
+        void cancel() {
+            this.cancelled = true;
+            this.abandon();
+        }
+
+        private void abandon() {
+            if (!this.completed) {
+                this.completed = true;
+                this.deadlines.abandoned(this.context);
             }
-        };
+        }
     }
 
 }
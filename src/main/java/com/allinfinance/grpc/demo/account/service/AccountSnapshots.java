@@ -0,0 +1,508 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.account.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.allinfinance.grpc.demo.account.journal.AccountJournal;
+import com.allinfinance.grpc.demo.metrics.MetricsSource;
+import com.allinfinance.grpc.demo.metrics.PrometheusText;
+
+/**
+ * 账户快照
+ *
+ * <p>后台线程 {@code account-snapshot} 定期（以及关闭时）将全部账户写入快照文件
+ * {@code snapshot-<seq>.snap}，seq 为切点时预写日志的最大序号；启动时加载最新的快照，只回放其后的日志。
+ * 快照不暂停写入，见 {@link AccountStore#snapshot(java.util.function.LongSupplier)}。</p>
+ * <p>文件格式（大端）：</p>
+ * <pre>
+ * int    magic        0x41435354（"ACST"）
+ * int    version      1
+ * long   seq          切点的日志序号
+ * long   count        账户数
+ * int    scale        金额精度
+ * int    sections     分段数
+ * long   indexOffset  索引的位置
+ * 分段：每个账户 short userIdLen、byte[] userId、long balance
+ * 索引：每个分段 long offset、long length、int count、int crc32
+ * </pre>
+ * <p>先写临时文件并落盘，再改名为正式文件，因此正式文件总是完整的。加载时各分段只读映射（mmap）、
+ * 校验 CRC32 后并行写入存储；分段即快照时的存储分片，分片数相同时各线程写入不同的分片，互不竞争。</p>
+ * <p>保留最近 {@code retain} 个快照；最新的快照损坏时退回上一个，因此只删除最旧的保留快照之前的日志段。</p>
+ *
+ */
+public final class AccountSnapshots implements Closeable, MetricsSource {
+
+    private static final Logger logger = LoggerFactory.getLogger(AccountSnapshots.class);
+
+    private static final int MAGIC = 0x41435354;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 4 + 4 + 8;
+
+    private static final int INDEX_ENTRY_BYTES = 8 + 8 + 4 + 4;
+
+    private static final int BUFFER_BYTES = 1024 * 1024;
+
+    private static final String FILE_PREFIX = "snapshot-";
+
+    private static final String FILE_SUFFIX = ".snap";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path dir;
+
+    private final AccountStore store;
+
+    private final AccountJournal journal;
+
+    private final long intervalMillis;
+
+    private final long minRecords;
+
+    private final int retain;
+
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    private final Thread thread;
+
+    /**
+     * 最新快照的日志序号
+     */
+    private volatile long lastSeq;
+
+    private volatile long lastAccounts;
+
+    private volatile long lastBytes;
+
+    private volatile long lastDurationNanos;
+
+    private final LongAdder succeeded = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * @param dir 快照目录，不存在时自动创建
+     * @param store 账户存储（已由 {@link #recover(Path, AccountJournal)} 恢复）
+     * @param journal 预写日志
+     * @param intervalMillis 快照间隔（毫秒），小于等于 0 时只在关闭时快照
+     * @param minRecords 距上一个快照至少新增的日志记录数，不足时跳过本次快照
+     * @param retain 保留的快照数，至少 1
+     * @throws IOException 读写快照目录出错
+     */
+    public AccountSnapshots(Path dir, AccountStore store, AccountJournal journal, long intervalMillis,
+            long minRecords, int retain) throws IOException {
+        if (retain <= 0) {
+            throw new IllegalArgumentException("retain: " + retain);
+        }
+        this.dir = Files.createDirectories(dir);
+        this.store = store;
+        this.journal = journal;
+        this.intervalMillis = intervalMillis;
+        this.minRecords = minRecords;
+        this.retain = retain;
+        for (Path temp : list(dir, FILE_PREFIX + "*" + FILE_SUFFIX + TEMP_SUFFIX)) {
+            Files.delete(temp);
+        }
+        List<Path> snapshots = snapshots(dir);
+        this.lastSeq = snapshots.isEmpty() ? 0L : seqOf(snapshots.get(0));
+
+        this.thread = new Thread(this::run, "account-snapshot");
+        this.thread.setDaemon(true);
+        if (intervalMillis > 0L) {
+            this.thread.start();
+        }
+    }
+
+    /**
+     * 恢复账户：加载最新的完整快照（损坏时依次退回更早的快照），再回放其后的日志
+     *
+     * @param dir 快照目录
+     * @param journal 预写日志
+     * @return 恢复的账户存储
+     * @throws IOException 读取出错，或日志与快照不衔接
+     */
+    public static AccountStore recover(Path dir, AccountJournal journal) throws IOException {
+        long start = System.nanoTime();
+        AccountStore store = null;
+        long seq = 0L;
+        for (Path file : Files.isDirectory(dir) ? snapshots(dir) : Collections.<Path>emptyList()) {
+            try {
+                store = load(file);
+                seq = seqOf(file);
+                break;
+            } catch (IOException | UncheckedIOException e) {
+                logger.warn("Skip snapshot {}: {}", file, e.getMessage());
+            }
+        }
+        if (store == null) {
+            store = new AccountStore();
+        }
+        long loaded = store.size();
+        long loadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (journal.lastSeq() < seq) {
+            throw new IOException("Journal (last seq " + journal.lastSeq() + ") is behind snapshot " + seq);
+        }
+        AccountStore target = store;
+        long[] first = {0L};
+        long replayed = journal.replay(seq, (s, userId, amount, serialNo, timestamp) -> {
+            if (first[0] == 0L) {
+                first[0] = s;
+            }
+            target.add(userId, amount);
+        });
+        if (replayed > 0L && first[0] != seq + 1) {
+            throw new IOException("Journal gap: snapshot at " + seq + ", journal resumes at " + first[0]);
+        }
+        logger.info("Accounts recovered: snapshot seq {} ({} accounts, {} ms), {} journal records replayed, "
+                        + "{} accounts, {} ms", seq, loaded, loadMillis, replayed, store.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return store;
+    }
+
+    /**
+     * 立即创建一个快照，并清理旧的快照与日志段
+     *
+     * @return 快照文件
+     * @throws IOException 写入出错
+     */
+    public synchronized Path snapshot() throws IOException {
+        long start = System.nanoTime();
+        Path file;
+        long accounts;
+        try (AccountStore.Snapshot snapshot = this.store.snapshot(this.journal::lastSeq)) {
+            file = this.dir.resolve(String.format("%s%020d%s", FILE_PREFIX, snapshot.position(), FILE_SUFFIX));
+            Path temp = file.resolveSibling(file.getFileName() + TEMP_SUFFIX);
+            try (FileChannel ch = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                accounts = write(snapshot, ch);
+                ch.force(false);
+                this.lastBytes = ch.size();
+                // 切点之前的日志落盘后才能生效，否则宕机后日志可能落后于快照
+                this.journal.sync(snapshot.position()).join();
+            } catch (CompletionException e) {
+                Files.deleteIfExists(temp);
+                throw new IOException("Journal sync failed", e.getCause());
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            this.lastSeq = snapshot.position();
+        }
+        this.lastAccounts = accounts;
+        this.lastDurationNanos = System.nanoTime() - start;
+        this.cleanup();
+        logger.info("Snapshot written: {} ({} accounts, {} bytes, {} ms)", file, accounts, this.lastBytes,
+                TimeUnit.NANOSECONDS.toMillis(this.lastDurationNanos));
+        return file;
+    }
+
+    /**
+     * 停止后台线程；日志在最新快照之后有新记录时再快照一次，使下次启动几乎不需要回放
+     */
+    @Override
+    public void close() {
+        this.stopped.countDown();
+        try {
+            this.thread.join(TimeUnit.SECONDS.toMillis(60));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (this.journal.lastSeq() > this.lastSeq) {
+            this.snapshotQuietly();
+        }
+    }
+
+    @Override
+    public void writeTo(StringBuilder out) {
+        PrometheusText.header(out, "account_snapshots_total", "counter", "Account snapshots taken, by result.");
+        PrometheusText.sample(out, "account_snapshots_total", this.succeeded.sum(), "result", "ok");
+        PrometheusText.sample(out, "account_snapshots_total", this.failed.sum(), "result", "error");
+        PrometheusText.header(out, "account_snapshot_seq", "gauge", "Journal sequence covered by the latest snapshot.");
+        PrometheusText.sample(out, "account_snapshot_seq", this.lastSeq);
+        PrometheusText.header(out, "account_snapshot_accounts", "gauge", "Accounts in the latest snapshot.");
+        PrometheusText.sample(out, "account_snapshot_accounts", this.lastAccounts);
+        PrometheusText.header(out, "account_snapshot_bytes", "gauge", "Size of the latest snapshot file.");
+        PrometheusText.sample(out, "account_snapshot_bytes", this.lastBytes);
+        PrometheusText.header(out, "account_snapshot_duration_seconds", "gauge",
+                "Time taken by the latest snapshot.");
+        PrometheusText.sample(out, "account_snapshot_duration_seconds", this.lastDurationNanos / 1e9);
+    }
+
+    private void run() {
+        try {
+            while (!this.stopped.await(this.intervalMillis, TimeUnit.MILLISECONDS)) {
+                if (this.journal.lastSeq() - this.lastSeq >= Math.max(1L, this.minRecords)) {
+                    this.snapshotQuietly();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void snapshotQuietly() {
+        try {
+            this.snapshot();
+            this.succeeded.increment();
+        } catch (IOException | RuntimeException e) {
+            this.failed.increment();
+            logger.error("Snapshot error", e);
+        }
+    }
+
+    /**
+     * 保留最近 {@code retain} 个快照，删除最旧的保留快照之前的日志段
+     */
+    private void cleanup() throws IOException {
+        List<Path> snapshots = snapshots(this.dir);
+        for (int i = this.retain; i < snapshots.size(); i++) {
+            Files.delete(snapshots.get(i));
+        }
+        if (snapshots.size() >= this.retain) {
+            long seq = seqOf(snapshots.get(this.retain - 1));
+            int deleted = this.journal.deleteSegmentsUpTo(seq);
+            if (deleted > 0) {
+                logger.info("Deleted {} journal segments up to seq {}", deleted, seq);
+            }
+        }
+    }
+
+    /**
+     * 写入快照：头部先占位，分段与索引写完后再回填
+     *
+     * @return 账户数
+     */
+    private static long write(AccountStore.Snapshot snapshot, FileChannel ch) throws IOException {
+        int sections = snapshot.sections();
+        SectionWriter writer = new SectionWriter(ch, HEADER_BYTES);
+        ByteBuffer index = ByteBuffer.allocate(sections * INDEX_ENTRY_BYTES);
+        long count = 0L;
+        for (int s = 0; s < sections; s++) {
+            long offset = writer.position;
+            writer.begin();
+            try {
+                snapshot.forEach(s, writer);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            writer.flush();
+            index.putLong(offset)
+                    .putLong(writer.position - offset)
+                    .putInt(writer.count)
+                    .putInt((int) writer.crc.getValue());
+            count += writer.count;
+        }
+        long indexOffset = writer.position;
+        index.flip();
+        writeFully(ch, index, indexOffset);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES)
+                .putInt(MAGIC)
+                .putInt(VERSION)
+                .putLong(snapshot.position())
+                .putLong(count)
+                .putInt(AccountStore.AMOUNT_SCALE)
+                .putInt(sections)
+                .putLong(indexOffset);
+        header.flip();
+        writeFully(ch, header, 0L);
+        return count;
+    }
+
+    /**
+     * 加载快照：按索引并行加载各分段
+     */
+    private static AccountStore load(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (ch.size() < HEADER_BYTES) {
+                throw new IOException("Truncated snapshot");
+            }
+            ByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0L, HEADER_BYTES);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a snapshot file");
+            }
+            header.getLong();
+            long count = header.getLong();
+            int scale = header.getInt();
+            int sections = header.getInt();
+            long indexOffset = header.getLong();
+            if (scale != AccountStore.AMOUNT_SCALE) {
+                throw new IOException("Amount scale " + scale + " does not match " + AccountStore.AMOUNT_SCALE);
+            }
+            if (sections < 0 || indexOffset < HEADER_BYTES
+                    || indexOffset + (long) sections * INDEX_ENTRY_BYTES != ch.size()) {
+                throw new IOException("Corrupted snapshot index");
+            }
+            ByteBuffer index = ch.map(FileChannel.MapMode.READ_ONLY, indexOffset,
+                    (long) sections * INDEX_ENTRY_BYTES);
+            long[] offsets = new long[sections];
+            long[] lengths = new long[sections];
+            int[] counts = new int[sections];
+            int[] checksums = new int[sections];
+            long total = 0L;
+            for (int s = 0; s < sections; s++) {
+                offsets[s] = index.getLong();
+                lengths[s] = index.getLong();
+                counts[s] = index.getInt();
+                checksums[s] = index.getInt();
+                if (offsets[s] < HEADER_BYTES || lengths[s] < 0L || lengths[s] > Integer.MAX_VALUE
+                        || offsets[s] + lengths[s] > indexOffset) {
+                    throw new IOException("Corrupted snapshot index");
+                }
+                total += counts[s];
+            }
+            if (total != count) {
+                throw new IOException("Snapshot count mismatch: " + total + " != " + count);
+            }
+            AccountStore store = new AccountStore(count);
+            IntStream.range(0, sections).parallel().forEach(s -> {
+                try {
+                    loadSection(ch, offsets[s], lengths[s], counts[s], checksums[s], store);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            return store;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void loadSection(FileChannel ch, long offset, long length, int count, int checksum,
+            AccountStore store) throws IOException {
+        MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        CRC32 crc = new CRC32();
+        crc.update(map.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Snapshot section checksum mismatch at offset " + offset);
+        }
+        byte[] id = new byte[256];
+        try {
+            for (int i = 0; i < count; i++) {
+                int idLength = map.getShort();
+                if (id.length < idLength) {
+                    id = new byte[idLength];
+                }
+                map.get(id, 0, idLength);
+                store.add(new String(id, 0, idLength, StandardCharsets.UTF_8), map.getLong());
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupted snapshot section at offset " + offset, e);
+        }
+        if (map.hasRemaining()) {
+            throw new IOException("Corrupted snapshot section at offset " + offset);
+        }
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buffer, long position) throws IOException {
+        long p = position;
+        while (buffer.hasRemaining()) {
+            p += ch.write(buffer, p);
+        }
+    }
+
+    /**
+     * @return 快照文件，按序号从新到旧
+     */
+    private static List<Path> snapshots(Path dir) throws IOException {
+        List<Path> snapshots = list(dir, FILE_PREFIX + "*" + FILE_SUFFIX);
+        // 文件名中的序号定长补零，按名称排序即按序号排序
+        Collections.sort(snapshots, Collections.reverseOrder());
+        return snapshots;
+    }
+
+    private static List<Path> list(Path dir, String glob) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, glob)) {
+            for (Path path : stream) {
+                files.add(path);
+            }
+        }
+        return files;
+    }
+
+    private static long seqOf(Path snapshot) {
+        String name = snapshot.getFileName().toString();
+        return Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+    }
+
+    /**
+     * 顺序写入分段，同时计算当前分段的 CRC32
+     */
+    private static final class SectionWriter implements AccountStore.EntryVisitor {
+
+        private final FileChannel ch;
+
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+
+        private final CRC32 crc = new CRC32();
+
+        private long position;
+
+        private int count;
+
+        SectionWriter(FileChannel ch, long position) {
+            this.ch = ch;
+            this.position = position;
+        }
+
+        void begin() {
+            this.crc.reset();
+            this.count = 0;
+        }
+
+        @Override
+        public void accept(String userId, long balance) {
+            byte[] id = userId.getBytes(StandardCharsets.UTF_8);
+            try {
+                if (this.buffer.remaining() < 2 + id.length + 8) {
+                    this.flush();
+                }
+                this.buffer.putShort((short) id.length).put(id).putLong(balance);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            this.count++;
+        }
+
+        void flush() throws IOException {
+            this.buffer.flip();
+            this.crc.update(this.buffer.duplicate());
+            int n = this.buffer.remaining();
+            writeFully(this.ch, this.buffer, this.position);
+            this.position += n;
+            this.buffer.clear();
+        }
+    }
+
+}
@@ -0,0 +1,713 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.account.service;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongSupplier;
+import javax.annotation.Nullable;
+
+/**
+ * 账户存储（内存）
+ *
+ * <p>按 userId 的哈希值分片，分片内使用开放寻址（线性探测）的哈希表，key 与余额分别存放在
+ * {@code String[]} 与 {@code long[]} 中，不为每个账户创建 Entry 对象，也不对余额装箱。</p>
+ * <p>每个分片一把 {@link StampedLock}：读操作先走乐观读，写操作只锁定所在分片，
+ * 因此并发读写的吞吐量随分片数（默认与 CPU 核数相关）线性扩展。</p>
+ * <p>余额以最小单位（{@code 10^-AMOUNT_SCALE}）的整数存放。</p>
+ * <p>快照（{@link #snapshot(LongSupplier)}）不暂停写入：切点只递增快照代数，之后每个分片第一次被写入时
+ * 复制一份数组（写时复制），快照读取切点时的数组，读完即释放。</p>
+ *
+ */
+public final class AccountStore {
+
+    /**
+     * 金额精度：余额按 10^-4 为单位存放
+     */
+    public static final int AMOUNT_SCALE = 4;
+
+    /**
+     * 账户不存在时 {@link #get(String)} 的返回值
+     */
+    public static final long ABSENT = Long.MIN_VALUE;
+
+    private static final float LOAD_FACTOR = 0.75F;
+
+    private static final int MIN_SHARD_CAPACITY = 16;
+
+    private static final int MAX_SHARD_CAPACITY = 1 << 30;
+
+    /**
+     * 游标每次持有读锁最多检查的槽位数
+     */
+    private static final int SCAN_SLOTS = 4096;
+
+    private final Shard[] shards;
+
+    /**
+     * 32 - log2(shards.length)，用哈希值的高位选择分片，低位选择槽位；只有一个分片时不使用
+     */
+    private final int shardShift;
+
+    /**
+     * 快照切点的闸门：写预写日志与入账之间持有读锁，切点只在读取日志序号的瞬间持有写锁
+     */
+    private final StampedLock cutLock = new StampedLock();
+
+    /**
+     * 快照代数：每个切点加 1（cutLock 的写锁保护写入）
+     */
+    private volatile int epoch;
+
+    /**
+     * 使用默认分片数（CPU 核数 * 4，向上取 2 的幂），预估 65536 个账户
+     */
+    public AccountStore() {
+        this(1 << 16);
+    }
+
+    /**
+     * 使用默认分片数
+     *
+     * @param expectedAccounts 预估账户数，用于预分配每个分片的容量，避免扩容
+     */
+    public AccountStore(long expectedAccounts) {
+        this(defaultShardCount(), expectedAccounts);
+    }
+
+    /**
+     * @param shardCount 分片数，会向上取 2 的幂
+     * @param expectedAccounts 预估账户数，用于预分配每个分片的容量，避免扩容
+     */
+    public AccountStore(int shardCount, long expectedAccounts) {
+        if (shardCount <= 0 || shardCount > (1 << 16)) {
+            throw new IllegalArgumentException("shardCount: " + shardCount);
+        }
+        if (expectedAccounts < 0) {
+            throw new IllegalArgumentException("expectedAccounts: " + expectedAccounts);
+        }
+        int count = tableSizeFor(shardCount);
+        long perShard = (long) Math.ceil(expectedAccounts / (double) count / LOAD_FACTOR);
+        int capacity = tableSizeFor((int) Math.min(Math.max(perShard, MIN_SHARD_CAPACITY), MAX_SHARD_CAPACITY));
+
+        this.shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            this.shards[i] = new Shard(capacity);
+        }
+        this.shardShift = 32 - Integer.numberOfTrailingZeros(count);
+    }
+
+    /**
+     * 查询余额
+     *
+     * @param userId 用户ID
+     * @return 余额（最小单位）；账户不存在时返回 {@link #ABSENT}
+     */
+    public long get(String userId) {
+        int hash = hash(userId);
+        return this.shardFor(hash).get(userId, hash);
+    }
+
+    /**
+     * 批量查询余额
+     *
+     * <p>先按分片分组，每个分片的一组账户在同一次乐观读（失败时同一次读锁）内查询，
+     * 分片数组与锁只访问一次；结果按 {@code userIds} 的顺序写入 {@code balances}。</p>
+     * <p>不同的 {@code [from, to)} 区间可以在多个线程中并发查询。</p>
+     *
+     * @param userIds 用户ID
+     * @param from 起始下标（包含）
+     * @param to 结束下标（不包含）
+     * @param balances 余额（最小单位），账户不存在时为 {@link #ABSENT}；与 {@code userIds} 下标对应
+     */
+    public void getAll(List<String> userIds, int from, int to, long[] balances) {
+        int n = to - from;
+        int[] hashes = new int[n];
+        int[] start = new int[this.shards.length + 1];
+        for (int i = 0; i < n; i++) {
+            int hash = hash(userIds.get(from + i));
+            hashes[i] = hash;
+            start[this.shardIndex(hash) + 1]++;
+        }
+        for (int s = 0; s < this.shards.length; s++) {
+            start[s + 1] += start[s];
+        }
+        // 按分片排序下标（计数排序）
+        int[] next = start.clone();
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[next[this.shardIndex(hashes[i])]++] = i;
+        }
+        for (int s = 0; s < this.shards.length; s++) {
+            if (start[s] < start[s + 1]) {
+                this.shards[s].getAll(userIds, from, hashes, order, start[s], start[s + 1], balances);
+            }
+        }
+    }
+
+    /**
+     * 账户是否存在
+     *
+     * @param userId 用户ID
+     * @return 是否存在
+     */
+    public boolean contains(String userId) {
+        return this.get(userId) != ABSENT;
+    }
+
+    /**
+     * 入账：账户不存在时先创建（余额为 0）
+     *
+     * <p>需要与快照保持一致时（写预写日志后入账），在 {@link #beginUpdate()} 与 {@link #endUpdate(long)} 之间调用。</p>
+     *
+     * @param userId 用户ID
+     * @param delta 金额（最小单位），可以为负
+     * @return 入账后的余额
+     * @throws ArithmeticException 余额溢出，此时不入账
+     */
+    public long add(String userId, long delta) {
+        return this.add(userId, delta, null);
+    }
+
+    /**
+     * 入账，写入前先执行 {@code beforeWrite}（如写预写日志）
+     *
+     * <p>先检查余额不会溢出，再执行 {@code beforeWrite}，最后写入，三者都在分片的写锁内：
+     * 溢出时不执行 {@code beforeWrite}，日志中不会出现回放时才失败的记录；{@code beforeWrite} 抛出异常时不入账。
+     * {@code beforeWrite} 执行期间同一分片的读写都在等待，应尽量轻量。</p>
+     *
+     * @param userId 用户ID
+     * @param delta 金额（最小单位），可以为负
+     * @param beforeWrite 写入前执行的操作，可以为 null
+     * @return 入账后的余额
+     * @throws ArithmeticException 余额溢出，此时不执行 {@code beforeWrite}，也不入账
+     */
+    public long add(String userId, long delta, @Nullable Runnable beforeWrite) {
+        int hash = hash(userId);
+        return this.shardFor(hash).add(userId, hash, delta, this.epoch, beforeWrite);
+    }
+
+    /**
+     * 开始一次更新：写预写日志与入账都在 {@link #beginUpdate()} 与 {@link #endUpdate(long)} 之间，
+     * 快照的切点不会落在两者之间
+     *
+     * @return 传给 {@link #endUpdate(long)} 的标记
+     */
+    public long beginUpdate() {
+        return this.cutLock.readLock();
+    }
+
+    /**
+     * 结束一次更新
+     *
+     * @param stamp {@link #beginUpdate()} 的返回值
+     */
+    public void endUpdate(long stamp) {
+        this.cutLock.unlockRead(stamp);
+    }
+
+    /**
+     * 创建快照：等待进行中的更新结束，读取切点（如预写日志的最大序号）并递增快照代数，随后即恢复写入
+     *
+     * <p>同一时刻只能有一个快照；快照用完必须关闭，否则被写入的分片会一直多占一份数组。</p>
+     *
+     * @param cut 在切点读取的位置，与快照一起保存
+     * @return 快照
+     */
+    public synchronized Snapshot snapshot(LongSupplier cut) {
+        long position;
+        int snapshotEpoch;
+        long stamp = this.cutLock.writeLock();
+        try {
+            position = cut.getAsLong();
+            snapshotEpoch = this.epoch + 1;
+            this.epoch = snapshotEpoch;
+        } finally {
+            this.cutLock.unlockWrite(stamp);
+        }
+        return new Snapshot(position, snapshotEpoch);
+    }
+
+    /**
+     * 账户数量
+     *
+     * <p>逐个分片累加，并发写入时为近似值。</p>
+     *
+     * @return 账户数量
+     */
+    public long size() {
+        long size = 0L;
+        for (Shard shard : this.shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    /**
+     * 按 userId 前缀遍历账户
+     *
+     * <p>游标逐个分片分批读取，每批只在读锁内复制少量条目，不会长时间阻塞写操作；
+     * 遍历期间的并发写入可能看得到也可能看不到（弱一致）。</p>
+     *
+     * @param prefix userId 前缀，空串表示全部账户
+     * @return 游标
+     */
+    public Cursor cursor(String prefix) {
+        return new Cursor(prefix);
+    }
+
+    private Shard shardFor(int hash) {
+        return this.shards[this.shardIndex(hash)];
+    }
+
+    /**
+     * 只有一个分片时 shardShift 为 32，而移位数按 32 取模，{@code hash >>> 32} 仍是 hash，需要单独处理
+     */
+    private int shardIndex(int hash) {
+        return this.shards.length == 1 ? 0 : hash >>> this.shardShift;
+    }
+
+    /**
+     * 在 {@link String#hashCode()} 的基础上再做一次扰动，使高位（分片）与低位（槽位）都分布均匀
+     */
+    private static int hash(String userId) {
+        int h = userId.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int tableSizeFor(int n) {
+        int size = 1;
+        while (size < n) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    private static int defaultShardCount() {
+        return tableSizeFor(Math.max(MIN_SHARD_CAPACITY, Runtime.getRuntime().availableProcessors() * 4));
+    }
+
+    /**
+     * 分片：开放寻址哈希表
+     */
+    private static final class Shard {
+
+        private final StampedLock lock = new StampedLock();
+
+        private String[] keys;
+
+        private long[] values;
+
+        private int size;
+
+        private int threshold;
+
+        /**
+         * 快照读取的数组（切点时的状态），快照读完后置为 null
+         */
+        private String[] frozenKeys;
+
+        private long[] frozenValues;
+
+        /**
+         * 已冻结到的快照代数
+         */
+        private int frozenEpoch;
+
+        /**
+         * 当前数组与快照共用，写入前要先复制
+         */
+        private boolean shared;
+
+        Shard(int capacity) {
+            this.keys = new String[capacity];
+            this.values = new long[capacity];
+            this.threshold = (int) (capacity * LOAD_FACTOR);
+        }
+
+        long get(String key, int hash) {
+            long stamp = this.lock.tryOptimisticRead();
+            if (stamp != 0L) {
+                String[] k = this.keys;
+                long[] v = this.values;
+                // 乐观读期间可能发生扩容，数组长度不一致时直接退回读锁
+                if (k.length == v.length) {
+                    long value = find(k, v, key, hash);
+                    if (this.lock.validate(stamp)) {
+                        return value;
+                    }
+                }
+            }
+            stamp = this.lock.readLock();
+            try {
+                return find(this.keys, this.values, key, hash);
+            } finally {
+                this.lock.unlockRead(stamp);
+            }
+        }
+
+        /**
+         * 查询 {@code order[begin, end)} 指向的账户，结果写入 {@code out[base + i]}
+         */
+        void getAll(List<String> userIds, int base, int[] hashes, int[] order, int begin, int end, long[] out) {
+            long stamp = this.lock.tryOptimisticRead();
+            if (stamp != 0L) {
+                String[] k = this.keys;
+                long[] v = this.values;
+                if (k.length == v.length) {
+                    for (int j = begin; j < end; j++) {
+                        int i = order[j];
+                        out[base + i] = find(k, v, userIds.get(base + i), hashes[i]);
+                    }
+                    if (this.lock.validate(stamp)) {
+                        return;
+                    }
+                }
+            }
+            stamp = this.lock.readLock();
+            try {
+                for (int j = begin; j < end; j++) {
+                    int i = order[j];
+                    out[base + i] = find(this.keys, this.values, userIds.get(base + i), hashes[i]);
+                }
+            } finally {
+                this.lock.unlockRead(stamp);
+            }
+        }
+
+        long add(String key, int hash, long delta, int epoch, @Nullable Runnable beforeWrite) {
+            long stamp = this.lock.writeLock();
+            try {
+                int index = this.indexOf(key, hash);
+                boolean absent = this.keys[index] == null;
+                long balance = absent ? delta : Math.addExact(this.values[index], delta);
+                if (beforeWrite != null) {
+                    beforeWrite.run();
+                }
+                if (this.frozenEpoch != epoch) {
+                    this.freeze(epoch);
+                }
+                if (this.shared) {
+                    this.keys = this.keys.clone();
+                    this.values = this.values.clone();
+                    this.shared = false;
+                }
+                this.values[index] = balance;
+                if (absent) {
+                    this.keys[index] = key;
+                    if (++this.size > this.threshold) {
+                        this.resize();
+                    }
+                }
+                return balance;
+            } finally {
+                this.lock.unlockWrite(stamp);
+            }
+        }
+
+        int size() {
+            long stamp = this.lock.tryOptimisticRead();
+            int n = this.size;
+            if (!this.lock.validate(stamp)) {
+                stamp = this.lock.readLock();
+                try {
+                    n = this.size;
+                } finally {
+                    this.lock.unlockRead(stamp);
+                }
+            }
+            return n;
+        }
+
+        /**
+         * 从 {@code from} 槽位开始复制最多 {@code max} 个匹配前缀的条目，最多检查 {@value #SCAN_SLOTS} 个槽位，
+         * 前缀选择性高时也不会长时间持有读锁
+         *
+         * @return 下一次开始的槽位（可能没有复制任何条目）；返回 -1 表示该分片已遍历完
+         */
+        int scan(int from, String prefix, Cursor cursor, int max) {
+            long stamp = this.lock.readLock();
+            try {
+                String[] k = this.keys;
+                long[] v = this.values;
+                int end = (int) Math.min(k.length, (long) from + SCAN_SLOTS);
+                int i = from;
+                for (; i < end && cursor.batchSize < max; i++) {
+                    String key = k[i];
+                    if (key != null && key.startsWith(prefix)) {
+                        cursor.batchKeys[cursor.batchSize] = key;
+                        cursor.batchValues[cursor.batchSize] = v[i];
+                        cursor.batchSize++;
+                    }
+                }
+                return i < k.length ? i : -1;
+            } finally {
+                this.lock.unlockRead(stamp);
+            }
+        }
+
+        /**
+         * 冻结切点时的数组供快照读取，当前数组改为与快照共用（调用方持有写锁）
+         */
+        private void freeze(int epoch) {
+            this.frozenKeys = this.keys;
+            this.frozenValues = this.values;
+            this.frozenEpoch = epoch;
+            this.shared = true;
+        }
+
+        /**
+         * 快照读取分片：切点后还没有被写入的分片在此时冻结
+         */
+        void visit(int epoch, EntryVisitor visitor) {
+            String[] k;
+            long[] v;
+            long stamp = this.lock.writeLock();
+            try {
+                if (this.frozenEpoch != epoch) {
+                    this.freeze(epoch);
+                }
+                k = this.frozenKeys;
+                v = this.frozenValues;
+            } finally {
+                this.lock.unlockWrite(stamp);
+            }
+            if (k == null) {
+                return;
+            }
+            for (int i = 0; i < k.length; i++) {
+                if (k[i] != null) {
+                    visitor.accept(k[i], v[i]);
+                }
+            }
+        }
+
+        /**
+         * 快照读完（或放弃）：释放冻结的数组；还没有被写入的分片不必再复制
+         */
+        void release(int epoch) {
+            long stamp = this.lock.writeLock();
+            try {
+                if (this.frozenEpoch == epoch && this.frozenKeys == this.keys) {
+                    this.shared = false;
+                }
+                this.frozenEpoch = epoch;
+                this.frozenKeys = null;
+                this.frozenValues = null;
+            } finally {
+                this.lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * 返回 key 所在的槽位，或应插入的空槽位（调用方持有写锁）
+         */
+        private int indexOf(String key, int hash) {
+            String[] k = this.keys;
+            int mask = k.length - 1;
+            int i = hash & mask;
+            while (k[i] != null && !k[i].equals(key)) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        private void resize() {
+            String[] oldKeys = this.keys;
+            long[] oldValues = this.values;
+            int capacity = oldKeys.length << 1;
+            if (capacity > MAX_SHARD_CAPACITY) {
+                throw new IllegalStateException("Shard capacity exceeded: " + oldKeys.length);
+            }
+            String[] newKeys = new String[capacity];
+            long[] newValues = new long[capacity];
+            int mask = capacity - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                String key = oldKeys[j];
+                if (key != null) {
+                    int i = hash(key) & mask;
+                    while (newKeys[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    newKeys[i] = key;
+                    newValues[i] = oldValues[j];
+                }
+            }
+            this.keys = newKeys;
+            this.values = newValues;
+            this.threshold = (int) (capacity * LOAD_FACTOR);
+        }
+
+        /**
+         * 查找 key 对应的余额；最多探测一整圈，保证乐观读时也能结束
+         */
+        private static long find(String[] k, long[] v, String key, int hash) {
+            int mask = k.length - 1;
+            int i = hash & mask;
+            for (int n = 0; n < k.length; n++) {
+                String current = k[i];
+                if (current == null) {
+                    return ABSENT;
+                }
+                if (current.equals(key)) {
+                    return v[i];
+                }
+                i = (i + 1) & mask;
+            }
+            return ABSENT;
+        }
+    }
+
+    /**
+     * 快照中账户的访问器
+     */
+    @FunctionalInterface
+    public interface EntryVisitor {
+
+        /**
+         * @param userId 用户ID
+         * @param balance 余额（最小单位）
+         */
+        void accept(String userId, long balance);
+    }
+
+    /**
+     * 快照：切点时的全部账户，按分片分段读取
+     *
+     * <p>不同的分段可以在多个线程中并发读取；读取期间写入不受影响。</p>
+     */
+    public final class Snapshot implements Closeable {
+
+        private final long position;
+
+        private final int snapshotEpoch;
+
+        private Snapshot(long position, int snapshotEpoch) {
+            this.position = position;
+            this.snapshotEpoch = snapshotEpoch;
+        }
+
+        /**
+         * @return 切点读取的位置
+         */
+        public long position() {
+            return this.position;
+        }
+
+        /**
+         * @return 分段数（分片数）
+         */
+        public int sections() {
+            return shards.length;
+        }
+
+        /**
+         * 读取一个分段的全部账户，读完即释放该分段
+         *
+         * @param section 分段
+         * @param visitor 访问器
+         */
+        public void forEach(int section, EntryVisitor visitor) {
+            Shard shard = shards[section];
+            try {
+                shard.visit(this.snapshotEpoch, visitor);
+            } finally {
+                shard.release(this.snapshotEpoch);
+            }
+        }
+
+        /**
+         * 释放全部分段
+         */
+        @Override
+        public void close() {
+            for (Shard shard : shards) {
+                shard.release(this.snapshotEpoch);
+            }
+        }
+    }
+
+    /**
+     * 账户游标
+     *
+     * <p>非线程安全，每个调用方（如每个流）持有自己的游标；内存占用固定为一批（{@value #BATCH}）条目。</p>
+     */
+    public final class Cursor {
+
+        private static final int BATCH = 64;
+
+        private final String prefix;
+
+        private final String[] batchKeys = new String[BATCH];
+
+        private final long[] batchValues = new long[BATCH];
+
+        private int batchSize;
+
+        private int batchPos;
+
+        private int shardIndex;
+
+        private int slot;
+
+        private String userId;
+
+        private long balance;
+
+        private Cursor(String prefix) {
+            this.prefix = prefix == null ? "" : prefix;
+        }
+
+        /**
+         * 移动到下一个账户
+         *
+         * @return 是否还有账户
+         */
+        public boolean next() {
+            if (this.batchPos == this.batchSize && !this.fill()) {
+                this.userId = null;
+                return false;
+            }
+            this.userId = this.batchKeys[this.batchPos];
+            this.balance = this.batchValues[this.batchPos];
+            this.batchKeys[this.batchPos++] = null;
+            return true;
+        }
+
+        /**
+         * @return 当前账户的用户ID
+         */
+        public String userId() {
+            return this.userId;
+        }
+
+        /**
+         * @return 当前账户的余额（最小单位）
+         */
+        public long balance() {
+            return this.balance;
+        }
+
+        private boolean fill() {
+            this.batchSize = 0;
+            this.batchPos = 0;
+            while (this.batchSize == 0 && this.shardIndex < shards.length) {
+                int nextSlot = shards[this.shardIndex].scan(this.slot, this.prefix, this, BATCH);
+                if (nextSlot < 0) {
+                    this.shardIndex++;
+                    this.slot = 0;
+                } else {
+                    this.slot = nextSlot;
+                }
+            }
+            return this.batchSize > 0;
+        }
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.account.service;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.allinfinance.grpc.demo.account.journal.AccountJournal;
+import com.allinfinance.grpc.demo.support.IdempotencyCache;
+
+/**
+ * 已入账的请求：入账幂等缓存（按 serialNo）的值
+ *
+ * <p>重发的请求只有 userId 与金额都与第一次相同时才视为重复，否则是另一笔入账误用了同一个 serialNo，
+ * 应当拒绝而不是当作已入账应答，见 {@link #matches(String, long)}。</p>
+ */
+public final class AddRecord {
+
+    private final long seq;
+
+    private final String userId;
+
+    private final long amount;
+
+    /**
+     * @param seq 记录的日志序号；不持久化时为 0
+     * @param userId 用户ID
+     * @param amount 金额（最小单位）
+     */
+    public AddRecord(long seq, String userId, long amount) {
+        this.seq = seq;
+        this.userId = userId;
+        this.amount = amount;
+    }
+
+    /**
+     * @return 记录的日志序号；不持久化时为 0
+     */
+    public long seq() {
+        return this.seq;
+    }
+
+    /**
+     * @return 用户ID
+     */
+    public String userId() {
+        return this.userId;
+    }
+
+    /**
+     * @return 金额（最小单位）
+     */
+    public long amount() {
+        return this.amount;
+    }
+
+    /**
+     * @param userId 重发请求的用户ID
+     * @param amount 重发请求的金额（最小单位）
+     * @return 与第一次入账相同
+     */
+    public boolean matches(String userId, long amount) {
+        return this.amount == amount && this.userId.equals(userId);
+    }
+
+    /**
+     * 从预写日志恢复入账的幂等缓存：回放最近 {@code maxRecords} 条记录，
+     * 写入时间仍在时间窗口内、带 serialNo 的放入缓存，剩余的窗口与重启前相同
+     *
+     * <p>不只回放快照之后的日志：正常关闭时会再快照一次，其后没有日志，重启前刚入账的请求同样需要去重。
+     * 已随快照清理的日志段无法恢复。</p>
+     *
+     * @param journal 预写日志
+     * @param cache 入账的幂等缓存
+     * @param maxRecords 最多回放的记录数（缓存的最大条目数）
+     * @param window 时间窗口
+     * @param unit 时间单位
+     * @return 放入缓存的条目数
+     * @throws IOException 读取日志出错
+     */
+    public static long reload(AccountJournal journal, IdempotencyCache<String, AddRecord> cache, long maxRecords,
+            long window, TimeUnit unit) throws IOException {
+        long windowMillis = unit.toMillis(window);
+        long now = System.currentTimeMillis();
+        long[] loaded = {0L};
+        journal.replay(Math.max(0L, journal.lastSeq() - maxRecords), (seq, userId, amount, serialNo, timestamp) -> {
+            long remaining = windowMillis - Math.max(0L, now - timestamp);
+            if (!serialNo.isEmpty() && remaining > 0L) {
+                cache.preload(serialNo, new AddRecord(seq, userId, amount), remaining, TimeUnit.MILLISECONDS);
+                loaded[0]++;
+            }
+        });
+        return loaded[0];
+    }
+
+    @Override
+    public String toString() {
+        return "AddRecord{seq=" + this.seq + ", userId=" + this.userId + ", amount=" + this.amount + '}';
+    }
+
+}
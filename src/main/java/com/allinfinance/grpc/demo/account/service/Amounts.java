@@ -0,0 +1,113 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.account.service;
+
+/**
+ * 定点金额运算
+ *
+ * <p>金额以「最小单位整数 + 精度（小数位数）」表示，例如 666.66 元、精度 2 表示为 {@code 66666}。
+ * 所有运算都在 long 上完成，不创建 {@link java.math.BigDecimal}，溢出或丢失精度时抛出
+ * {@link ArithmeticException}。</p>
+ *
+ */
+public final class Amounts {
+
+    /**
+     * 支持的最大精度
+     */
+    public static final int MAX_SCALE = 18;
+
+    private static final long[] POW10 = new long[MAX_SCALE + 1];
+
+    static {
+        POW10[0] = 1L;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10L;
+        }
+    }
+
+    private Amounts() {
+    }
+
+    /**
+     * 转换精度
+     *
+     * @param amount 金额（最小单位）
+     * @param fromScale 原精度
+     * @param toScale 目标精度
+     * @return 目标精度下的金额
+     * @throws ArithmeticException 溢出，或降低精度时会丢失非零的小数位
+     */
+    public static long rescale(long amount, int fromScale, int toScale) {
+        checkScale(fromScale);
+        checkScale(toScale);
+        if (fromScale == toScale) {
+            return amount;
+        }
+        if (fromScale < toScale) {
+            return Math.multiplyExact(amount, POW10[toScale - fromScale]);
+        }
+        long divisor = POW10[fromScale - toScale];
+        if (amount % divisor != 0L) {
+            throw new ArithmeticException("Rounding necessary: " + amount + " scale " + fromScale + " -> " + toScale);
+        }
+        return amount / divisor;
+    }
+
+    /**
+     * 金额乘以整数
+     *
+     * @param amount 金额（最小单位）
+     * @param multiplier 乘数
+     * @return 乘积（精度不变）
+     * @throws ArithmeticException 溢出
+     */
+    public static long multiply(long amount, long multiplier) {
+        return Math.multiplyExact(amount, multiplier);
+    }
+
+    /**
+     * 浮点金额转换为最小单位（四舍五入），仅用于兼容旧的 double 字段
+     *
+     * @param amount 金额
+     * @param scale 精度
+     * @return 金额（最小单位）
+     * @throws ArithmeticException 金额不是有限值（NaN、无穷大），或转换后超出 long 的范围
+     */
+    public static long fromDouble(double amount, int scale) {
+        checkScale(scale);
+        if (!Double.isFinite(amount)) {
+            throw new ArithmeticException("Not a finite amount: " + amount);
+        }
+        double scaled = amount * POW10[scale];
+        // Math.round 超出范围时返回 Long.MAX_VALUE / MIN_VALUE，不会报错
+        if (Math.abs(scaled) >= 0x1p63) {
+            throw new ArithmeticException("Overflow: " + amount + " scale " + scale);
+        }
+        return Math.round(scaled);
+    }
+
+    /**
+     * 最小单位转换为浮点金额，仅用于兼容旧的 double 字段
+     *
+     * @param amount 金额（最小单位）
+     * @param scale 精度
+     * @return 金额
+     */
+    public static double toDouble(long amount, int scale) {
+        checkScale(scale);
+        return amount / (double) POW10[scale];
+    }
+
+    private static void checkScale(int scale) {
+        if (scale < 0 || scale > MAX_SCALE) {
+            throw new ArithmeticException("Unsupported scale: " + scale);
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.account.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.allinfinance.grpc.demo.AccountProto;
+import com.allinfinance.grpc.demo.metrics.MetricsSource;
+import com.allinfinance.grpc.demo.metrics.PrometheusText;
+import com.allinfinance.grpc.demo.support.BoundedCache;
+
+/**
+ * 查询响应缓存：按 userId 缓存构建好的 {@link AccountProto.QueryResponse}（不含 serialNo）
+ *
+ * <p>命中时不读取存储、不拼接返回消息、不转换金额：把缓存响应的字段复制到调用方复用的 builder，
+ * 再设置 serialNo。缓存的是消息而不是序列化后的字节，响应仍由生成的 stub 序列化。</p>
+ *
+ * <p>写入账户后调用 {@link #invalidate(String)}，删除该账户的条目。为避免查询与写入并发时缓存旧余额，
+ * 读取账户之前先用 {@link #reserve(String)} 放入一个加载令牌，构建好的响应只在令牌仍在缓存中时替换它：
+ * 读取期间有写入时令牌已被删除，响应不缓存。失效只影响被写入的账户，失效的条目直接删除，不占用容量。</p>
+ *
+ */
+public final class QueryResponseCache implements MetricsSource {
+
+    private final BoundedCache<String, Entry> cache;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder discarded = new LongAdder();
+
+    /**
+     * @param maximumSize 最大条目数
+     * @param ttl 条目存活时间，0 表示不过期
+     * @param unit 时间单位
+     */
+    public QueryResponseCache(int maximumSize, long ttl, TimeUnit unit) {
+        this.cache = new BoundedCache<>(maximumSize, ttl, unit);
+    }
+
+    /**
+     * @param userId 用户ID
+     * @return 缓存的响应（不含 serialNo）；不存在、过期或正在加载时返回 null
+     */
+    public AccountProto.QueryResponse get(String userId) {
+        Entry entry = this.cache.get(userId);
+        if (entry == null || entry.response == null) {
+            this.misses.increment();
+            return null;
+        }
+        this.hits.increment();
+        return entry.response;
+    }
+
+    /**
+     * 读取账户之前调用，结果传给 {@link #put(String, AccountProto.QueryResponse, Object)}
+     *
+     * <p>其他线程正在加载同一个账户时返回它的令牌，哪一个先放入响应都一样。</p>
+     *
+     * @param userId 用户ID
+     * @return 加载令牌
+     */
+    public Object reserve(String userId) {
+        Entry token = new Entry(null);
+        Entry existing = this.cache.putIfAbsent(userId, token);
+        // 已有缓存的响应（其他线程刚放入）：令牌不在缓存中，put 时丢弃
+        return existing.response == null ? existing : token;
+    }
+
+    /**
+     * 令牌仍在缓存中（读取账户之后没有写入）时放入响应，否则丢弃
+     *
+     * @param userId 用户ID
+     * @param response 响应（不含 serialNo）
+     * @param token {@link #reserve(String)} 返回的加载令牌
+     */
+    public void put(String userId, AccountProto.QueryResponse response, Object token) {
+        if (!(token instanceof Entry) || !this.cache.replace(userId, (Entry) token, new Entry(response))) {
+            this.discarded.increment();
+        }
+    }
+
+    /**
+     * 写入账户之后调用：删除该账户的条目或加载令牌
+     *
+     * @param userId 用户ID
+     */
+    public void invalidate(String userId) {
+        this.cache.invalidate(userId);
+    }
+
+    @Override
+    public void writeTo(StringBuilder out) {
+        long hit = this.hits.sum();
+        long total = hit + this.misses.sum();
+        PrometheusText.header(out, "query_cache_requests_total", "counter", "Query response cache lookups.");
+        PrometheusText.sample(out, "query_cache_requests_total", hit, "result", "hit");
+        PrometheusText.sample(out, "query_cache_requests_total", this.misses.sum(), "result", "miss");
+        PrometheusText.header(out, "query_cache_hit_ratio", "gauge", "Query response cache hit ratio since start.");
+        PrometheusText.sample(out, "query_cache_hit_ratio", total == 0L ? 0.0 : hit / (double) total);
+        PrometheusText.header(out, "query_cache_discarded_total", "counter",
+                "Query responses not cached because the account was written, or another load finished first.");
+        PrometheusText.sample(out, "query_cache_discarded_total", this.discarded.sum());
+        PrometheusText.header(out, "query_cache_evictions_total", "counter",
+                "Query response cache entries evicted because the cache was full.");
+        PrometheusText.sample(out, "query_cache_evictions_total", this.cache.evictions());
+        PrometheusText.header(out, "query_cache_entries", "gauge", "Query response cache entries.");
+        PrometheusText.sample(out, "query_cache_entries", this.cache.size());
+    }
+
+    /**
+     * 缓存条目：响应为 null 时是加载令牌
+     */
+    private static final class Entry {
+
+        final AccountProto.QueryResponse response;
+
+        Entry(AccountProto.QueryResponse response) {
+            this.response = response;
+        }
+    }
+
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.admission;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.allinfinance.grpc.demo.metrics.MetricsSource;
+import com.allinfinance.grpc.demo.metrics.PrometheusText;
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerStreamTracer;
+import io.grpc.Status;
+
+/**
+ * 准入控制：每个方法一个并发限制，超过限制的调用立即以 {@link Status#RESOURCE_EXHAUSTED} 结束，
+ * 不再进入服务方法排队
+ *
+ * <p>一元方法的限制由 {@link GradientLimit} 按延迟自适应调整；延迟从请求到达传输层开始计算
+ * （{@link #arrivalTracer()}），包括在应用线程池中排队的时间。流式方法的延迟是整个流的时长，
+ * 不能反映负载，使用固定的并发流数限制。</p>
+ * <p>任一 {@link Priority#HIGH} 方法拥塞（延迟明显高于长期水平）时，{@link Priority#LOW} 方法的新调用直接拒绝。</p>
+ *
+ */
+public final class AdmissionControlInterceptor implements ServerInterceptor, MetricsSource {
+
+    private static final Context.Key<Long> ARRIVAL = Context.key("admission-arrival");
+
+    private static final ServerStreamTracer.Factory ARRIVAL_TRACER = new ServerStreamTracer.Factory() {
+        @Override
+        public ServerStreamTracer newServerStreamTracer(String fullMethodName, Metadata headers) {
+            long arrival = System.nanoTime();
+            return new ServerStreamTracer() {
+                @Override
+                public Context filterContext(Context context) {
+                    return context.withValue(ARRIVAL, arrival);
+                }
+            };
+        }
+    };
+
+    private final Map<String, Priority> priorities;
+
+    private final int initialLimit;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final int maxStreams;
+
+    private final ConcurrentMap<String, MethodLimiter> methods = new ConcurrentHashMap<>();
+
+    private final List<MethodLimiter> highPriority = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param priorities 方法（全名）的优先级，未配置的为 {@link Priority#NORMAL}
+     * @param initialLimit 一元方法的初始并发限制
+     * @param minLimit 一元方法的最小并发限制
+     * @param maxLimit 一元方法的最大并发限制
+     * @param maxStreams 流式方法的最大并发流数
+     */
+    public AdmissionControlInterceptor(Map<String, Priority> priorities, int initialLimit, int minLimit,
+            int maxLimit, int maxStreams) {
+        if (minLimit <= 0 || minLimit > maxLimit || initialLimit < minLimit || initialLimit > maxLimit
+                || maxStreams <= 0) {
+            throw new IllegalArgumentException("initialLimit: " + initialLimit + ", minLimit: " + minLimit
+                    + ", maxLimit: " + maxLimit + ", maxStreams: " + maxStreams);
+        }
+        this.priorities = priorities;
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxStreams = maxStreams;
+    }
+
+    /**
+     * @return 记录请求到达时间的 tracer，需要通过 {@code ServerBuilder#addStreamTracerFactory} 注册；
+     *         未注册时延迟从进入拦截器开始计算
+     */
+    public static ServerStreamTracer.Factory arrivalTracer() {
+        return ARRIVAL_TRACER;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+            ServerCallHandler<ReqT, RespT> next) {
+        MethodLimiter method = this.method(call.getMethodDescriptor());
+        int limit = method.limit();
+        if (method.inFlight.incrementAndGet() > limit) {
+            method.inFlight.decrementAndGet();
+            method.rejectedLimit.increment();
+            call.close(Status.RESOURCE_EXHAUSTED.withDescription("Concurrency limit exceeded: " + limit),
+                    new Metadata());
+            return new ServerCall.Listener<ReqT>() {
+            };
+        }
+        if (method.priority == Priority.LOW && this.highPriorityCongested()) {
+            method.inFlight.decrementAndGet();
+            method.rejectedPriority.increment();
+            call.close(Status.RESOURCE_EXHAUSTED.withDescription("Shedding low priority calls"), new Metadata());
+            return new ServerCall.Listener<ReqT>() {
+            };
+        }
+        Long arrival = ARRIVAL.get();
+        AdmittedCall<ReqT, RespT> admitted = new AdmittedCall<>(call, method,
+                arrival != null ? arrival : System.nanoTime());
+        ServerCall.Listener<ReqT> listener;
+        try {
+            listener = next.startCall(admitted, headers);
+        } catch (RuntimeException e) {
+            admitted.release(Status.Code.UNKNOWN);
+            throw e;
+        }
+        Context context = Context.current();
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(listener) {
+            @Override
+            public void onCancel() {
+                // 超过截止时间时服务端只收到 onCancel（不经过 close），按截止时间区分超时与客户端取消
+                Deadline deadline = context.getDeadline();
+                admitted.release(deadline != null && deadline.isExpired()
+                        ? Status.Code.DEADLINE_EXCEEDED
+                        : Status.Code.CANCELLED);
+                super.onCancel();
+            }
+        };
+    }
+
+    @Override
+    public void writeTo(StringBuilder out) {
+        PrometheusText.header(out, "admission_limit", "gauge", "Current concurrency limit per method.");
+        for (MethodLimiter method : this.methods.values()) {
+            PrometheusText.sample(out, "admission_limit", method.limit(), "method", method.name);
+        }
+        PrometheusText.header(out, "admission_in_flight", "gauge", "Admitted calls in flight per method.");
+        for (MethodLimiter method : this.methods.values()) {
+            PrometheusText.sample(out, "admission_in_flight", method.inFlight.get(), "method", method.name);
+        }
+        PrometheusText.header(out, "admission_rejected_total", "counter",
+                "Calls rejected with RESOURCE_EXHAUSTED, by reason.");
+        for (MethodLimiter method : this.methods.values()) {
+            PrometheusText.sample(out, "admission_rejected_total", method.rejectedLimit.sum(),
+                    "method", method.name, "reason", "limit");
+            PrometheusText.sample(out, "admission_rejected_total", method.rejectedPriority.sum(),
+                    "method", method.name, "reason", "priority");
+        }
+    }
+
+    private MethodLimiter method(MethodDescriptor<?, ?> descriptor) {
+        MethodLimiter method = this.methods.get(descriptor.getFullMethodName());
+        if (method == null) {
+            method = this.methods.computeIfAbsent(descriptor.getFullMethodName(), name -> {
+                MethodLimiter created = new MethodLimiter(name,
+                        this.priorities.getOrDefault(name, Priority.NORMAL),
+                        descriptor.getType() == MethodDescriptor.MethodType.UNARY
+                                ? new GradientLimit(this.initialLimit, this.minLimit, this.maxLimit)
+                                : null,
+                        this.maxStreams);
+                if (created.priority == Priority.HIGH && created.gradient != null) {
+                    this.highPriority.add(created);
+                }
+                return created;
+            });
+        }
+        return method;
+    }
+
+    private boolean highPriorityCongested() {
+        for (MethodLimiter method : this.highPriority) {
+            if (method.gradient.congested()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 调用失败是否说明过载（用于乘性减少限制）
+     *
+     * <p>只有超时算过载（包括截止时间已过时收到的 onCancel）：客户端取消与过载无关，
+     * 应用自己返回的 {@code RESOURCE_EXHAUSTED}（如限额、限流）也不是服务端排队造成的；
+     * 这些调用仍作为延迟样本参与梯度计算。</p>
+     */
+    private static boolean isDrop(Status.Code code) {
+        return code == Status.Code.DEADLINE_EXCEEDED;
+    }
+
+    /**
+     * 一个方法的限制与计数
+     */
+    private static final class MethodLimiter {
+
+        final String name;
+
+        final Priority priority;
+
+        /**
+         * 一元方法的自适应限制；流式方法为 null
+         */
+        final GradientLimit gradient;
+
+        final int fixedLimit;
+
+        final AtomicInteger inFlight = new AtomicInteger(0);
+
+        final LongAdder rejectedLimit = new LongAdder();
+
+        final LongAdder rejectedPriority = new LongAdder();
+
+        MethodLimiter(String name, Priority priority, GradientLimit gradient, int fixedLimit) {
+            this.name = name;
+            this.priority = priority;
+            this.gradient = gradient;
+            this.fixedLimit = fixedLimit;
+        }
+
+        int limit() {
+            return this.gradient != null ? this.gradient.limit() : this.fixedLimit;
+        }
+    }
+
+    /**
+     * 调用结束（正常关闭或被取消）时释放并发数，一元方法同时记录延迟样本
+     */
+    private static final class AdmittedCall<ReqT, RespT>
+            extends ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT> {
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<AdmittedCall> RELEASED =
+                AtomicIntegerFieldUpdater.newUpdater(AdmittedCall.class, "released");
+
+        private final MethodLimiter method;
+
+        private final long startNanos;
+
+        private volatile int released;
+
+        AdmittedCall(ServerCall<ReqT, RespT> delegate, MethodLimiter method, long startNanos) {
+            super(delegate);
+            this.method = method;
+            this.startNanos = startNanos;
+        }
+
+        @Override
+        public void close(Status status, Metadata trailers) {
+            this.release(status.getCode());
+            super.close(status, trailers);
+        }
+
+        void release(Status.Code code) {
+            if (!RELEASED.compareAndSet(this, 0, 1)) {
+                return;
+            }
+            int inFlight = this.method.inFlight.getAndDecrement();
+            if (this.method.gradient != null) {
+                long now = System.nanoTime();
+                this.method.gradient.onSample(now - this.startNanos, inFlight, isDrop(code), now);
+            }
+        }
+    }
+
+}
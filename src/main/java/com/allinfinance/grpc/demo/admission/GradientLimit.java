@@ -0,0 +1,152 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.admission;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 基于延迟梯度的自适应并发限制
+ *
+ * <p>每个窗口（至少 {@value #MIN_SAMPLES} 个样本、{@code 100ms}）计算一次：短期延迟为窗口内的平均值，
+ * 长期延迟为各窗口的指数移动平均；梯度 = clamp({@value #TOLERANCE} * 长期 / 短期, 0.5, 1)，
+ * 新限制 = 限制 * 梯度 + sqrt(限制)。延迟未上升时限制逐步增加，排队使延迟上升时按比例收缩；
+ * 窗口内有调用超时（drop）时直接乘以 {@value #BACKOFF}。实际并发远低于限制时不增加（避免空载时无限增长）。</p>
+ * <p>样本的累加不加锁，每个窗口只有一个线程计算新限制。</p>
+ *
+ */
+final class GradientLimit {
+
+    private static final double TOLERANCE = 1.5;
+
+    private static final double SMOOTHING = 0.2;
+
+    private static final double BACKOFF = 0.9;
+
+    /**
+     * 长期延迟的平滑窗口数
+     */
+    private static final int LONG_WINDOW = 600;
+
+    private static final int MIN_SAMPLES = 10;
+
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final LongAdder rttSum = new LongAdder();
+
+    private final LongAdder samples = new LongAdder();
+
+    private final LongAccumulator maxInFlight = new LongAccumulator(Math::max, 0L);
+
+    private final AtomicBoolean updating = new AtomicBoolean(false);
+
+    private volatile boolean dropped;
+
+    private volatile long windowStart = System.nanoTime();
+
+    private volatile int limit;
+
+    private volatile double gradient = 1.0;
+
+    /**
+     * 只在 update 中访问
+     */
+    private double estimate;
+
+    private double longRtt;
+
+    GradientLimit(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit <= 0 || minLimit > maxLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("limit: " + initialLimit + ", min: " + minLimit + ", max: " + maxLimit);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+        this.estimate = initialLimit;
+    }
+
+    int limit() {
+        return this.limit;
+    }
+
+    /**
+     * @return 短期延迟明显高于长期延迟（梯度小于 1）
+     */
+    boolean congested() {
+        return this.gradient < 1.0;
+    }
+
+    /**
+     * @param rttNanos 调用延迟
+     * @param inFlight 该调用结束前的并发数
+     * @param drop 调用是否因过载失败（超时）
+     * @param now 当前时间
+     */
+    void onSample(long rttNanos, int inFlight, boolean drop, long now) {
+        this.rttSum.add(rttNanos);
+        this.samples.increment();
+        this.maxInFlight.accumulate(inFlight);
+        if (drop) {
+            this.dropped = true;
+        }
+        if (now - this.windowStart < WINDOW_NANOS || !this.updating.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (now - this.windowStart >= WINDOW_NANOS) {
+                this.update(now);
+            }
+        } finally {
+            this.updating.set(false);
+        }
+    }
+
+    private void update(long now) {
+        boolean drop = this.dropped;
+        if (this.samples.sum() < MIN_SAMPLES && !drop) {
+            return;
+        }
+        long count = this.samples.sumThenReset();
+        double shortRtt = this.rttSum.sumThenReset() / (double) Math.max(1L, count);
+        long peak = this.maxInFlight.getThenReset();
+        this.dropped = false;
+        this.windowStart = now;
+
+        if (this.longRtt == 0.0) {
+            this.longRtt = shortRtt;
+        } else {
+            this.longRtt += (shortRtt - this.longRtt) / LONG_WINDOW;
+            // 负载下降后长期延迟明显偏高时加快回落
+            if (this.longRtt > shortRtt * 2) {
+                this.longRtt *= 0.95;
+            }
+        }
+
+        double next;
+        if (drop) {
+            this.gradient = BACKOFF;
+            next = this.estimate * BACKOFF;
+        } else {
+            double g = Math.max(0.5, Math.min(1.0, TOLERANCE * this.longRtt / Math.max(1.0, shortRtt)));
+            this.gradient = g;
+            if (g >= 1.0 && peak < this.estimate / 2) {
+                return;
+            }
+            next = this.estimate * (1 - SMOOTHING) + (this.estimate * g + Math.sqrt(this.estimate)) * SMOOTHING;
+        }
+        this.estimate = Math.max(this.minLimit, Math.min(this.maxLimit, next));
+        this.limit = (int) this.estimate;
+    }
+
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.admission;
+
+/**
+ * 方法的优先级
+ *
+ */
+public enum Priority {
+
+    /**
+     * 高优先级（如授权）：延迟上升时低优先级的调用让出资源
+     */
+    HIGH,
+
+    /**
+     * 默认
+     */
+    NORMAL,
+
+    /**
+     * 低优先级（如批量导入）：任一高优先级方法拥塞时直接拒绝
+     */
+    LOW
+
+}
@@ -0,0 +1,12 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+/**
+ * 准入控制：自适应并发限制与按优先级降载
+ *
+ */
+package com.allinfinance.grpc.demo.admission;
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.client;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.allinfinance.grpc.demo.AccountProto;
+import com.allinfinance.grpc.demo.AccountServiceGrpc;
+import com.allinfinance.grpc.demo.support.NamedThreadFactory;
+import io.grpc.Channel;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+
+/**
+ * 合并查询的客户端：与 {@link AccountServiceGrpc.AccountServiceBlockingStub#query} 相同的调用方式，
+ * 多个线程的并发查询合并到少量长期存在的 queryBidiStreaming 流上发送，响应按 serialNo 对应请求
+ *
+ * <p>每个流一个发送队列：队列达到 {@code maxBatchSize} 时立即发送，否则最多等待 {@code linger} 再发送，
+ * 一次发送队列中的全部请求（gRPC 对同一批写入只 flush 一次）；{@code linger} 为 0 时不等待。
+ * 只在流可写（{@link ClientCallStreamObserver#isReady()}）时发送，其余请求在队列中等待 onReady。</p>
+ * <p>同一时刻未完成的请求的 serialNo 必须唯一，重复时该请求失败（{@link IllegalArgumentException}）。</p>
+ * <p>流出错时只有已在该流上发送的请求失败，队列中的请求在新建的流上发送；调用方需要时自行重试。</p>
+ *
+ */
+public final class BatchingQueryClient implements Closeable {
+
+    private final AccountServiceGrpc.AccountServiceStub stub;
+
+    private final Lane[] lanes;
+
+    private final int maxBatchSize;
+
+    private final long lingerNanos;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicInteger next = new AtomicInteger(0);
+
+    private volatile boolean closed;
+
+    /**
+     * @param channel 通道，可以是 {@link ChannelPool}
+     * @param streams 流的数量
+     * @param maxBatchSize 队列达到该数量时立即发送
+     * @param linger 最长等待时间，0 表示不等待
+     * @param unit 时间单位
+     */
+    public BatchingQueryClient(Channel channel, int streams, int maxBatchSize, long linger, TimeUnit unit) {
+        if (streams <= 0 || maxBatchSize <= 0 || linger < 0L) {
+            throw new IllegalArgumentException("streams: " + streams + ", maxBatchSize: " + maxBatchSize
+                    + ", linger: " + linger);
+        }
+        this.stub = AccountServiceGrpc.newStub(channel);
+        this.maxBatchSize = maxBatchSize;
+        this.lingerNanos = unit.toNanos(linger);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("query-batcher"));
+        this.lanes = new Lane[streams];
+        for (int i = 0; i < streams; i++) {
+            this.lanes[i] = new Lane();
+        }
+    }
+
+    /**
+     * 异步查询
+     *
+     * @param request 请求，serialNo 在未完成的请求中唯一
+     * @return 响应；失败时为 {@link StatusRuntimeException}
+     */
+    public CompletableFuture<AccountProto.QueryResponse> queryAsync(AccountProto.QueryRequest request) {
+        CompletableFuture<AccountProto.QueryResponse> future = new CompletableFuture<>();
+        if (this.closed) {
+            future.completeExceptionally(Status.UNAVAILABLE.withDescription("Client closed").asRuntimeException());
+            return future;
+        }
+        Lane lane = this.lanes[(this.next.getAndIncrement() & Integer.MAX_VALUE) % this.lanes.length];
+        lane.enqueue(new Pending(request, future));
+        return future;
+    }
+
+    /**
+     * 同步查询
+     *
+     * @param request 请求，serialNo 在未完成的请求中唯一
+     * @return 响应
+     * @throws StatusRuntimeException 调用失败
+     */
+    public AccountProto.QueryResponse query(AccountProto.QueryRequest request) {
+        try {
+            return this.queryAsync(request).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw Status.fromThrowable(e.getCause()).asRuntimeException();
+        }
+    }
+
+    /**
+     * 发送队列中的请求后结束所有流，已发送的请求继续等待响应
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        for (Lane lane : this.lanes) {
+            lane.flush();
+        }
+        this.scheduler.shutdown();
+    }
+
+    private static final class Pending {
+
+        final AccountProto.QueryRequest request;
+
+        final CompletableFuture<AccountProto.QueryResponse> future;
+
+        Pending(AccountProto.QueryRequest request, CompletableFuture<AccountProto.QueryResponse> future) {
+            this.request = request;
+            this.future = future;
+        }
+    }
+
+    /**
+     * 一个发送队列与其当前的流
+     */
+    private final class Lane implements Runnable {
+
+        private final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+
+        private final AtomicInteger size = new AtomicInteger(0);
+
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        /**
+         * flush 的重入计数：保证同一时刻只有一个线程写流
+         */
+        private final AtomicInteger wip = new AtomicInteger(0);
+
+        /**
+         * 当前的流，只在 flush 中访问
+         */
+        private Stream stream;
+
+        private boolean finished;
+
+        void enqueue(Pending pending) {
+            this.queue.add(pending);
+            if (this.size.incrementAndGet() >= maxBatchSize || lingerNanos == 0L) {
+                this.flush();
+            } else if (this.scheduled.compareAndSet(false, true)) {
+                try {
+                    scheduler.schedule(this, lingerNanos, TimeUnit.NANOSECONDS);
+                } catch (RejectedExecutionException e) {
+                    // 已关闭
+                    this.run();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            this.scheduled.set(false);
+            this.flush();
+        }
+
+        /**
+         * 发送队列中的请求；多个线程同时调用时由第一个线程循环处理
+         */
+        void flush() {
+            if (this.wip.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                if (this.finished) {
+                    continue;
+                }
+                if (this.queue.isEmpty()) {
+                    if (closed) {
+                        this.finish();
+                    }
+                    continue;
+                }
+                if (this.stream == null || this.stream.closed) {
+                    this.stream = new Stream(this);
+                    stub.queryBidiStreaming(this.stream);
+                }
+                Stream current = this.stream;
+                Pending pending;
+                while (current.requests.isReady() && (pending = this.queue.poll()) != null) {
+                    this.size.decrementAndGet();
+                    current.send(pending);
+                }
+                if (closed && this.queue.isEmpty()) {
+                    this.finish();
+                }
+            } while (this.wip.decrementAndGet() != 0);
+        }
+
+        private void finish() {
+            this.finished = true;
+            if (this.stream != null && !this.stream.closed) {
+                this.stream.requests.onCompleted();
+            }
+        }
+    }
+
+    /**
+     * 一个 queryBidiStreaming 流与在其上发送、尚未响应的请求
+     */
+    private static final class Stream
+            implements ClientResponseObserver<AccountProto.QueryRequest, AccountProto.QueryResponse> {
+
+        private final Lane lane;
+
+        private final Map<String, CompletableFuture<AccountProto.QueryResponse>> pending = new ConcurrentHashMap<>();
+
+        private ClientCallStreamObserver<AccountProto.QueryRequest> requests;
+
+        private volatile boolean closed;
+
+        Stream(Lane lane) {
+            this.lane = lane;
+        }
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<AccountProto.QueryRequest> requestStream) {
+            this.requests = requestStream;
+            requestStream.setOnReadyHandler(this.lane::flush);
+        }
+
+        void send(Pending p) {
+            String serialNo = p.request.getSerialNo();
+            if (p.future.isDone()) {
+                return;
+            }
+            if (this.pending.putIfAbsent(serialNo, p.future) != null) {
+                p.future.completeExceptionally(new IllegalArgumentException("Duplicate serialNo in flight: "
+                        + serialNo));
+                return;
+            }
+            this.requests.onNext(p.request);
+            // 与 onError 并发：流已结束时由这里让请求失败
+            if (this.closed && this.pending.remove(serialNo, p.future)) {
+                p.future.completeExceptionally(Status.UNAVAILABLE.withDescription("Stream closed")
+                        .asRuntimeException());
+            }
+        }
+
+        @Override
+        public void onNext(AccountProto.QueryResponse rsp) {
+            CompletableFuture<AccountProto.QueryResponse> future = this.pending.remove(rsp.getSerialNo());
+            if (future != null) {
+                future.complete(rsp);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            this.fail(Status.fromThrowable(t).asRuntimeException());
+        }
+
+        @Override
+        public void onCompleted() {
+            this.fail(Status.UNAVAILABLE.withDescription("Stream completed before response").asRuntimeException());
+        }
+
+        private void fail(StatusRuntimeException e) {
+            this.closed = true;
+            for (String serialNo : this.pending.keySet()) {
+                CompletableFuture<AccountProto.QueryResponse> future = this.pending.remove(serialNo);
+                if (future != null) {
+                    future.completeExceptionally(e);
+                }
+            }
+            // 队列中还有请求时在新的流上发送
+            this.lane.flush();
+        }
+    }
+
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.allinfinance.grpc.demo.support.NamedThreadFactory;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ConnectivityState;
+import io.grpc.ForwardingClientCall;
+import io.grpc.ForwardingClientCallListener;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import io.grpc.netty.NettyChannelBuilder;
+
+/**
+ * 客户端连接池：连接多个服务端实例，每个调用按负载均衡策略选择一个连接
+ *
+ * <p>本身是一个 {@link Channel}，直接用于创建 stub，如 {@code AccountServiceGrpc.newStub(pool)}。</p>
+ * <p>每个服务端实例建立 {@code connectionsPerTarget} 个连接（每个连接一个 {@link ManagedChannel}），
+ * 单个 HTTP/2 连接的并发流上限（服务端的 maxConcurrentCallsPerConnection）不再限制吞吐量。</p>
+ * <p>健康检查：同一实例连续 {@code failureThreshold} 个调用返回 {@link Status.Code#UNAVAILABLE} 时，
+ * 在一段时间内不再选择该实例，连续被摘除时时间按倍数增加；连接处于 {@link ConnectivityState#TRANSIENT_FAILURE}
+ * 时同样跳过。所有实例都不可用时仍按策略选择，由调用自身失败。</p>
+ * <p>地址由 {@link TargetSource} 提供并定期刷新：新增的实例建立连接，移除的实例优雅关闭（已有调用继续完成）。</p>
+ *
+ */
+public final class ChannelPool extends Channel implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChannelPool.class);
+
+    /**
+     * 默认的连续失败次数阈值
+     */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    /**
+     * 默认的摘除时间（毫秒）
+     */
+    public static final long DEFAULT_EJECT_MILLIS = 1000L;
+
+    /**
+     * 默认的地址刷新间隔（毫秒）
+     */
+    public static final long DEFAULT_REFRESH_MILLIS = 5000L;
+
+    /**
+     * 连续被摘除时，摘除时间最多为基础时间的倍数
+     */
+    private static final int MAX_EJECTION_MULTIPLIER = 10;
+
+    private final TargetSource source;
+
+    private final int connectionsPerTarget;
+
+    private final LoadBalancePolicy policy;
+
+    private final int failureThreshold;
+
+    private final long ejectNanos;
+
+    private final Function<String, ManagedChannel> channelFactory;
+
+    private final ScheduledExecutorService refresher;
+
+    /**
+     * 当前的实例，只在 synchronized 中访问
+     */
+    private final Map<String, Target> targets = new LinkedHashMap<>();
+
+    /**
+     * 所有连接，按实例交错排列；更新时整体替换
+     */
+    private volatile Connection[] connections = new Connection[0];
+
+    private final AtomicInteger next = new AtomicInteger(0);
+
+    private boolean closed;
+
+    /**
+     * 明文连接，使用默认的健康检查与刷新参数
+     *
+     * @param source 地址来源
+     * @param connectionsPerTarget 每个实例的连接数
+     * @param policy 负载均衡策略
+     * @throws IOException 首次读取地址出错
+     */
+    public ChannelPool(TargetSource source, int connectionsPerTarget, LoadBalancePolicy policy) throws IOException {
+        this(source, connectionsPerTarget, policy, DEFAULT_FAILURE_THRESHOLD, DEFAULT_EJECT_MILLIS,
+                DEFAULT_REFRESH_MILLIS, ChannelPool::plaintext);
+    }
+
+    /**
+     * @param source 地址来源
+     * @param connectionsPerTarget 每个实例的连接数
+     * @param policy 负载均衡策略
+     * @param failureThreshold 连续失败多少次后摘除实例
+     * @param ejectMillis 摘除时间（毫秒）
+     * @param refreshMillis 地址刷新间隔（毫秒），小于等于 0 时不刷新
+     * @param channelFactory 按地址创建连接
+     * @throws IOException 首次读取地址出错
+     */
+    public ChannelPool(TargetSource source, int connectionsPerTarget, LoadBalancePolicy policy,
+            int failureThreshold, long ejectMillis, long refreshMillis,
+            Function<String, ManagedChannel> channelFactory) throws IOException {
+        if (connectionsPerTarget <= 0) {
+            throw new IllegalArgumentException("connectionsPerTarget: " + connectionsPerTarget);
+        }
+        if (failureThreshold <= 0) {
+            throw new IllegalArgumentException("failureThreshold: " + failureThreshold);
+        }
+        this.source = source;
+        this.connectionsPerTarget = connectionsPerTarget;
+        this.policy = policy;
+        this.failureThreshold = failureThreshold;
+        this.ejectNanos = TimeUnit.MILLISECONDS.toNanos(ejectMillis);
+        this.channelFactory = channelFactory;
+        this.update(source.targets());
+        if (refreshMillis > 0L) {
+            this.refresher = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("channel-pool"));
+            this.refresher.scheduleWithFixedDelay(this::refresh, refreshMillis, refreshMillis,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            this.refresher = null;
+        }
+    }
+
+    @Override
+    public <ReqT, RespT> ClientCall<ReqT, RespT> newCall(MethodDescriptor<ReqT, RespT> method,
+            CallOptions callOptions) {
+        Connection connection = this.pick();
+        if (connection == null) {
+            return new FailingCall<>(Status.UNAVAILABLE.withDescription("No targets"));
+        }
+        return new TrackingCall<>(connection, connection.channel.newCall(method, callOptions));
+    }
+
+    @Override
+    public String authority() {
+        Connection[] current = this.connections;
+        return current.length == 0 ? "" : current[0].channel.authority();
+    }
+
+    /**
+     * @return 每个实例的未完成调用数
+     */
+    public Map<String, Integer> outstanding() {
+        Map<String, Integer> result = new LinkedHashMap<>();
+        for (Connection connection : this.connections) {
+            result.merge(connection.target.address, connection.outstanding.get(), Integer::sum);
+        }
+        return result;
+    }
+
+    /**
+     * 关闭所有连接，已开始的调用继续完成
+     */
+    @Override
+    public void close() {
+        if (this.refresher != null) {
+            this.refresher.shutdownNow();
+        }
+        synchronized (this) {
+            this.closed = true;
+            for (Target target : this.targets.values()) {
+                target.shutdown();
+            }
+            this.targets.clear();
+            this.connections = new Connection[0];
+        }
+    }
+
+    private void refresh() {
+        try {
+            this.update(this.source.targets());
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Target refresh error, keeping previous targets", e);
+        }
+    }
+
+    private synchronized void update(List<String> addresses) {
+        if (this.closed) {
+            return;
+        }
+        Set<String> wanted = new HashSet<>(addresses);
+        if (wanted.equals(this.targets.keySet())) {
+            return;
+        }
+        this.targets.entrySet().removeIf(entry -> {
+            if (wanted.contains(entry.getKey())) {
+                return false;
+            }
+            logger.info("Target removed: {}", entry.getKey());
+            entry.getValue().shutdown();
+            return true;
+        });
+        for (String address : addresses) {
+            if (!this.targets.containsKey(address)) {
+                logger.info("Target added: {} ({} connections)", address, this.connectionsPerTarget);
+                this.targets.put(address, new Target(address));
+            }
+        }
+        // 按实例交错排列，轮询时相邻的调用落在不同实例上
+        List<Connection> list = new ArrayList<>();
+        for (int i = 0; i < this.connectionsPerTarget; i++) {
+            for (Target target : this.targets.values()) {
+                list.add(target.connections[i]);
+            }
+        }
+        this.connections = list.toArray(new Connection[0]);
+    }
+
+    private Connection pick() {
+        Connection[] current = this.connections;
+        int n = current.length;
+        if (n == 0) {
+            return null;
+        }
+        int start = (this.next.getAndIncrement() & Integer.MAX_VALUE) % n;
+        long now = System.nanoTime();
+        Connection best = null;
+        for (int i = 0; i < n; i++) {
+            Connection connection = current[(start + i) % n];
+            if (!connection.available(now)) {
+                continue;
+            }
+            if (this.policy == LoadBalancePolicy.ROUND_ROBIN) {
+                return connection;
+            }
+            if (best == null || connection.outstanding.get() < best.outstanding.get()) {
+                best = connection;
+            }
+        }
+        return best != null ? best : current[start];
+    }
+
+    private static ManagedChannel plaintext(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Invalid target, expected host:port: " + address);
+        }
+        String host = address.substring(0, colon);
+        return NettyChannelBuilder.forAddress(host, Integer.parseInt(address.substring(colon + 1)))
+                .usePlaintext()
+                .build();
+    }
+
+    /**
+     * 服务端实例：连接与健康状态
+     */
+    private final class Target {
+
+        final String address;
+
+        final Connection[] connections;
+
+        final AtomicInteger failures = new AtomicInteger(0);
+
+        final AtomicInteger ejections = new AtomicInteger(0);
+
+        volatile long ejectedUntil;
+
+        volatile boolean ejected;
+
+        Target(String address) {
+            this.address = address;
+            this.connections = new Connection[connectionsPerTarget];
+            for (int i = 0; i < this.connections.length; i++) {
+                this.connections[i] = new Connection(this, channelFactory.apply(address));
+            }
+        }
+
+        boolean available(long now) {
+            return !this.ejected || now - this.ejectedUntil >= 0L;
+        }
+
+        void record(Status status) {
+            if (status.getCode() != Status.Code.UNAVAILABLE) {
+                if (this.failures.get() != 0 || this.ejected) {
+                    this.failures.set(0);
+                    this.ejections.set(0);
+                    this.ejected = false;
+                }
+                return;
+            }
+            if (this.failures.incrementAndGet() >= failureThreshold) {
+                this.failures.set(0);
+                int multiplier = Math.min(this.ejections.incrementAndGet(), MAX_EJECTION_MULTIPLIER);
+                this.ejectedUntil = System.nanoTime() + ejectNanos * multiplier;
+                this.ejected = true;
+                logger.warn("Target ejected for {} ms: {}", TimeUnit.NANOSECONDS.toMillis(ejectNanos * multiplier),
+                        this.address);
+            }
+        }
+
+        void shutdown() {
+            for (Connection connection : this.connections) {
+                connection.channel.shutdown();
+            }
+        }
+    }
+
+    /**
+     * 一个连接：{@link ManagedChannel} 与其未完成调用数
+     */
+    private static final class Connection {
+
+        final Target target;
+
+        final ManagedChannel channel;
+
+        final AtomicInteger outstanding = new AtomicInteger(0);
+
+        Connection(Target target, ManagedChannel channel) {
+            this.target = target;
+            this.channel = channel;
+        }
+
+        boolean available(long now) {
+            return this.target.available(now) && this.channel.getState(false) != ConnectivityState.TRANSIENT_FAILURE;
+        }
+    }
+
+    /**
+     * 统计未完成调用数，调用结束时记录结果用于健康检查
+     */
+    private static final class TrackingCall<ReqT, RespT>
+            extends ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT> {
+
+        private final Connection connection;
+
+        TrackingCall(Connection connection, ClientCall<ReqT, RespT> delegate) {
+            super(delegate);
+            this.connection = connection;
+        }
+
+        @Override
+        public void start(Listener<RespT> responseListener, Metadata headers) {
+            this.connection.outstanding.incrementAndGet();
+            try {
+                super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<RespT>(
+                        responseListener) {
+                    @Override
+                    public void onClose(Status status, Metadata trailers) {
+                        TrackingCall.this.connection.outstanding.decrementAndGet();
+                        TrackingCall.this.connection.target.record(status);
+                        super.onClose(status, trailers);
+                    }
+                }, headers);
+            } catch (RuntimeException e) {
+                this.connection.outstanding.decrementAndGet();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 没有可用实例时返回的调用：开始即失败
+     */
+    private static final class FailingCall<ReqT, RespT> extends ClientCall<ReqT, RespT> {
+
+        private final Status status;
+
+        FailingCall(Status status) {
+            this.status = status;
+        }
+
+        @Override
+        public void start(Listener<RespT> responseListener, Metadata headers) {
+            responseListener.onClose(this.status, new Metadata());
+        }
+
+        @Override
+        public void request(int numMessages) {
+        }
+
+        @Override
+        public void cancel(String message, Throwable cause) {
+        }
+
+        @Override
+        public void halfClose() {
+        }
+
+        @Override
+        public void sendMessage(ReqT message) {
+        }
+    }
+
+}
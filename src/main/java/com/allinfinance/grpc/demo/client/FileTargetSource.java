@@ -0,0 +1,52 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.client;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 基于本地文件的服务发现：修改时间变化时重新读取
+ *
+ */
+final class FileTargetSource implements TargetSource {
+
+    private final Path file;
+
+    private FileTime modified;
+
+    private List<String> targets = Collections.emptyList();
+
+    FileTargetSource(Path file) {
+        this.file = file;
+    }
+
+    @Override
+    public synchronized List<String> targets() throws IOException {
+        FileTime current = Files.getLastModifiedTime(this.file);
+        if (!current.equals(this.modified)) {
+            List<String> list = new ArrayList<>();
+            for (String line : Files.readAllLines(this.file, StandardCharsets.UTF_8)) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    list.add(line);
+                }
+            }
+            this.targets = Collections.unmodifiableList(list);
+            this.modified = current;
+        }
+        return this.targets;
+    }
+
+}
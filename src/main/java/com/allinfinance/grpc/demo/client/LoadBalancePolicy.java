@@ -0,0 +1,26 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.client;
+
+/**
+ * 负载均衡策略：每个调用（包括流式调用）选择一个连接
+ *
+ */
+public enum LoadBalancePolicy {
+
+    /**
+     * 按顺序轮流选择
+     */
+    ROUND_ROBIN,
+
+    /**
+     * 选择未完成调用数最少的连接，服务端实例快慢不一时更均衡
+     */
+    LEAST_OUTSTANDING
+
+}
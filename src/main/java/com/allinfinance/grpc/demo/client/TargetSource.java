@@ -0,0 +1,53 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.client;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 服务端地址来源（服务发现），地址格式为 {@code host:port}
+ *
+ */
+@FunctionalInterface
+public interface TargetSource {
+
+    /**
+     * 当前的服务端地址；{@link ChannelPool} 定期调用，地址变化时增减连接
+     *
+     * @return 地址列表，不能为 null
+     * @throws IOException 读取出错（保留上一次的地址）
+     */
+    List<String> targets() throws IOException;
+
+    /**
+     * 固定的地址列表
+     *
+     * @param targets 地址
+     * @return 地址来源
+     */
+    static TargetSource of(String... targets) {
+        List<String> list = Collections.unmodifiableList(new ArrayList<>(Arrays.asList(targets)));
+        return () -> list;
+    }
+
+    /**
+     * 从文件读取地址，每行一个 {@code host:port}，{@code #} 开头为注释；文件修改后重新读取
+     *
+     * @param file 文件
+     * @return 地址来源
+     */
+    static TargetSource fromFile(Path file) {
+        return new FileTargetSource(file);
+    }
+
+}
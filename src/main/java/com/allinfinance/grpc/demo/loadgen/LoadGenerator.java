@@ -0,0 +1,411 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.loadgen;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import io.grpc.ManagedChannel;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.stub.StreamObserver;
+import com.allinfinance.grpc.demo.AccountProto;
+import com.allinfinance.grpc.demo.AccountServiceGrpc;
+import com.allinfinance.grpc.demo.CpsProcessProto;
+import com.allinfinance.grpc.demo.CpsProcessServiceGrpc;
+import com.allinfinance.grpc.demo.YakMessageProto;
+import com.allinfinance.grpc.demo.yak.iso8583.Iso8583Encoder;
+
+/**
+ * 开环压测工具
+ *
+ * <p>按目标速率（rate）均匀安排每个请求的计划发送时间，延迟从<b>计划发送时间</b>开始计算，
+ * 服务端变慢时发送端不会跟着降速，避免协调遗漏（coordinated omission）。</p>
+ * <p>N 个通道（channels），每个通道最多 M 个并发调用（concurrency）；超过并发数时发送线程等待，
+ * 等待时间同样计入延迟。</p>
+ * <p>示例：</p>
+ * <pre>
+ * java -cp grpc-java-demo.jar com.allinfinance.grpc.demo.loadgen.LoadGenerator \
+ *     --target localhost:8883 --rate 200000 --duration 60 --warmup 10 \
+ *     --channels 8 --concurrency 512 --senders 4 \
+ *     --mix query=70,bidi=10,add=10,authorize=10 --output result.json
+ * </pre>
+ *
+ */
+public final class LoadGenerator {
+
+    /**
+     * 可记录的最大延迟：60 秒（纳秒）
+     */
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    /**
+     * 预生成的请求数，发送时随机选取，减少压测端自身的分配
+     */
+    private static final int REQUEST_POOL = 1024;
+
+    private final String target;
+
+    private final int rate;
+
+    private final int durationSeconds;
+
+    private final int warmupSeconds;
+
+    private final int channelCount;
+
+    private final int concurrency;
+
+    private final int senders;
+
+    private final int streamMessages;
+
+    private final Map<RpcType, Integer> mix;
+
+    private final String output;
+
+    private final RpcType[] weighted;
+
+    private final Map<RpcType, Recorder> recorders = new EnumMap<>(RpcType.class);
+
+    private final Map<RpcType, LongAdder> errors = new EnumMap<>(RpcType.class);
+
+    private final List<ManagedChannel> channels = new ArrayList<>();
+
+    private final List<AccountServiceGrpc.AccountServiceStub> accountStubs = new ArrayList<>();
+
+    private final List<CpsProcessServiceGrpc.CpsProcessServiceStub> cpsStubs = new ArrayList<>();
+
+    private final List<Semaphore> permits = new ArrayList<>();
+
+    private final AccountProto.QueryRequest[] queryRequests = new AccountProto.QueryRequest[REQUEST_POOL];
+
+    private final AccountProto.AddRequest[] addRequests = new AccountProto.AddRequest[REQUEST_POOL];
+
+    private final YakMessageProto.YakMessage[] authorizeRequests = new YakMessageProto.YakMessage[REQUEST_POOL];
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private LoadGenerator(Map<String, String> options) {
+        this.target = options.getOrDefault("target", "localhost:8883");
+        this.rate = Integer.parseInt(options.getOrDefault("rate", "10000"));
+        this.durationSeconds = Integer.parseInt(options.getOrDefault("duration", "60"));
+        this.warmupSeconds = Integer.parseInt(options.getOrDefault("warmup", "10"));
+        this.channelCount = Integer.parseInt(options.getOrDefault("channels", "4"));
+        this.concurrency = Integer.parseInt(options.getOrDefault("concurrency", "256"));
+        this.senders = Integer.parseInt(options.getOrDefault("senders",
+                String.valueOf(Math.max(1, Runtime.getRuntime().availableProcessors() / 2))));
+        this.streamMessages = Integer.parseInt(options.getOrDefault("stream-messages", "10"));
+        this.mix = RpcType.parseMix(options.getOrDefault("mix", "query=100"));
+        this.output = options.get("output");
+        if (this.rate <= 0 || this.channelCount <= 0 || this.concurrency <= 0 || this.senders <= 0) {
+            throw new IllegalArgumentException("rate, channels, concurrency and senders must be positive");
+        }
+
+        List<RpcType> list = new ArrayList<>();
+        for (Map.Entry<RpcType, Integer> entry : this.mix.entrySet()) {
+            for (int i = 0; i < entry.getValue(); i++) {
+                list.add(entry.getKey());
+            }
+            this.recorders.put(entry.getKey(), new Recorder(HIGHEST_TRACKABLE_NANOS, 3));
+            this.errors.put(entry.getKey(), new LongAdder());
+        }
+        this.weighted = list.toArray(new RpcType[0]);
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator(parseArgs(args));
+        generator.run();
+    }
+
+    private void run() throws InterruptedException, IOException {
+        this.connect();
+        this.prepareRequests();
+
+        long start = System.nanoTime();
+        long warmupEnd = start + TimeUnit.SECONDS.toNanos(this.warmupSeconds);
+        long end = warmupEnd + TimeUnit.SECONDS.toNanos(this.durationSeconds);
+        // 每个发送线程负责 rate / senders 的速率，计划时间互相错开
+        long interval = TimeUnit.SECONDS.toNanos(1) * this.senders / this.rate;
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < this.senders; i++) {
+            int index = i;
+            long first = start + interval * i / this.senders;
+            Thread thread = new Thread(() -> this.send(index, first, interval, end), "loadgen-sender-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+
+        sleepUntil(warmupEnd);
+        // 丢弃预热阶段的数据
+        for (Recorder recorder : this.recorders.values()) {
+            recorder.reset();
+        }
+        for (LongAdder error : this.errors.values()) {
+            error.reset();
+        }
+        System.out.printf("Warmup finished, measuring %d s at %d rps%n", this.durationSeconds, this.rate);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // 等待已发出的调用结束
+        for (Semaphore semaphore : this.permits) {
+            semaphore.tryAcquire(this.concurrency, 30, TimeUnit.SECONDS);
+        }
+        this.report();
+        for (ManagedChannel channel : this.channels) {
+            channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private void connect() {
+        String[] hostPort = this.target.split(":");
+        for (int i = 0; i < this.channelCount; i++) {
+            ManagedChannel channel = NettyChannelBuilder.forAddress(hostPort[0], Integer.parseInt(hostPort[1]))
+                    .usePlaintext()
+                    .build();
+            this.channels.add(channel);
+            this.accountStubs.add(AccountServiceGrpc.newStub(channel));
+            this.cpsStubs.add(CpsProcessServiceGrpc.newStub(channel));
+            this.permits.add(new Semaphore(this.concurrency));
+        }
+    }
+
+    private void prepareRequests() {
+        for (int i = 0; i < REQUEST_POOL; i++) {
+            this.queryRequests[i] = AccountProto.QueryRequest.newBuilder()
+                    .setSerialNo("loadgen#" + i)
+                    .setUserId("user#" + i)
+                    .build();
+            this.addRequests[i] = AccountProto.AddRequest.newBuilder()
+                    .setSerialNo("loadgen#" + i)
+                    .setUserId("user#" + i)
+                    .setUserName("User#" + i)
+                    .setAmountMinor(100L)
+                    .setAmountScale(2)
+                    .build();
+            this.authorizeRequests[i] = YakMessageProto.YakMessage.newBuilder()
+                    .setSrcChannelId("loadgen-" + (i % 8))
+                    .setIsRequest(true)
+                    .setIsInComing(true)
+                    .build();
+        }
+    }
+
+    /**
+     * 入账请求：每次使用新的 serialNo，否则服务端按幂等去重，不再入账
+     */
+    private AccountProto.AddRequest addRequest(int i) {
+        return this.addRequests[i].toBuilder()
+                .setSerialNo("loadgen#" + this.sequence.incrementAndGet())
+                .build();
+    }
+
+    /**
+     * 授权请求：每次使用新的系统跟踪号（11 域）与检索参考号（37 域），否则服务端按幂等直接返回第一次的应答
+     */
+    private CpsProcessProto.YakMessageRequest authorizeRequest(int i) {
+        long seq = this.sequence.incrementAndGet();
+        YakMessageProto.YakMessage yakMessage = this.authorizeRequests[i].toBuilder()
+                .setRawMessageBytes(new Iso8583Encoder()
+                        .mti(100)
+                        .set(2, "62220200000" + String.format(Locale.ROOT, "%08d", i))
+                        .setNumber(3, 0)
+                        .setNumber(4, 10000)
+                        .setNumber(11, seq % 1000000)
+                        .setNumber(37, seq)
+                        .set(41, "LOADGEN" + (i % 8))
+                        .toByteString())
+                .build();
+        return CpsProcessProto.YakMessageRequest.newBuilder()
+                .setYakMessage(yakMessage)
+                .build();
+    }
+
+    /**
+     * 发送线程：按计划时间发送，落后于计划时立即补发
+     */
+    private void send(int index, long first, long interval, long end) {
+        long intended = first;
+        int next = index;
+        while (intended < end) {
+            long now = System.nanoTime();
+            if (now < intended) {
+                LockSupport.parkNanos(intended - now);
+                continue;
+            }
+            int channel = next++ % this.channelCount;
+            RpcType type = this.weighted[ThreadLocalRandom.current().nextInt(this.weighted.length)];
+            Semaphore semaphore = this.permits.get(channel);
+            semaphore.acquireUninterruptibly();
+            this.issue(type, channel, intended);
+            intended += interval;
+        }
+    }
+
+    private void issue(RpcType type, int channel, long intended) {
+        int i = ThreadLocalRandom.current().nextInt(REQUEST_POOL);
+        Semaphore semaphore = this.permits.get(channel);
+        AccountServiceGrpc.AccountServiceStub stub = this.accountStubs.get(channel);
+        switch (type) {
+            case QUERY:
+                stub.query(this.queryRequests[i], new CallObserver<>(type, intended, semaphore));
+                break;
+            case SERVER_STREAMING:
+                stub.queryServerStreaming(this.queryRequests[i], new CallObserver<>(type, intended, semaphore));
+                break;
+            case ADD: {
+                StreamObserver<AccountProto.AddRequest> requests =
+                        stub.addClientStreaming(new CallObserver<>(type, intended, semaphore));
+                for (int j = 0; j < this.streamMessages; j++) {
+                    requests.onNext(this.addRequest((i + j) % REQUEST_POOL));
+                }
+                requests.onCompleted();
+                break;
+            }
+            case BIDI: {
+                StreamObserver<AccountProto.QueryRequest> requests =
+                        stub.queryBidiStreaming(new CallObserver<>(type, intended, semaphore));
+                for (int j = 0; j < this.streamMessages; j++) {
+                    requests.onNext(this.queryRequests[(i + j) % REQUEST_POOL]);
+                }
+                requests.onCompleted();
+                break;
+            }
+            case AUTHORIZE:
+                this.cpsStubs.get(channel).authorize(this.authorizeRequest(i),
+                        new CallObserver<>(type, intended, semaphore));
+                break;
+            default:
+                semaphore.release();
+                throw new IllegalStateException("Unknown rpc: " + type);
+        }
+    }
+
+    private void report() throws IOException {
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\n")
+                .append("  \"target\": \"").append(this.target).append("\",\n")
+                .append("  \"rate\": ").append(this.rate).append(",\n")
+                .append("  \"durationSeconds\": ").append(this.durationSeconds).append(",\n")
+                .append("  \"channels\": ").append(this.channelCount).append(",\n")
+                .append("  \"concurrency\": ").append(this.concurrency).append(",\n")
+                .append("  \"results\": [");
+
+        System.out.printf("%-10s %10s %8s %10s %10s %10s %10s %10s%n",
+                "rpc", "count", "errors", "rps", "p50(us)", "p99(us)", "p99.9(us)", "max(us)");
+        boolean first = true;
+        for (Map.Entry<RpcType, Recorder> entry : this.recorders.entrySet()) {
+            RpcType type = entry.getKey();
+            Histogram histogram = entry.getValue().getIntervalHistogram();
+            long count = histogram.getTotalCount();
+            long errorCount = this.errors.get(type).sum();
+            double rps = count / (double) this.durationSeconds;
+            double p50 = micros(histogram.getValueAtPercentile(50D));
+            double p99 = micros(histogram.getValueAtPercentile(99D));
+            double p999 = micros(histogram.getValueAtPercentile(99.9D));
+            double max = micros(histogram.getMaxValue());
+            System.out.printf(Locale.ROOT, "%-10s %10d %8d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                    type.key(), count, errorCount, rps, p50, p99, p999, max);
+
+            json.append(first ? "\n" : ",\n");
+            first = false;
+            json.append(String.format(Locale.ROOT, "    {\"rpc\": \"%s\", \"count\": %d, \"errors\": %d, "
+                            + "\"rps\": %.1f, \"p50Us\": %.1f, \"p99Us\": %.1f, \"p999Us\": %.1f, \"maxUs\": %.1f}",
+                    type.key(), count, errorCount, rps, p50, p99, p999, max));
+        }
+        json.append("\n  ]\n}\n");
+
+        if (this.output != null) {
+            try (Writer writer = Files.newBufferedWriter(Paths.get(this.output), StandardCharsets.UTF_8)) {
+                writer.write(json.toString());
+            }
+            System.out.println("Report written to " + this.output);
+        }
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000D;
+    }
+
+    private static void sleepUntil(long deadline) throws InterruptedException {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0L) {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        }
+    }
+
+    /**
+     * 解析 {@code --key value} 形式的参数
+     */
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Invalid argument: " + args[i]);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        return options;
+    }
+
+    /**
+     * 调用结束时记录延迟（从计划发送时间开始）并归还并发许可
+     */
+    private final class CallObserver<T> implements StreamObserver<T> {
+
+        private final RpcType type;
+
+        private final long intended;
+
+        private final Semaphore semaphore;
+
+        CallObserver(RpcType type, long intended, Semaphore semaphore) {
+            this.type = type;
+            this.intended = intended;
+            this.semaphore = semaphore;
+        }
+
+        @Override
+        public void onNext(T value) {
+            // 只统计整个调用的延迟
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            errors.get(this.type).increment();
+            this.semaphore.release();
+        }
+
+        @Override
+        public void onCompleted() {
+            long latency = Math.min(System.nanoTime() - this.intended, HIGHEST_TRACKABLE_NANOS);
+            recorders.get(this.type).recordValue(latency);
+            this.semaphore.release();
+        }
+    }
+
+}
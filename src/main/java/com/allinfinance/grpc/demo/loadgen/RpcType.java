@@ -0,0 +1,92 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.loadgen;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 压测的 RPC 类型
+ *
+ */
+public enum RpcType {
+
+    /**
+     * AccountService.query
+     */
+    QUERY("query"),
+
+    /**
+     * AccountService.queryServerStreaming
+     */
+    SERVER_STREAMING("stream"),
+
+    /**
+     * AccountService.addClientStreaming
+     */
+    ADD("add"),
+
+    /**
+     * AccountService.queryBidiStreaming
+     */
+    BIDI("bidi"),
+
+    /**
+     * CpsProcessService.authorize
+     */
+    AUTHORIZE("authorize");
+
+    private final String key;
+
+    RpcType(String key) {
+        this.key = key;
+    }
+
+    /**
+     * @return 命令行与报告中使用的名称
+     */
+    public String key() {
+        return this.key;
+    }
+
+    /**
+     * 解析 RPC 混合比例，如 {@code query=70,bidi=10,add=10,authorize=10}
+     *
+     * @param mix 混合比例
+     * @return 各类型的权重
+     */
+    public static Map<RpcType, Integer> parseMix(String mix) {
+        Map<RpcType, Integer> weights = new EnumMap<>(RpcType.class);
+        for (String item : mix.split(",")) {
+            String[] pair = item.trim().split("=");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Invalid mix: " + mix);
+            }
+            int weight = Integer.parseInt(pair[1].trim());
+            if (weight > 0) {
+                weights.put(of(pair[0].trim()), weight);
+            }
+        }
+        if (weights.isEmpty()) {
+            throw new IllegalArgumentException("Empty mix: " + mix);
+        }
+        return weights;
+    }
+
+    private static RpcType of(String key) {
+        String k = key.toLowerCase(Locale.ROOT);
+        for (RpcType type : values()) {
+            if (type.key.equals(k)) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown rpc: " + key);
+    }
+
+}
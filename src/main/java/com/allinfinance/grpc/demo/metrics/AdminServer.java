@@ -0,0 +1,87 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * 本地管理端口（HTTP）
+ *
+ * <p>{@code GET /metrics}：Prometheus 文本格式的指标。</p>
+ * <p>{@code GET /ready}：就绪检查，恢复完成、gRPC 开始服务之前返回 503，之后返回 200。</p>
+ *
+ */
+public final class AdminServer {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdminServer.class);
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer server;
+
+    private volatile boolean ready;
+
+    /**
+     * @param host 监听地址，默认只监听本机
+     * @param port 监听端口
+     * @param registry 指标注册表
+     * @throws IOException 端口绑定失败
+     */
+    public AdminServer(String host, int port, MetricsRegistry registry) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        this.server.createContext("/metrics", exchange -> respond(exchange, 200, registry.scrape()));
+        this.server.createContext("/ready", exchange -> {
+            if (this.ready) {
+                respond(exchange, 200, "ready\n");
+            } else {
+                respond(exchange, 503, "recovering\n");
+            }
+        });
+    }
+
+    /**
+     * @param ready 是否就绪
+     */
+    public void setReady(boolean ready) {
+        this.ready = ready;
+    }
+
+    /**
+     * 启动（使用单个后台线程处理请求）
+     */
+    public void start() {
+        this.server.start();
+        logger.info("Admin endpoint started on {}", this.server.getAddress());
+    }
+
+    /**
+     * 停止
+     */
+    public void stop() {
+        this.server.stop(0);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * 延迟统计
+ *
+ * <p>记录使用 HdrHistogram 的 {@link Recorder}（wait-free，不分配对象）；采集时交换出区间直方图，
+ * 以 Prometheus summary 输出：分位数为上次采集以来的区间值，_sum、_count 为累计值。</p>
+ *
+ */
+public final class LatencyRecorder {
+
+    /**
+     * 可记录的最大延迟：60 秒
+     */
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private static final double[] QUANTILES = {0.5D, 0.9D, 0.99D, 0.999D};
+
+    private static final double NANOS_PER_SECOND = 1e9D;
+
+    private final Recorder recorder = new Recorder(HIGHEST_TRACKABLE_NANOS, 2);
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder sumNanos = new LongAdder();
+
+    /**
+     * 采集时复用的区间直方图（采集方法同步）
+     */
+    private Histogram interval;
+
+    /**
+     * 记录一次延迟
+     *
+     * @param nanos 延迟（纳秒）
+     */
+    public void record(long nanos) {
+        long value = Math.max(0L, Math.min(nanos, HIGHEST_TRACKABLE_NANOS));
+        this.recorder.recordValue(value);
+        this.count.increment();
+        this.sumNanos.add(value);
+    }
+
+    /**
+     * @return 累计记录次数
+     */
+    public long count() {
+        return this.count.sum();
+    }
+
+    /**
+     * 以 summary 格式输出，单位为秒
+     *
+     * @param out 输出
+     * @param name 指标名
+     * @param labels 标签，按 name、value 交替排列
+     */
+    public synchronized void writeTo(StringBuilder out, String name, String... labels) {
+        this.interval = this.recorder.getIntervalHistogram(this.interval);
+        String[] withQuantile = Arrays.copyOf(labels, labels.length + 2);
+        withQuantile[labels.length] = "quantile";
+        for (double quantile : QUANTILES) {
+            withQuantile[labels.length + 1] = String.valueOf(quantile);
+            double value = this.interval.getTotalCount() == 0L
+                    ? 0D : this.interval.getValueAtPercentile(quantile * 100D) / NANOS_PER_SECOND;
+            PrometheusText.sample(out, name, value, withQuantile);
+        }
+        PrometheusText.sample(out, name + "_sum", this.sumNanos.sum() / NANOS_PER_SECOND, labels);
+        PrometheusText.sample(out, name + "_count", this.count.sum(), labels);
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import io.grpc.Status;
+
+/**
+ * 单个 RPC 方法的指标
+ *
+ * <p>计数器均为 {@link LongAdder}（分段计数，高并发下无竞争），返回码按 {@link Status.Code} 序号预分配，
+ * 记录时不分配对象。</p>
+ *
+ */
+public final class MethodMetrics {
+
+    private static final Status.Code[] CODES = Status.Code.values();
+
+    private final String method;
+
+    private final LongAdder started = new LongAdder();
+
+    private final LongAdder inFlight = new LongAdder();
+
+    private final LongAdder[] handled = new LongAdder[CODES.length];
+
+    private final LongAdder messagesReceived = new LongAdder();
+
+    private final LongAdder messagesSent = new LongAdder();
+
+    private final LongAdder bytesReceived = new LongAdder();
+
+    private final LongAdder bytesSent = new LongAdder();
+
+    private final LatencyRecorder latency = new LatencyRecorder();
+
+    MethodMetrics(String method) {
+        this.method = method;
+        for (int i = 0; i < this.handled.length; i++) {
+            this.handled[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @return 方法全名，如 {@code account.AccountService/query}
+     */
+    public String method() {
+        return this.method;
+    }
+
+    void onStart() {
+        this.started.increment();
+        this.inFlight.increment();
+    }
+
+    void onClose(Status.Code code, long nanos) {
+        this.inFlight.decrement();
+        this.handled[code.ordinal()].increment();
+        this.latency.record(nanos);
+    }
+
+    void onMessageReceived(int bytes) {
+        this.messagesReceived.increment();
+        this.bytesReceived.add(bytes);
+    }
+
+    void onMessageSent(int bytes) {
+        this.messagesSent.increment();
+        this.bytesSent.add(bytes);
+    }
+
+    /**
+     * @return 进行中的调用数
+     */
+    public long inFlight() {
+        return this.inFlight.sum();
+    }
+
+    void writeStarted(StringBuilder out) {
+        PrometheusText.sample(out, "grpc_server_started_total", this.started.sum(), "method", this.method);
+    }
+
+    void writeHandled(StringBuilder out) {
+        for (int i = 0; i < CODES.length; i++) {
+            long value = this.handled[i].sum();
+            if (value > 0L) {
+                PrometheusText.sample(out, "grpc_server_handled_total", value,
+                        "method", this.method, "code", CODES[i].name());
+            }
+        }
+    }
+
+    void writeInFlight(StringBuilder out) {
+        PrometheusText.sample(out, "grpc_server_in_flight", this.inFlight.sum(), "method", this.method);
+    }
+
+    void writeMessages(StringBuilder out, boolean received) {
+        PrometheusText.sample(out, received ? "grpc_server_msg_received_total" : "grpc_server_msg_sent_total",
+                (received ? this.messagesReceived : this.messagesSent).sum(), "method", this.method);
+    }
+
+    void writeBytes(StringBuilder out, boolean received) {
+        PrometheusText.sample(out, received ? "grpc_server_bytes_received_total" : "grpc_server_bytes_sent_total",
+                (received ? this.bytesReceived : this.bytesSent).sum(), "method", this.method);
+    }
+
+    void writeLatency(StringBuilder out) {
+        this.latency.writeTo(out, "grpc_server_handling_seconds", "method", this.method);
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.metrics;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import com.google.protobuf.MessageLite;
+
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+/**
+ * 统计每个 RPC 方法的调用数、进行中的调用数、返回码、延迟、消息数与字节数
+ *
+ */
+public final class MetricsInterceptor implements ServerInterceptor {
+
+    private final MetricsRegistry registry;
+
+    /**
+     * @param registry 指标注册表
+     */
+    public MetricsInterceptor(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+            ServerCallHandler<ReqT, RespT> next) {
+        MethodMetrics metrics = this.registry.method(call.getMethodDescriptor().getFullMethodName());
+        MetricsServerCall<ReqT, RespT> metricsCall = new MetricsServerCall<>(call, metrics);
+        ServerCall.Listener<ReqT> listener;
+        try {
+            listener = next.startCall(metricsCall, headers);
+        } catch (RuntimeException e) {
+            metricsCall.finish(Status.Code.UNKNOWN);
+            throw e;
+        }
+        return new MetricsListener<>(listener, metricsCall);
+    }
+
+    private static int serializedSize(Object message) {
+        return message instanceof MessageLite ? ((MessageLite) message).getSerializedSize() : 0;
+    }
+
+    /**
+     * 统计发送的消息与调用结束
+     */
+    private static final class MetricsServerCall<ReqT, RespT>
+            extends ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT> {
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<MetricsServerCall> FINISHED =
+                AtomicIntegerFieldUpdater.newUpdater(MetricsServerCall.class, "finished");
+
+        private final MethodMetrics metrics;
+
+        private final long startNanos;
+
+        private volatile int finished;
+
+        MetricsServerCall(ServerCall<ReqT, RespT> delegate, MethodMetrics metrics) {
+            super(delegate);
+            this.metrics = metrics;
+            this.startNanos = System.nanoTime();
+            metrics.onStart();
+        }
+
+        @Override
+        public void sendMessage(RespT message) {
+            this.metrics.onMessageSent(serializedSize(message));
+            super.sendMessage(message);
+        }
+
+        @Override
+        public void close(Status status, Metadata trailers) {
+            this.finish(status.getCode());
+            super.close(status, trailers);
+        }
+
+        /**
+         * 调用结束（正常关闭或被取消）只统计一次
+         */
+        void finish(Status.Code code) {
+            if (FINISHED.compareAndSet(this, 0, 1)) {
+                this.metrics.onClose(code, System.nanoTime() - this.startNanos);
+            }
+        }
+    }
+
+    /**
+     * 统计接收的消息与客户端取消
+     */
+    private static final class MetricsListener<ReqT>
+            extends ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT> {
+
+        private final MetricsServerCall<ReqT, ?> call;
+
+        MetricsListener(ServerCall.Listener<ReqT> delegate, MetricsServerCall<ReqT, ?> call) {
+            super(delegate);
+            this.call = call;
+        }
+
+        @Override
+        public void onMessage(ReqT message) {
+            this.call.metrics.onMessageReceived(serializedSize(message));
+            super.onMessage(message);
+        }
+
+        @Override
+        public void onCancel() {
+            this.call.finish(Status.Code.CANCELLED);
+            super.onCancel();
+        }
+    }
+
+}
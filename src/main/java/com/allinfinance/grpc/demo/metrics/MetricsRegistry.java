@@ -0,0 +1,99 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import io.grpc.MethodDescriptor;
+import io.grpc.ServiceDescriptor;
+
+/**
+ * 指标注册表
+ *
+ * <p>启动时按服务描述预先创建每个方法的 {@link MethodMetrics}，调用时只做一次 map 查找；
+ * 其他组件（缓存、限流等）通过 {@link #register(MetricsSource)} 输出自己的指标。</p>
+ *
+ */
+public final class MetricsRegistry {
+
+    private final ConcurrentMap<String, MethodMetrics> methods = new ConcurrentHashMap<>();
+
+    private final List<MetricsSource> sources = new CopyOnWriteArrayList<>();
+
+    /**
+     * 为服务的所有方法创建指标
+     *
+     * @param descriptor 服务描述
+     */
+    public void register(ServiceDescriptor descriptor) {
+        for (MethodDescriptor<?, ?> method : descriptor.getMethods()) {
+            this.methods.computeIfAbsent(method.getFullMethodName(), MethodMetrics::new);
+        }
+    }
+
+    /**
+     * 注册指标来源
+     *
+     * @param source 指标来源
+     */
+    public void register(MetricsSource source) {
+        this.sources.add(source);
+    }
+
+    /**
+     * 获取方法的指标，不存在时创建
+     *
+     * @param fullMethodName 方法全名
+     * @return 方法指标
+     */
+    public MethodMetrics method(String fullMethodName) {
+        MethodMetrics metrics = this.methods.get(fullMethodName);
+        if (metrics == null) {
+            metrics = this.methods.computeIfAbsent(fullMethodName, MethodMetrics::new);
+        }
+        return metrics;
+    }
+
+    /**
+     * 以 Prometheus 文本格式输出全部指标
+     *
+     * @return 指标文本
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder(8192);
+        List<MethodMetrics> all = new ArrayList<>(this.methods.values());
+
+        PrometheusText.header(out, "grpc_server_started_total", "counter", "RPCs started on the server.");
+        all.forEach(m -> m.writeStarted(out));
+        PrometheusText.header(out, "grpc_server_handled_total", "counter", "RPCs completed, by status code.");
+        all.forEach(m -> m.writeHandled(out));
+        PrometheusText.header(out, "grpc_server_in_flight", "gauge", "RPCs currently in progress.");
+        all.forEach(m -> m.writeInFlight(out));
+        PrometheusText.header(out, "grpc_server_msg_received_total", "counter", "Messages received.");
+        all.forEach(m -> m.writeMessages(out, true));
+        PrometheusText.header(out, "grpc_server_msg_sent_total", "counter", "Messages sent.");
+        all.forEach(m -> m.writeMessages(out, false));
+        PrometheusText.header(out, "grpc_server_bytes_received_total", "counter", "Serialized bytes received.");
+        all.forEach(m -> m.writeBytes(out, true));
+        PrometheusText.header(out, "grpc_server_bytes_sent_total", "counter", "Serialized bytes sent.");
+        all.forEach(m -> m.writeBytes(out, false));
+        PrometheusText.header(out, "grpc_server_handling_seconds", "summary",
+                "RPC handling latency; quantiles cover the interval since the previous scrape.");
+        all.forEach(m -> m.writeLatency(out));
+
+        for (MetricsSource source : this.sources) {
+            source.writeTo(out);
+        }
+        return out.toString();
+    }
+
+}
@@ -0,0 +1,24 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.metrics;
+
+/**
+ * 指标来源：采集时以 Prometheus 文本格式输出自己的指标
+ *
+ */
+@FunctionalInterface
+public interface MetricsSource {
+
+    /**
+     * 输出指标，可使用 {@link PrometheusText} 的方法拼接
+     *
+     * @param out 输出
+     */
+    void writeTo(StringBuilder out);
+
+}
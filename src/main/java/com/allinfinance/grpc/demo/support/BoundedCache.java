@@ -0,0 +1,290 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.support;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 有界缓存：分段 LRU，可选写入后过期
+ *
+ * <p>按 key 的哈希值分段，每段一个访问顺序的 {@link LinkedHashMap}，超出容量时淘汰该段最久未访问的条目；
+ * 每段一把锁，锁内只做 map 操作，加载（loader）在锁外执行。</p>
+ *
+ * @param <K> key 类型
+ * @param <V> value 类型
+ */
+public final class BoundedCache<K, V> {
+
+    private final Segment<K, V>[] segments;
+
+    private final int segmentShift;
+
+    /**
+     * 写入后过期时间（纳秒），0 表示不过期
+     */
+    private final long expireAfterWriteNanos;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maximumSize 最大条目数（各段平均分配）
+     */
+    public BoundedCache(int maximumSize) {
+        this(maximumSize, 0L, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param maximumSize 最大条目数（各段平均分配）
+     * @param expireAfterWrite 写入后过期时间，0 表示不过期
+     * @param unit 时间单位
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BoundedCache(int maximumSize, long expireAfterWrite, TimeUnit unit) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximumSize: " + maximumSize);
+        }
+        int count = 1;
+        int target = Math.min(Runtime.getRuntime().availableProcessors() * 4, Math.max(1, maximumSize / 16));
+        while (count < target) {
+            count <<= 1;
+        }
+        int capacity = (maximumSize + count - 1) / count;
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            this.segments[i] = new Segment<>(capacity, this.evictions);
+        }
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(count);
+        this.expireAfterWriteNanos = unit.toNanos(expireAfterWrite);
+    }
+
+    /**
+     * @param key key
+     * @return 缓存的值；不存在或已过期时返回 null
+     */
+    public V get(K key) {
+        Segment<K, V> segment = this.segmentFor(key);
+        V value;
+        synchronized (segment) {
+            value = this.getLive(segment, key);
+        }
+        (value != null ? this.hits : this.misses).increment();
+        return value;
+    }
+
+    /**
+     * 读取，不存在时加载并放入缓存
+     *
+     * <p>加载在锁外执行，并发加载同一个 key 时只保留先放入的值，并返回该值。</p>
+     *
+     * @param key key
+     * @param loader 加载函数；返回 null 时不缓存
+     * @return 值
+     */
+    public V get(K key, Function<? super K, ? extends V> loader) {
+        V value = this.get(key);
+        if (value != null) {
+            return value;
+        }
+        V loaded = loader.apply(key);
+        if (loaded == null) {
+            return null;
+        }
+        return this.putIfAbsent(key, loaded);
+    }
+
+    /**
+     * @param key key
+     * @param value 值
+     */
+    public void put(K key, V value) {
+        Segment<K, V> segment = this.segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, new CacheEntry<>(value, this.expiresAt()));
+        }
+    }
+
+    /**
+     * 不存在（或已过期）时放入
+     *
+     * @param key key
+     * @param value 值
+     * @return 缓存中原有的值；没有时返回 {@code value}
+     */
+    public V putIfAbsent(K key, V value) {
+        return this.putIfAbsentAt(key, value, this.expiresAt());
+    }
+
+    /**
+     * 不存在（或已过期）时放入，在 {@code expireAfterWrite} 后过期（不超过缓存的写入后过期时间）
+     *
+     * @param key key
+     * @param value 值
+     * @param expireAfterWrite 过期时间
+     * @param unit 时间单位
+     * @return 缓存中原有的值；没有时返回 {@code value}
+     */
+    public V putIfAbsent(K key, V value, long expireAfterWrite, TimeUnit unit) {
+        long nanos = unit.toNanos(expireAfterWrite);
+        if (this.expireAfterWriteNanos != 0L) {
+            nanos = Math.min(nanos, this.expireAfterWriteNanos);
+        }
+        long expiresAt = System.nanoTime() + Math.max(1L, nanos);
+        return this.putIfAbsentAt(key, value, expiresAt == 0L ? 1L : expiresAt);
+    }
+
+    /**
+     * 缓存中的值仍是 {@code expected}（同一个对象，且未过期）时替换为 {@code value}
+     *
+     * @param key key
+     * @param expected 期望的原值
+     * @param value 新值
+     * @return 是否替换
+     */
+    public boolean replace(K key, V expected, V value) {
+        Segment<K, V> segment = this.segmentFor(key);
+        synchronized (segment) {
+            if (this.getLive(segment, key) != expected) {
+                return false;
+            }
+            segment.put(key, new CacheEntry<>(value, this.expiresAt()));
+            return true;
+        }
+    }
+
+    /**
+     * @param key key
+     */
+    public void invalidate(K key) {
+        Segment<K, V> segment = this.segmentFor(key);
+        synchronized (segment) {
+            segment.remove(key);
+        }
+    }
+
+    /**
+     * 清空
+     */
+    public void invalidateAll() {
+        for (Segment<K, V> segment : this.segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * @return 条目数（包括已过期但尚未清除的条目）
+     */
+    public long size() {
+        long size = 0L;
+        for (Segment<K, V> segment : this.segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public long hits() {
+        return this.hits.sum();
+    }
+
+    public long misses() {
+        return this.misses.sum();
+    }
+
+    public long evictions() {
+        return this.evictions.sum();
+    }
+
+    private V putIfAbsentAt(K key, V value, long expiresAt) {
+        Segment<K, V> segment = this.segmentFor(key);
+        synchronized (segment) {
+            V existing = this.getLive(segment, key);
+            if (existing != null) {
+                return existing;
+            }
+            segment.put(key, new CacheEntry<>(value, expiresAt));
+            return value;
+        }
+    }
+
+    private V getLive(Segment<K, V> segment, K key) {
+        CacheEntry<V> entry = segment.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt != 0L && System.nanoTime() - entry.expiresAt >= 0L) {
+            segment.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    private long expiresAt() {
+        if (this.expireAfterWriteNanos == 0L) {
+            return 0L;
+        }
+        long expiresAt = System.nanoTime() + this.expireAfterWriteNanos;
+        // 0 表示不过期
+        return expiresAt == 0L ? 1L : expiresAt;
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return this.segments.length == 1 ? this.segments[0] : this.segments[h >>> this.segmentShift];
+    }
+
+    private static final class CacheEntry<V> {
+
+        final V value;
+
+        final long expiresAt;
+
+        CacheEntry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * 分段：访问顺序的 LinkedHashMap，超出容量时淘汰最久未访问的条目（调用方持有段锁）
+     */
+    private static final class Segment<K, V> extends LinkedHashMap<K, CacheEntry<V>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        private final transient LongAdder evictions;
+
+        Segment(int capacity, LongAdder evictions) {
+            super(Math.min(capacity, 1 << 16) * 4 / 3 + 1, 0.75F, true);
+            this.capacity = capacity;
+            this.evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
+            if (this.size() > this.capacity) {
+                this.evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+}
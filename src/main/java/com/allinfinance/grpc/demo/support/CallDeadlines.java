@@ -0,0 +1,174 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.support;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+
+import com.allinfinance.grpc.demo.metrics.MetricsSource;
+import com.allinfinance.grpc.demo.metrics.PrometheusText;
+
+/**
+ * 截止时间与取消：检查调用是否已失效，统计失效调用浪费的处理
+ *
+ * <p>调用超过截止时间或被客户端取消后，服务端继续处理只会占用线程与存储。处理开始前、以及每处理完一段之后，
+ * 检查调用的 {@link Context}：已失效时放弃剩余的处理（abandoned）；处理完成时调用已失效、结果无法送达的，
+ * 记为浪费（wasted）。两者按方法计数，可以看出失效调用占用了多少处理能力。</p>
+ * <p>{@link Context#current()} 只在 gRPC 的回调线程上是调用的上下文，提交到线程池前要先取出，随任务传递。</p>
+ *
+ */
+public final class CallDeadlines {
+
+    private final List<Tracker> trackers = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param method 方法
+     * @return 该方法的计数器，应在初始化时取出并保存
+     */
+    public Tracker tracker(MethodDescriptor<?, ?> method) {
+        Tracker tracker = new Tracker(method.getFullMethodName());
+        this.trackers.add(tracker);
+        return tracker;
+    }
+
+    /**
+     * @param context 调用的上下文
+     * @return 调用是否已超过截止时间或被取消
+     */
+    public static boolean isDead(Context context) {
+        return context.isCancelled() || expired(context);
+    }
+
+    /**
+     * @param context 已失效的调用的上下文
+     * @return 失效对应的状态：超过截止时间为 DEADLINE_EXCEEDED，否则为 CANCELLED
+     */
+    public static Status statusOf(Context context) {
+        return expired(context)
+                ? Status.DEADLINE_EXCEEDED.withDescription("Deadline exceeded before processing")
+                : Status.CANCELLED.withDescription("Call cancelled before processing");
+    }
+
+    private static boolean expired(Context context) {
+        Deadline deadline = context.getDeadline();
+        return deadline != null && deadline.isExpired();
+    }
+
+    /**
+     * 多个实例的指标，合并为同一组指标族
+     *
+     * @param deadlines 实例
+     * @return 指标
+     */
+    public static MetricsSource metrics(CallDeadlines... deadlines) {
+        return out -> {
+            PrometheusText.header(out, "rpc_abandoned_total", "counter",
+                    "Units of work skipped because the call had already expired or been cancelled.");
+            for (CallDeadlines d : deadlines) {
+                for (Tracker t : d.trackers) {
+                    PrometheusText.sample(out, "rpc_abandoned_total", t.deadline.sum(),
+                            "method", t.method, "reason", "deadline");
+                    PrometheusText.sample(out, "rpc_abandoned_total", t.cancelled.sum(),
+                            "method", t.method, "reason", "cancelled");
+                }
+            }
+            PrometheusText.header(out, "rpc_wasted_total", "counter",
+                    "Units of work completed after the call had expired or been cancelled.");
+            for (CallDeadlines d : deadlines) {
+                for (Tracker t : d.trackers) {
+                    PrometheusText.sample(out, "rpc_wasted_total", t.wasted.sum(), "method", t.method);
+                }
+            }
+        };
+    }
+
+    /**
+     * 一个方法的计数器
+     */
+    public static final class Tracker {
+
+        private final String method;
+
+        private final LongAdder deadline = new LongAdder();
+
+        private final LongAdder cancelled = new LongAdder();
+
+        private final LongAdder wasted = new LongAdder();
+
+        private Tracker(String method) {
+            this.method = method;
+        }
+
+        /**
+         * 处理开始前检查：调用已失效时计为放弃，并以 DEADLINE_EXCEEDED 或 CANCELLED 结束调用
+         *
+         * @param context 调用的上下文
+         * @param observer 响应 observer
+         * @return 调用是否已失效（已结束，不应再处理）
+         */
+        public boolean rejectIfDead(Context context, StreamObserver<?> observer) {
+            if (!this.abandonIfDead(context)) {
+                return false;
+            }
+            observer.onError(statusOf(context).asRuntimeException());
+            return true;
+        }
+
+        /**
+         * 处理一段之前检查：调用已失效时计为放弃
+         *
+         * @param context 调用的上下文
+         * @return 调用是否已失效
+         */
+        public boolean abandonIfDead(Context context) {
+            if (!isDead(context)) {
+                return false;
+            }
+            this.abandoned(context);
+            return true;
+        }
+
+        /**
+         * 计为放弃：按是否超过截止时间区分原因
+         *
+         * @param context 调用的上下文
+         */
+        public void abandoned(Context context) {
+            (expired(context) ? this.deadline : this.cancelled).increment();
+        }
+
+        /**
+         * 处理完成后检查：调用已失效时计为浪费
+         *
+         * @param context 调用的上下文
+         * @return 调用是否已失效（结果不必再发送）
+         */
+        public boolean wastedIfDead(Context context) {
+            if (!isDead(context)) {
+                return false;
+            }
+            this.wasted.increment();
+            return true;
+        }
+
+        /**
+         * 计为浪费
+         */
+        public void wasted() {
+            this.wasted.increment();
+        }
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.support;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import com.allinfinance.grpc.demo.metrics.MetricsSource;
+import com.allinfinance.grpc.demo.metrics.PrometheusText;
+
+/**
+ * 幂等缓存：同一个 key 在时间窗口内只执行一次，重复的请求直接得到第一次的结果
+ *
+ * <p>第一个请求先放入一个未完成的 future 再执行，执行期间到达的重复请求等待该 future，而不是再执行一次；
+ * 执行由当前线程同步完成，等待的线程不会等待排队中的任务。执行失败时移除该 key，重试的请求会重新执行。</p>
+ * <p>条目数与存活时间都有上限（{@link BoundedCache}）。</p>
+ *
+ * @param <K> key 类型
+ * @param <V> 结果类型
+ */
+public final class IdempotencyCache<K, V> {
+
+    private final String name;
+
+    private final BoundedCache<K, CompletableFuture<V>> cache;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param name 名称，用于指标标签
+     * @param maximumSize 最大条目数
+     * @param window 时间窗口（写入后过期）
+     * @param unit 时间单位
+     */
+    public IdempotencyCache(String name, int maximumSize, long window, TimeUnit unit) {
+        this.name = name;
+        this.cache = new BoundedCache<>(maximumSize, window, unit);
+    }
+
+    /**
+     * 执行，或返回相同 key 第一次执行的结果
+     *
+     * @param key key
+     * @param action 执行的操作，不能返回 null
+     * @return 结果
+     */
+    public V execute(K key, Supplier<V> action) {
+        CompletableFuture<V> created = new CompletableFuture<>();
+        CompletableFuture<V> existing = this.cache.putIfAbsent(key, created);
+        if (existing != created) {
+            this.hits.increment();
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        this.misses.increment();
+        try {
+            V value = action.get();
+            created.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            this.cache.invalidate(key);
+            created.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * 放入已经执行过的结果（如启动时从预写日志恢复），已有该 key 时不覆盖
+     *
+     * @param key key
+     * @param value 结果
+     * @param remaining 剩余的时间窗口（不超过构造时的时间窗口）
+     * @param unit 时间单位
+     */
+    public void preload(K key, V value, long remaining, TimeUnit unit) {
+        this.cache.putIfAbsent(key, CompletableFuture.completedFuture(value), remaining, unit);
+    }
+
+    /**
+     * 输出多个幂等缓存的指标（同一指标只输出一次 HELP/TYPE）
+     *
+     * @param caches 幂等缓存
+     * @return 指标来源
+     */
+    public static MetricsSource metrics(IdempotencyCache<?, ?>... caches) {
+        return out -> {
+            PrometheusText.header(out, "idempotency_requests_total", "counter",
+                    "Idempotency cache lookups; hits were answered without re-executing.");
+            for (IdempotencyCache<?, ?> cache : caches) {
+                PrometheusText.sample(out, "idempotency_requests_total", cache.hits.sum(),
+                        "cache", cache.name, "result", "hit");
+                PrometheusText.sample(out, "idempotency_requests_total", cache.misses.sum(),
+                        "cache", cache.name, "result", "miss");
+            }
+            PrometheusText.header(out, "idempotency_evictions_total", "counter",
+                    "Idempotency entries evicted before expiry because the cache was full.");
+            for (IdempotencyCache<?, ?> cache : caches) {
+                PrometheusText.sample(out, "idempotency_evictions_total", cache.cache.evictions(), "cache", cache.name);
+            }
+            PrometheusText.header(out, "idempotency_entries", "gauge", "Idempotency cache entries.");
+            for (IdempotencyCache<?, ?> cache : caches) {
+                PrometheusText.sample(out, "idempotency_entries", cache.cache.size(), "cache", cache.name);
+            }
+        };
+    }
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.support;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按名称前缀编号的守护线程工厂
+ *
+ */
+public final class NamedThreadFactory implements ThreadFactory {
+
+    private final String prefix;
+
+    private final AtomicInteger index = new AtomicInteger(0);
+
+    /**
+     * @param prefix 线程名前缀，线程名为 {@code prefix-N}
+     */
+    public NamedThreadFactory(String prefix) {
+        this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, this.prefix + '-' + this.index.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+
+}
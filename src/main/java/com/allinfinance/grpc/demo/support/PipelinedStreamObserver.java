@@ -0,0 +1,274 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.support;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import javax.annotation.Nullable;
+
+import io.grpc.Context;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * 流水线式双向流：同一个流上的请求并发处理，响应按完成顺序乱序返回
+ *
+ * <p>请求在 {@code executor} 中处理，不占用 gRPC 的传输线程；同一时刻最多 {@code maxInFlight} 个请求
+ * 在处理或等待发送（入站窗口），一个慢请求不会阻塞后面的请求。</p>
+ * <p>响应先进入队列，只在 {@link ServerCallStreamObserver#isReady()} 为 true 时发送，
+ * 每发送一个响应才拉取下一个请求，因此每个流的内存占用不超过 {@code maxInFlight} 个请求与响应。</p>
+ * <p>响应由调用方在 {@code handler} 中携带请求的关联标识（如 serialNo），客户端据此对应请求。</p>
+ * <p>可选的 {@code fastPath} 在 gRPC 的传输线程上直接应答不需要处理的请求（如心跳），不进入 {@code executor}。</p>
+ * <p>线程池可以按请求选择（如按渠道隔离）；线程池拒绝请求时，配置了 {@code rejected} 则只应答该请求，否则结束整个流。</p>
+ * <p>流被取消或超过截止时间后，尚未开始处理的请求直接丢弃，见 {@link CallDeadlines}。</p>
+ *
+ * @param <ReqT> 请求类型
+ * @param <RespT> 响应类型
+ */
+public final class PipelinedStreamObserver<ReqT, RespT> implements StreamObserver<ReqT> {
+
+    private final ServerCallStreamObserver<RespT> observer;
+
+    private final Function<ReqT, Executor> executors;
+
+    private final Function<ReqT, RespT> handler;
+
+    private final Function<ReqT, RespT> fastPath;
+
+    private final BiFunction<ReqT, RejectedExecutionException, RespT> rejected;
+
+    @Nullable
+    private final CallDeadlines.Tracker deadlines;
+
+    /**
+     * 调用的上下文：请求在线程池中处理时不是当前上下文
+     */
+    private final Context context = Context.current();
+
+    private final Queue<RespT> completed = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 已拉取但尚未发送响应的请求数
+     */
+    private final AtomicInteger outstanding = new AtomicInteger(0);
+
+    /**
+     * drain 的重入计数：保证同一时刻只有一个线程调用 observer
+     */
+    private final AtomicInteger wip = new AtomicInteger(0);
+
+    private volatile boolean halfClosed;
+
+    private volatile boolean cancelled;
+
+    private volatile Throwable failure;
+
+    /**
+     * 已结束（onCompleted 或 onError），只在 drain 中访问
+     */
+    private boolean closed;
+
+    private PipelinedStreamObserver(ServerCallStreamObserver<RespT> observer, Function<ReqT, Executor> executors,
+            Function<ReqT, RespT> handler, Function<ReqT, RespT> fastPath,
+            BiFunction<ReqT, RejectedExecutionException, RespT> rejected,
+            @Nullable CallDeadlines.Tracker deadlines) {
+        this.observer = observer;
+        this.executors = executors;
+        this.handler = handler;
+        this.fastPath = fastPath;
+        this.rejected = rejected;
+        this.deadlines = deadlines;
+    }
+
+    /**
+     * 在服务方法中调用，接管该调用的流量控制
+     *
+     * @param responseObserver 服务方法的响应 observer
+     * @param executor 处理请求的线程池
+     * @param maxInFlight 每个流同时处理的最大请求数
+     * @param handler 请求处理（在 executor 中执行，必须线程安全）
+     * @param <ReqT> 请求类型
+     * @param <RespT> 响应类型
+     * @return 请求 observer，作为服务方法的返回值
+     */
+    public static <ReqT, RespT> StreamObserver<ReqT> start(StreamObserver<RespT> responseObserver,
+            Executor executor, int maxInFlight, Function<ReqT, RespT> handler) {
+        return start(responseObserver, executor, maxInFlight, handler, request -> null);
+    }
+
+    /**
+     * 在服务方法中调用，接管该调用的流量控制
+     *
+     * @param responseObserver 服务方法的响应 observer
+     * @param executor 处理请求的线程池
+     * @param maxInFlight 每个流同时处理的最大请求数
+     * @param handler 请求处理（在 executor 中执行，必须线程安全）
+     * @param fastPath 在传输线程上直接应答的请求：返回响应时不再调用 {@code handler}，返回 null 时按常规处理；
+     *                 必须足够快且不阻塞
+     * @param <ReqT> 请求类型
+     * @param <RespT> 响应类型
+     * @return 请求 observer，作为服务方法的返回值
+     */
+    public static <ReqT, RespT> StreamObserver<ReqT> start(StreamObserver<RespT> responseObserver,
+            Executor executor, int maxInFlight, Function<ReqT, RespT> handler, Function<ReqT, RespT> fastPath) {
+        return start(responseObserver, request -> executor, maxInFlight, handler, fastPath, null, null);
+    }
+
+    /**
+     * 在服务方法中调用，接管该调用的流量控制
+     *
+     * @param responseObserver 服务方法的响应 observer
+     * @param executors 按请求选择处理的线程池
+     * @param maxInFlight 每个流同时处理的最大请求数
+     * @param handler 请求处理（在线程池中执行，必须线程安全）
+     * @param fastPath 在传输线程上直接应答的请求，见 {@link #start(StreamObserver, Executor, int, Function, Function)}
+     * @param rejected 线程池拒绝请求时的应答（在传输线程上调用）；为 null 时以 RESOURCE_EXHAUSTED 结束整个流
+     * @param deadlines 失效调用的计数器，为 null 时不计数
+     * @param <ReqT> 请求类型
+     * @param <RespT> 响应类型
+     * @return 请求 observer，作为服务方法的返回值
+     */
+    public static <ReqT, RespT> StreamObserver<ReqT> start(StreamObserver<RespT> responseObserver,
+            Function<ReqT, Executor> executors, int maxInFlight, Function<ReqT, RespT> handler,
+            Function<ReqT, RespT> fastPath, BiFunction<ReqT, RejectedExecutionException, RespT> rejected,
+            @Nullable CallDeadlines.Tracker deadlines) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight: " + maxInFlight);
+        }
+        ServerCallStreamObserver<RespT> observer = (ServerCallStreamObserver<RespT>) responseObserver;
+        PipelinedStreamObserver<ReqT, RespT> stream = new PipelinedStreamObserver<>(observer, executors, handler,
+                fastPath, rejected, deadlines);
+        observer.disableAutoRequest();
+        observer.setOnCancelHandler(stream::cancel);
+        observer.setOnReadyHandler(stream::drain);
+        observer.request(maxInFlight);
+        return stream;
+    }
+
+    @Override
+    public void onNext(ReqT request) {
+        if (this.cancelled || this.failure != null) {
+            return;
+        }
+        this.outstanding.incrementAndGet();
+        RespT rsp = this.fastPath.apply(request);
+        if (rsp != null) {
+            this.completed.add(rsp);
+            this.drain();
+            return;
+        }
+        try {
+            this.executors.apply(request).execute(() -> this.process(request));
+        } catch (RejectedExecutionException e) {
+            if (this.rejected == null) {
+                this.fail(Status.RESOURCE_EXHAUSTED.withDescription("Executor rejected request").withCause(e));
+                return;
+            }
+            this.completed.add(this.rejected.apply(request, e));
+            this.drain();
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        // other side closed with non OK
+        this.cancel();
+    }
+
+    @Override
+    public void onCompleted() {
+        // other side closed with OK：已拉取的请求处理完后再结束响应流
+        this.halfClosed = true;
+        this.drain();
+    }
+
+    private void process(ReqT request) {
+        if (this.cancelled || CallDeadlines.isDead(this.context)) {
+            // 排队期间流已失效，不再处理；gRPC 随后会取消该流
+            if (this.deadlines != null) {
+                this.deadlines.abandoned(this.context);
+            }
+            return;
+        }
+        RespT rsp;
+        try {
+            rsp = this.handler.apply(request);
+        } catch (RuntimeException e) {
+            this.fail(Status.fromThrowable(e));
+            return;
+        }
+        if (this.cancelled || CallDeadlines.isDead(this.context)) {
+            if (this.deadlines != null) {
+                this.deadlines.wasted();
+            }
+            return;
+        }
+        this.completed.add(rsp);
+        this.drain();
+    }
+
+    private void fail(Status status) {
+        if (this.failure == null) {
+            this.failure = status.asRuntimeException();
+        }
+        this.drain();
+    }
+
+    private void cancel() {
+        this.cancelled = true;
+        this.completed.clear();
+    }
+
+    /**
+     * 发送已完成的响应；多个线程同时调用时由第一个线程循环处理，其余线程只增加计数后返回
+     */
+    private void drain() {
+        if (this.wip.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            if (this.closed) {
+                continue;
+            }
+            if (this.cancelled) {
+                this.closed = true;
+                this.completed.clear();
+                continue;
+            }
+            if (this.failure != null) {
+                this.closed = true;
+                this.completed.clear();
+                this.observer.onError(this.failure);
+                continue;
+            }
+            int sent = 0;
+            RespT rsp;
+            while (this.observer.isReady() && (rsp = this.completed.poll()) != null) {
+                this.observer.onNext(rsp);
+                sent++;
+            }
+            if (sent > 0) {
+                this.outstanding.addAndGet(-sent);
+                if (!this.halfClosed) {
+                    this.observer.request(sent);
+                }
+            }
+            if (this.halfClosed && this.outstanding.get() == 0) {
+                this.closed = true;
+                this.observer.onCompleted();
+            }
+        } while (this.wip.decrementAndGet() != 0);
+    }
+
+}
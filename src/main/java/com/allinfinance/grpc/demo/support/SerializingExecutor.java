@@ -0,0 +1,76 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.support;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 串行执行器：提交的任务按提交顺序逐个在底层线程池中执行，任意时刻最多一个在执行
+ *
+ * <p>{@link io.grpc.stub.ServerCallStreamObserver} 不是线程安全的；同一个调用的回调（如落盘完成后的应答）
+ * 与调用线程上的 observer 操作都经过同一个串行执行器，就不会并发调用 observer。</p>
+ * <p>底层线程池拒绝时，在提交任务的线程上执行，不丢失任务。</p>
+ *
+ */
+public final class SerializingExecutor implements Executor {
+
+    private static final Logger logger = LoggerFactory.getLogger(SerializingExecutor.class);
+
+    private final Executor delegate;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private final Runnable drain = this::drain;
+
+    /**
+     * @param delegate 底层线程池
+     */
+    public SerializingExecutor(Executor delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        this.tasks.add(command);
+        if (this.running.compareAndSet(false, true)) {
+            try {
+                this.delegate.execute(this.drain);
+            } catch (RejectedExecutionException e) {
+                this.drain();
+            }
+        }
+    }
+
+    /**
+     * 依次执行队列中的任务
+     */
+    private void drain() {
+        do {
+            Runnable task;
+            while ((task = this.tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.error("Serialized task error", e);
+                }
+            }
+            this.running.set(false);
+            // 置为空闲之前可能又有任务入队，但提交方看到 running 仍为 true，没有调度
+        } while (!this.tasks.isEmpty() && this.running.compareAndSet(false, true));
+    }
+
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.yak;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.allinfinance.grpc.demo.metrics.LatencyRecorder;
+import com.allinfinance.grpc.demo.metrics.MetricsSource;
+import com.allinfinance.grpc.demo.metrics.PrometheusText;
+
+/**
+ * 按渠道（srcChannelId）隔离的舱壁：每个渠道独立的有界队列、并发配额与速率限制，共享一个工作线程池
+ *
+ * <p>公平调度：有待处理请求且未达到并发配额的渠道进入就绪环，工作线程每次从环头取一个渠道、执行它的一个请求，
+ * 该渠道仍就绪时放回环尾；因此无论某个渠道积压多少请求，其它渠道每一轮都能执行一个。
+ * 单个渠道最多同时占用 {@code maxConcurrency} 个工作线程，积压超过 {@code queueCapacity} 时拒绝。</p>
+ * <p>速率限制使用 GCRA（等价于令牌桶）：每个渠道一个 {@link AtomicLong} 记录理论到达时间，CAS 更新，不加锁；
+ * 渠道之间不共享状态。渠道数超过 {@code maxChannels} 时，新的渠道共用一个舱壁（{@value #OVERFLOW_CHANNEL}）。</p>
+ *
+ */
+public final class ChannelBulkheads implements MetricsSource {
+
+    /**
+     * 超出渠道数上限时共用的舱壁
+     */
+    public static final String OVERFLOW_CHANNEL = "_overflow";
+
+    private final Executor workers;
+
+    private final int queueCapacity;
+
+    private final int maxConcurrency;
+
+    private final int maxChannels;
+
+    /**
+     * 每个请求占用的时间（纳秒），0 表示不限速
+     */
+    private final long emissionNanos;
+
+    /**
+     * 允许的突发：理论到达时间最多超前当前时间的纳秒数
+     */
+    private final long burstNanos;
+
+    private final ConcurrentMap<String, Bulkhead> channels = new ConcurrentHashMap<>();
+
+    private final Queue<Bulkhead> ready = new ConcurrentLinkedQueue<>();
+
+    private final Runnable dispatcher = this::dispatch;
+
+    /**
+     * @param workers 工作线程池
+     * @param queueCapacity 每个渠道的最大积压请求数
+     * @param maxConcurrency 每个渠道同时执行的最大请求数
+     * @param ratePerSecond 每个渠道每秒的最大请求数，小于等于 0 表示不限速
+     * @param burst 允许的突发请求数
+     * @param maxChannels 独立舱壁的最大渠道数
+     */
+    public ChannelBulkheads(Executor workers, int queueCapacity, int maxConcurrency, double ratePerSecond,
+            int burst, int maxChannels) {
+        if (queueCapacity <= 0 || maxConcurrency <= 0 || burst <= 0 || maxChannels <= 0) {
+            throw new IllegalArgumentException("queueCapacity: " + queueCapacity + ", maxConcurrency: "
+                    + maxConcurrency + ", burst: " + burst + ", maxChannels: " + maxChannels);
+        }
+        this.workers = workers;
+        this.queueCapacity = queueCapacity;
+        this.maxConcurrency = maxConcurrency;
+        this.maxChannels = maxChannels;
+        this.emissionNanos = ratePerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond) : 0L;
+        this.burstNanos = this.emissionNanos * burst;
+    }
+
+    /**
+     * 渠道的执行器：{@link Executor#execute(Runnable)} 超过速率或队列已满时抛出 {@link RejectedExecutionException}
+     *
+     * @param srcChannelId 渠道
+     * @return 执行器
+     */
+    public Executor executor(String srcChannelId) {
+        Bulkhead bulkhead = this.channels.get(srcChannelId);
+        if (bulkhead != null) {
+            return bulkhead;
+        }
+        String channel = this.channels.size() >= this.maxChannels ? OVERFLOW_CHANNEL : srcChannelId;
+        return this.channels.computeIfAbsent(channel, Bulkhead::new);
+    }
+
+    @Override
+    public void writeTo(StringBuilder out) {
+        PrometheusText.header(out, "cps_channel_queued", "gauge", "Authorization requests queued per channel.");
+        for (Bulkhead bulkhead : this.channels.values()) {
+            PrometheusText.sample(out, "cps_channel_queued", bulkhead.queued(), "channel", bulkhead.channel);
+        }
+        PrometheusText.header(out, "cps_channel_running", "gauge", "Authorization requests running per channel.");
+        for (Bulkhead bulkhead : this.channels.values()) {
+            PrometheusText.sample(out, "cps_channel_running", bulkhead.running(), "channel", bulkhead.channel);
+        }
+        PrometheusText.header(out, "cps_channel_rejected_total", "counter",
+                "Authorization requests rejected per channel, by reason.");
+        for (Bulkhead bulkhead : this.channels.values()) {
+            PrometheusText.sample(out, "cps_channel_rejected_total", bulkhead.rejectedRate.sum(),
+                    "channel", bulkhead.channel, "reason", "rate");
+            PrometheusText.sample(out, "cps_channel_rejected_total", bulkhead.rejectedQueue.sum(),
+                    "channel", bulkhead.channel, "reason", "queue");
+        }
+        PrometheusText.header(out, "cps_channel_latency_seconds", "summary",
+                "Authorization latency per channel including queueing; quantiles cover the interval since the "
+                        + "previous scrape.");
+        for (Bulkhead bulkhead : this.channels.values()) {
+            bulkhead.latency.writeTo(out, "cps_channel_latency_seconds", "channel", bulkhead.channel);
+        }
+    }
+
+    private void schedule(Bulkhead bulkhead) {
+        this.ready.add(bulkhead);
+        this.workers.execute(this.dispatcher);
+    }
+
+    /**
+     * 工作线程：从就绪环头取一个渠道，执行它的一个请求
+     */
+    private void dispatch() {
+        Bulkhead bulkhead = this.ready.poll();
+        if (bulkhead == null) {
+            return;
+        }
+        Task task;
+        boolean again;
+        synchronized (bulkhead) {
+            bulkhead.inReady = false;
+            task = bulkhead.queue.poll();
+            if (task == null) {
+                return;
+            }
+            bulkhead.running++;
+            again = bulkhead.markReady();
+        }
+        if (again) {
+            this.schedule(bulkhead);
+        }
+        try {
+            task.command.run();
+        } finally {
+            bulkhead.latency.record(System.nanoTime() - task.enqueuedNanos);
+            boolean schedule;
+            synchronized (bulkhead) {
+                bulkhead.running--;
+                schedule = bulkhead.markReady();
+            }
+            if (schedule) {
+                this.schedule(bulkhead);
+            }
+        }
+    }
+
+    private static final class Task {
+
+        final Runnable command;
+
+        final long enqueuedNanos;
+
+        Task(Runnable command, long enqueuedNanos) {
+            this.command = command;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    /**
+     * 一个渠道的舱壁
+     */
+    private final class Bulkhead implements Executor {
+
+        final String channel;
+
+        final LatencyRecorder latency = new LatencyRecorder();
+
+        final LongAdder rejectedRate = new LongAdder();
+
+        final LongAdder rejectedQueue = new LongAdder();
+
+        /**
+         * 理论到达时间（GCRA）
+         */
+        final AtomicLong tat = new AtomicLong(System.nanoTime());
+
+        /**
+         * 以下字段由 synchronized (this) 保护
+         */
+        final Queue<Task> queue = new ArrayDeque<>();
+
+        int running;
+
+        boolean inReady;
+
+        Bulkhead(String channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            long now = System.nanoTime();
+            if (!this.tryAcquire(now)) {
+                this.rejectedRate.increment();
+                throw new RejectedExecutionException("Rate limit exceeded for channel " + this.channel);
+            }
+            boolean schedule;
+            synchronized (this) {
+                if (this.queue.size() >= queueCapacity) {
+                    this.rejectedQueue.increment();
+                    throw new RejectedExecutionException("Queue full for channel " + this.channel);
+                }
+                this.queue.add(new Task(command, now));
+                schedule = this.markReady();
+            }
+            if (schedule) {
+                ChannelBulkheads.this.schedule(this);
+            }
+        }
+
+        /**
+         * 有待处理请求、未达到并发配额且不在就绪环中时标记为就绪（调用方持有锁）
+         *
+         * @return 是否需要放入就绪环
+         */
+        boolean markReady() {
+            if (this.inReady || this.running >= maxConcurrency || this.queue.isEmpty()) {
+                return false;
+            }
+            this.inReady = true;
+            return true;
+        }
+
+        private boolean tryAcquire(long now) {
+            if (emissionNanos == 0L) {
+                return true;
+            }
+            while (true) {
+                long current = this.tat.get();
+                long next = Math.max(current, now) + emissionNanos;
+                if (next - now > burstNanos) {
+                    return false;
+                }
+                if (this.tat.compareAndSet(current, next)) {
+                    return true;
+                }
+            }
+        }
+
+        synchronized int queued() {
+            return this.queue.size();
+        }
+
+        synchronized int running() {
+            return this.running;
+        }
+    }
+
+}
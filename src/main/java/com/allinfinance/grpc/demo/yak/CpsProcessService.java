@@ -3,44 +3,301 @@ package com.allinfinance.grpc.demo.yak;
 import com.allinfinance.grpc.demo.CpsProcessProto;
 import com.allinfinance.grpc.demo.CpsProcessServiceGrpc;
 import com.allinfinance.grpc.demo.YakMessageProto;
+import com.allinfinance.grpc.demo.support.CallDeadlines;
+import com.allinfinance.grpc.demo.support.IdempotencyCache;
+import com.allinfinance.grpc.demo.support.PipelinedStreamObserver;
+import com.allinfinance.grpc.demo.yak.auth.AuthorizationRules;
+import com.allinfinance.grpc.demo.yak.auth.AuthorizationService;
+import com.allinfinance.grpc.demo.yak.auth.BinProfileSource;
+import com.allinfinance.grpc.demo.yak.auth.RuleBasedAuthorizationService;
+import com.allinfinance.grpc.demo.yak.iso8583.Iso8583Encoder;
+import com.allinfinance.grpc.demo.yak.iso8583.Iso8583Fields;
+import com.allinfinance.grpc.demo.yak.iso8583.Iso8583Message;
+import io.grpc.Context;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.annotation.Resource;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import javax.annotation.Nullable;
 
 public class CpsProcessService extends CpsProcessServiceGrpc.CpsProcessServiceImplBase {
     protected final Logger logger = LoggerFactory.getLogger(getClass());
 
-//    @Resource(name="creditAuthorizationService")
-//    private AuthorizationService creditAuthorizationService;
+    /**
+     * 应答码域
+     */
+    static final int FIELD_RESPONSE_CODE = 39;
 
+    /**
+     * 应答报文原样带回的请求域：主账号、处理码、交易金额、传输时间、系统跟踪号、本地时间/日期、
+     * 受理机构、检索参考号、终端号、商户号、货币代码
+     */
+    private static final int[] ECHO_FIELDS = {2, 3, 4, 7, 11, 12, 13, 32, 37, 41, 42, 49};
+
+    /**
+     * 每个 authorizeStream 流同时处理的最大请求数（默认值）
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+
+    private final Executor executor;
+
+    private final int maxInFlight;
+
+    private final Heartbeats heartbeats = new Heartbeats();
+
+    private final CallDeadlines deadlines = new CallDeadlines();
+
+    private final CallDeadlines.Tracker authorizeDeadlines =
+            this.deadlines.tracker(CpsProcessServiceGrpc.getAuthorizeMethod());
+
+    private final CallDeadlines.Tracker authorizeStreamDeadlines =
+            this.deadlines.tracker(CpsProcessServiceGrpc.getAuthorizeStreamMethod());
+
+    private final AuthorizationService creditAuthorizationService;
+
+    @Nullable
+    private final IdempotencyCache<YakRequestKey, CpsProcessProto.YakMessageResponse> idempotency;
+
+    @Nullable
+    private final ChannelBulkheads bulkheads;
+
+    /**
+     * 不配置规则：只检查主账号与金额
+     */
+    public CpsProcessService() {
+        this(ForkJoinPool.commonPool(), DEFAULT_MAX_IN_FLIGHT, new RuleBasedAuthorizationService(
+                AuthorizationRules.EMPTY, BinProfileSource.NONE, 1024, 1024));
+    }
+
+    /**
+     * @param executor authorizeStream 的处理线程池
+     * @param maxInFlight 每个 authorizeStream 流同时处理的最大请求数
+     * @param creditAuthorizationService 授权服务
+     */
+    public CpsProcessService(Executor executor, int maxInFlight, AuthorizationService creditAuthorizationService) {
+        this(executor, maxInFlight, creditAuthorizationService, null);
+    }
+
+    /**
+     * @param executor authorizeStream 的处理线程池
+     * @param maxInFlight 每个 authorizeStream 流同时处理的最大请求数
+     * @param creditAuthorizationService 授权服务
+     * @param idempotency 授权的幂等缓存（按渠道与报文原文），为 null 时不去重
+     */
+    public CpsProcessService(Executor executor, int maxInFlight, AuthorizationService creditAuthorizationService,
+            @Nullable IdempotencyCache<YakRequestKey, CpsProcessProto.YakMessageResponse> idempotency) {
+        this(executor, maxInFlight, creditAuthorizationService, idempotency, null);
+    }
+
+    /**
+     * @param executor authorizeStream 的处理线程池
+     * @param maxInFlight 每个 authorizeStream 流同时处理的最大请求数
+     * @param creditAuthorizationService 授权服务
+     * @param idempotency 授权的幂等缓存（按渠道与报文原文），为 null 时不去重
+     * @param bulkheads 按渠道隔离的舱壁（在 {@code executor} 之上），为 null 时所有渠道共用 {@code executor}，
+     *                  authorize 在调用线程上处理
+     */
+    public CpsProcessService(Executor executor, int maxInFlight, AuthorizationService creditAuthorizationService,
+            @Nullable IdempotencyCache<YakRequestKey, CpsProcessProto.YakMessageResponse> idempotency,
+            @Nullable ChannelBulkheads bulkheads) {
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.creditAuthorizationService = creditAuthorizationService;
+        this.idempotency = idempotency;
+        this.bulkheads = bulkheads;
+    }
+
+    /**
+     * 配置了舱壁时，请求在所属渠道的舱壁中处理；渠道排队已满或超过速率时返回 RESOURCE_EXHAUSTED；
+     * 排队期间调用已超过截止时间或被取消的，不再授权
+     */
     @Override
     public void authorize(CpsProcessProto.YakMessageRequest request, StreamObserver<CpsProcessProto.YakMessageResponse> responseObserver) {
-        logger.info("QueryRequest: " + request);
+        Context context = Context.current();
+        if (this.bulkheads == null) {
+            this.handle(request, responseObserver, context);
+            return;
+        }
+        try {
+            this.bulkheads.executor(channelOf(request)).execute(() -> this.handle(request, responseObserver, context));
+        } catch (RejectedExecutionException e) {
+            responseObserver.onError(Status.RESOURCE_EXHAUSTED.withDescription(e.getMessage()).asRuntimeException());
+        }
+    }
 
+    private void handle(CpsProcessProto.YakMessageRequest request,
+            StreamObserver<CpsProcessProto.YakMessageResponse> responseObserver, Context context) {
+        if (this.authorizeDeadlines.rejectIfDead(context, responseObserver)) {
+            return;
+        }
         try {
-            // 模拟接口
-            // YakMessageProto.YakMessage = creditAuthorizationService.authorize(request.getYakMessage());
-
-            Map<Integer,String> map = new HashMap<>();
-            map.put(1,"a");
-            map.put(2,"b");
-            YakMessageProto.YakMessage yakMessage = request.getYakMessage().toBuilder()
-                    .putAllBodyAttributes(map)
-                    .build();
-
-            CpsProcessProto.YakMessageResponse rsp = CpsProcessProto.YakMessageResponse.newBuilder()
-                    .setYakMessage(yakMessage)
-                    .build();
+            CpsProcessProto.YakMessageResponse rsp = this.process(request);
+            if (this.authorizeDeadlines.wastedIfDead(context)) {
+                return;
+            }
             responseObserver.onNext(rsp);
-
+            responseObserver.onCompleted();
+        } catch (IllegalArgumentException e) {
+            responseObserver.onError(Status.INVALID_ARGUMENT
+                    .withDescription("Malformed ISO 8583 message: " + e.getMessage())
+                    .asRuntimeException());
         } catch (Exception e) {
             logger.error("query error", e);
             responseObserver.onError(e);
         }
-        responseObserver.onCompleted();
+    }
+
+    /**
+     * @return 心跳应答与计数，供 {@link HeartbeatInterceptor} 与指标使用
+     */
+    public Heartbeats heartbeats() {
+        return this.heartbeats;
+    }
+
+    /**
+     * @return 失效调用的计数，供指标使用
+     */
+    public CallDeadlines deadlines() {
+        return this.deadlines;
+    }
+
+    /**
+     * 双向流授权：请求在线程池中并发处理，应答按完成顺序返回，流量控制见 {@link PipelinedStreamObserver}；
+     * 单个请求的报文格式错误只在该请求的应答中返回 error，不结束流；心跳在传输线程上直接应答；
+     * 配置了舱壁时，请求在所属渠道的舱壁中处理，被舱壁拒绝的请求同样只在其应答中返回 error；
+     * 流失效后排队中的请求不再授权
+     */
+    @Override
+    public StreamObserver<CpsProcessProto.YakMessageRequest> authorizeStream(
+            StreamObserver<CpsProcessProto.YakMessageResponse> responseObserver) {
+        ChannelBulkheads bulkheads = this.bulkheads;
+        Function<CpsProcessProto.YakMessageRequest, Executor> executors = bulkheads == null
+                ? request -> this.executor
+                : request -> bulkheads.executor(channelOf(request));
+        return PipelinedStreamObserver.start(responseObserver, executors, this.maxInFlight, request -> {
+            try {
+                return this.process(request);
+            } catch (IllegalArgumentException e) {
+                return error(request, "Malformed ISO 8583 message: " + e.getMessage());
+            }
+        }, request -> this.heartbeats.respond(request, true), (request, e) -> error(request, e.getMessage()),
+                this.authorizeStreamDeadlines);
+    }
+
+    private static CpsProcessProto.YakMessageResponse error(CpsProcessProto.YakMessageRequest request, String error) {
+        return CpsProcessProto.YakMessageResponse.newBuilder()
+                .setRequestId(request.getRequestId())
+                .setError(error)
+                .build();
+    }
+
+    /**
+     * 请求所属的渠道（srcChannelId）
+     */
+    private static String channelOf(CpsProcessProto.YakMessageRequest request) {
+        return request.getPayloadCase() == CpsProcessProto.YakMessageRequest.PayloadCase.COMPACTMESSAGE
+                ? request.getCompactMessage().getSrcChannelId()
+                : request.getYakMessage().getSrcChannelId();
+    }
+
+    /**
+     * 处理一个请求，应答使用与请求相同的格式，并带回 requestId；
+     * 同一渠道重发的报文直接返回第一次的应答，不再授权
+     *
+     * @param request 请求
+     * @return 应答
+     * @throws IllegalArgumentException 报文格式错误
+     */
+    protected CpsProcessProto.YakMessageResponse process(CpsProcessProto.YakMessageRequest request) {
+        YakRequestKey key = this.idempotency == null ? null : YakRequestKey.of(request);
+        if (key == null) {
+            return this.execute(request);
+        }
+        CpsProcessProto.YakMessageResponse rsp = this.idempotency.execute(key, () -> this.execute(request));
+        if (!rsp.getRequestId().equals(request.getRequestId())) {
+            rsp = rsp.toBuilder().setRequestId(request.getRequestId()).build();
+        }
+        return rsp;
+    }
+
+    private CpsProcessProto.YakMessageResponse execute(CpsProcessProto.YakMessageRequest request) {
+        CpsProcessProto.YakMessageResponse.Builder rsp = CpsProcessProto.YakMessageResponse.newBuilder()
+                .setRequestId(request.getRequestId());
+        if (request.getPayloadCase() == CpsProcessProto.YakMessageRequest.PayloadCase.COMPACTMESSAGE) {
+            rsp.setCompactMessage(this.process(request.getCompactMessage()));
+        } else {
+            rsp.setYakMessage(this.process(request.getYakMessage()));
+        }
+        return rsp.build();
+    }
+
+    /**
+     * 处理一条报文：心跳原样返回；交易请求解析 rawMessage，组装应答报文，应答码同时放入 bodyAttributes
+     *
+     * @param yakMessage 请求
+     * @return 应答
+     * @throws IllegalArgumentException 报文格式错误
+     */
+    protected YakMessageProto.YakMessage process(YakMessageProto.YakMessage yakMessage) {
+        if (yakMessage.getIsHeartBeat()) {
+            return yakMessage;
+        }
+        Iso8583Message message = Iso8583Message.parse(yakMessage.getRawMessageBytes());
+        String responseCode = this.creditAuthorizationService.authorize(message);
+        return yakMessage.toBuilder()
+                .setRawMessageBytes(this.respond(message, responseCode).toByteString())
+                .setIsRequest(false)
+                .putBodyAttributes(FIELD_RESPONSE_CODE, responseCode)
+                .build();
+    }
+
+    /**
+     * 处理一条紧凑格式的报文：请求带有域索引时按位图与域定义校验后按索引读取，否则延迟解析 raw；
+     * 应答的域索引在组装报文时顺带生成
+     *
+     * @param message 请求
+     * @return 应答
+     * @throws IllegalArgumentException 报文或域索引格式错误
+     */
+    protected YakMessageProto.CompactYakMessage process(YakMessageProto.CompactYakMessage message) {
+        if (message.getIsHeartBeat()) {
+            return message;
+        }
+        Iso8583Fields fields = message.getFieldIndexCount() > 0
+                ? YakFields.of(message)
+                : Iso8583Message.parse(message.getRaw());
+        Iso8583Encoder response = this.respond(fields, this.creditAuthorizationService.authorize(fields));
+        YakMessageProto.CompactYakMessage.Builder builder = message.toBuilder()
+                .clearFieldIndex()
+                .setIsRequest(false);
+        builder.setRaw(response.toByteString((field, offset, length) ->
+                builder.addFieldIndex(field).addFieldIndex(offset).addFieldIndex(length)));
+        return builder.build();
+    }
+
+    /**
+     * 组装应答报文：应答 MTI、原样带回的请求域、应答码
+     */
+    private Iso8583Encoder respond(Iso8583Fields request, String responseCode) {
+        return new Iso8583Encoder()
+                .mti(responseMti(request.mti()))
+                .copy(request, ECHO_FIELDS)
+                .set(FIELD_RESPONSE_CODE, responseCode);
+    }
+
+    /**
+     * 请求（xx0x）与通知（xx2x）对应的应答 MTI，如 0100 → 0110
+     */
+    private static int responseMti(int mti) {
+        int function = mti / 10 % 10;
+        if (function != 0 && function != 2) {
+            throw new IllegalArgumentException("Not a request MTI: " + mti);
+        }
+        return mti + 10;
     }
 }
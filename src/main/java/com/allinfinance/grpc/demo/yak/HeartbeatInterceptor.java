@@ -0,0 +1,138 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.yak;
+
+import com.allinfinance.grpc.demo.CpsProcessProto;
+import com.allinfinance.grpc.demo.CpsProcessServiceGrpc;
+
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+/**
+ * 单次 authorize 的心跳快速通道
+ *
+ * <p>对 authorize 调用先不启动后续的拦截器与服务方法，自己拉取第一条消息：是心跳时直接发送预先构建的应答并结束调用；
+ * 否则才启动后续调用并转交这条消息。心跳因此不经过授权处理、指标与访问日志，只计入 {@link Heartbeats}。</p>
+ * <p>必须最后注册（最外层）才能跳过其他拦截器。authorizeStream 中的心跳由服务方法内的快速通道处理。</p>
+ *
+ */
+public final class HeartbeatInterceptor implements ServerInterceptor {
+
+    private static final String AUTHORIZE = CpsProcessServiceGrpc.getAuthorizeMethod().getFullMethodName();
+
+    private final Heartbeats heartbeats;
+
+    /**
+     * @param heartbeats 心跳应答
+     */
+    public HeartbeatInterceptor(Heartbeats heartbeats) {
+        this.heartbeats = heartbeats;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+            ServerCallHandler<ReqT, RespT> next) {
+        if (!AUTHORIZE.equals(call.getMethodDescriptor().getFullMethodName())) {
+            return next.startCall(call, headers);
+        }
+        HeartbeatListener<ReqT, RespT> listener = new HeartbeatListener<>(call, headers, next);
+        call.request(1);
+        return listener;
+    }
+
+    /**
+     * 收到第一条消息前不启动后续调用；gRPC 保证同一调用的 listener 回调不会并发
+     */
+    private final class HeartbeatListener<ReqT, RespT> extends ServerCall.Listener<ReqT> {
+
+        private final ServerCall<ReqT, RespT> call;
+
+        private final Metadata headers;
+
+        private final ServerCallHandler<ReqT, RespT> next;
+
+        private ServerCall.Listener<ReqT> delegate;
+
+        private boolean answered;
+
+        private boolean ready;
+
+        HeartbeatListener(ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+            this.call = call;
+            this.headers = headers;
+            this.next = next;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void onMessage(ReqT message) {
+            if (this.answered) {
+                return;
+            }
+            if (this.delegate == null) {
+                CpsProcessProto.YakMessageResponse rsp =
+                        heartbeats.respond((CpsProcessProto.YakMessageRequest) message, false);
+                if (rsp != null) {
+                    this.answered = true;
+                    this.call.sendHeaders(new Metadata());
+                    this.call.sendMessage((RespT) rsp);
+                    this.call.close(Status.OK, new Metadata());
+                    return;
+                }
+                this.start();
+            }
+            this.delegate.onMessage(message);
+        }
+
+        @Override
+        public void onHalfClose() {
+            if (this.answered) {
+                return;
+            }
+            if (this.delegate == null) {
+                // 客户端没有发送消息，交给服务方法按常规处理
+                this.start();
+            }
+            this.delegate.onHalfClose();
+        }
+
+        @Override
+        public void onCancel() {
+            if (this.delegate != null) {
+                this.delegate.onCancel();
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            if (this.delegate != null) {
+                this.delegate.onComplete();
+            }
+        }
+
+        @Override
+        public void onReady() {
+            if (this.delegate != null) {
+                this.delegate.onReady();
+            } else {
+                this.ready = true;
+            }
+        }
+
+        private void start() {
+            this.delegate = this.next.startCall(this.call, this.headers);
+            if (this.ready) {
+                this.delegate.onReady();
+            }
+        }
+    }
+
+}
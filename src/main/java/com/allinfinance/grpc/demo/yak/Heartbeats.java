@@ -0,0 +1,86 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.yak;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import com.allinfinance.grpc.demo.CpsProcessProto;
+import com.allinfinance.grpc.demo.YakMessageProto;
+import com.allinfinance.grpc.demo.metrics.MetricsSource;
+import com.allinfinance.grpc.demo.metrics.PrometheusText;
+
+/**
+ * 心跳应答
+ *
+ * <p>心跳不经过授权处理：应答是预先构建的常量（按请求格式选择旧格式或紧凑格式），
+ * 只有请求带 requestId 时才复制一份设置 requestId。心跳单独计数，不计入 RPC 指标与访问日志。</p>
+ *
+ */
+public final class Heartbeats implements MetricsSource {
+
+    private static final CpsProcessProto.YakMessageResponse LEGACY_RESPONSE =
+            CpsProcessProto.YakMessageResponse.newBuilder()
+                    .setYakMessage(YakMessageProto.YakMessage.newBuilder()
+                            .setIsHeartBeat(true))
+                    .build();
+
+    private static final CpsProcessProto.YakMessageResponse COMPACT_RESPONSE =
+            CpsProcessProto.YakMessageResponse.newBuilder()
+                    .setCompactMessage(YakMessageProto.CompactYakMessage.newBuilder()
+                            .setIsHeartBeat(true))
+                    .build();
+
+    private final LongAdder unary = new LongAdder();
+
+    private final LongAdder stream = new LongAdder();
+
+    /**
+     * @param request 请求
+     * @return 是否为心跳
+     */
+    public static boolean isHeartbeat(CpsProcessProto.YakMessageRequest request) {
+        switch (request.getPayloadCase()) {
+            case YAKMESSAGE:
+                return request.getYakMessage().getIsHeartBeat();
+            case COMPACTMESSAGE:
+                return request.getCompactMessage().getIsHeartBeat();
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 应答心跳
+     *
+     * @param request 请求
+     * @param streaming 是否来自 authorizeStream（用于计数）
+     * @return 心跳应答；不是心跳时返回 null
+     */
+    public CpsProcessProto.YakMessageResponse respond(CpsProcessProto.YakMessageRequest request,
+            boolean streaming) {
+        if (!isHeartbeat(request)) {
+            return null;
+        }
+        (streaming ? this.stream : this.unary).increment();
+        CpsProcessProto.YakMessageResponse rsp =
+                request.getPayloadCase() == CpsProcessProto.YakMessageRequest.PayloadCase.COMPACTMESSAGE
+                        ? COMPACT_RESPONSE : LEGACY_RESPONSE;
+        if (!request.getRequestId().isEmpty()) {
+            rsp = rsp.toBuilder().setRequestId(request.getRequestId()).build();
+        }
+        return rsp;
+    }
+
+    @Override
+    public void writeTo(StringBuilder out) {
+        PrometheusText.header(out, "yak_heartbeats_total", "counter", "Heartbeats answered on the fast path.");
+        PrometheusText.sample(out, "yak_heartbeats_total", this.unary.sum(), "rpc", "authorize");
+        PrometheusText.sample(out, "yak_heartbeats_total", this.stream.sum(), "rpc", "authorizeStream");
+    }
+
+}
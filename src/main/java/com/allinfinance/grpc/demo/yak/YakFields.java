@@ -0,0 +1,282 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.yak;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.allinfinance.grpc.demo.YakMessageProto;
+import com.allinfinance.grpc.demo.yak.iso8583.Iso8583Fields;
+import com.allinfinance.grpc.demo.yak.iso8583.Iso8583Message;
+import com.allinfinance.grpc.demo.yak.iso8583.Iso8583Spec;
+import com.google.protobuf.ByteString;
+
+/**
+ * {@link YakMessageProto.CompactYakMessage} 的域访问
+ *
+ * <p>按域号下标的 {@code int[]} 保存每个域在 raw 中的偏移与长度，读取时直接访问 raw，
+ * 不创建 Integer 键、String 值与 map entry。</p>
+ * <p>域索引来自客户端，不可信：{@link #of(YakMessageProto.CompactYakMessage)} 按 raw 的位图与域定义逐项校验，
+ * 每一项都必须与解析 raw 得到的结果完全相同，因此授权读取的金额、卡号等一定是报文中的域，
+ * 按 raw 去重（{@link YakRequestKey}）也不会把索引不同的请求当成同一个。</p>
+ * <p>非线程安全。</p>
+ *
+ */
+public final class YakFields implements Iso8583Fields {
+
+    private static final int MTI_LENGTH = 4;
+
+    private static final int BITMAP_LENGTH = 16;
+
+    private final ByteString raw;
+
+    private final int[] offsets = new int[Iso8583Spec.MAX_FIELD + 1];
+
+    private final int[] lengths = new int[Iso8583Spec.MAX_FIELD + 1];
+
+    /**
+     * 有该域时对应位为 1：第 1 ~ 64 域在 low，第 65 ~ 128 域在 high
+     */
+    private long low;
+
+    private long high;
+
+    private YakFields(ByteString raw) {
+        this.raw = raw;
+    }
+
+    /**
+     * 按消息中的域索引创建，按 {@link Iso8583Spec#STANDARD} 校验
+     *
+     * @param message 紧凑格式的消息
+     * @return 域访问
+     * @throws IllegalArgumentException 报文格式错误，或索引与报文不符
+     */
+    public static YakFields of(YakMessageProto.CompactYakMessage message) {
+        return of(message, Iso8583Spec.STANDARD);
+    }
+
+    /**
+     * 按消息中的域索引创建
+     *
+     * <p>顺序扫描一遍 raw：位图中的每个域按序对应一项索引，域号、偏移（变长域为长度前缀之后）、
+     * 长度（定长域为定义的长度，变长域为长度前缀的值）都必须相符，索引中也不能有位图之外的域。</p>
+     *
+     * @param message 紧凑格式的消息
+     * @param spec 域定义
+     * @return 域访问
+     * @throws IllegalArgumentException 报文格式错误，或索引与报文不符
+     */
+    public static YakFields of(YakMessageProto.CompactYakMessage message, Iso8583Spec spec) {
+        YakFields fields = new YakFields(message.getRaw());
+        int count = message.getFieldIndexCount();
+        if (count % 3 != 0) {
+            throw new IllegalArgumentException("Invalid field index count: " + count);
+        }
+        if (fields.raw.size() < MTI_LENGTH + BITMAP_LENGTH) {
+            throw new IllegalArgumentException("Message too short: " + fields.raw.size());
+        }
+        fields.parseDigits(0, MTI_LENGTH);
+        long primary = fields.parseHex(MTI_LENGTH);
+        long secondary = 0L;
+        int position = MTI_LENGTH + BITMAP_LENGTH;
+        if (primary < 0L) {
+            secondary = fields.parseHex(position);
+            position += BITMAP_LENGTH;
+        }
+        int i = 0;
+        for (int field = 2; field <= Iso8583Spec.MAX_FIELD; field++) {
+            // 位图的最高位为第 1 位（第二位图中为第 65 位）
+            if (((field <= 64 ? primary : secondary) & (Long.MIN_VALUE >>> ((field - 1) & 63))) == 0L) {
+                continue;
+            }
+            if (i == count || message.getFieldIndex(i) != field) {
+                throw new IllegalArgumentException("Field index does not match bitmap at field " + field);
+            }
+            Iso8583Spec.Type type = spec.type(field);
+            if (type == null) {
+                throw new IllegalArgumentException("Undefined field: " + field);
+            }
+            int length;
+            switch (type) {
+                case LLVAR:
+                    length = (int) fields.parseDigits(position, 2);
+                    position += 2;
+                    break;
+                case LLLVAR:
+                    length = (int) fields.parseDigits(position, 3);
+                    position += 3;
+                    break;
+                case FIXED:
+                default:
+                    length = spec.length(field);
+                    break;
+            }
+            if (length > spec.length(field) || message.getFieldIndex(i + 1) != position
+                    || message.getFieldIndex(i + 2) != length) {
+                throw new IllegalArgumentException("Field index does not match field " + field + ": "
+                        + message.getFieldIndex(i + 1) + "+" + message.getFieldIndex(i + 2)
+                        + ", expected " + position + "+" + length);
+            }
+            fields.put(field, position, length);
+            position += length;
+            i += 3;
+        }
+        if (i != count) {
+            throw new IllegalArgumentException("Field index has field not in bitmap: " + message.getFieldIndex(i));
+        }
+        return fields;
+    }
+
+    /**
+     * 解析报文的全部域并建立索引
+     *
+     * @param message 报文
+     * @return 域访问
+     */
+    public static YakFields index(Iso8583Message message) {
+        YakFields fields = new YakFields(message.raw());
+        message.forEachField(fields::put);
+        return fields;
+    }
+
+    /**
+     * 把域索引写入消息（按域号升序）
+     *
+     * @param builder 紧凑格式的消息
+     */
+    public void writeIndex(YakMessageProto.CompactYakMessage.Builder builder) {
+        for (int field = 2; field <= Iso8583Spec.MAX_FIELD; field++) {
+            if (this.has(field)) {
+                builder.addFieldIndex(field)
+                        .addFieldIndex(this.offsets[field])
+                        .addFieldIndex(this.lengths[field]);
+            }
+        }
+    }
+
+    /**
+     * 全部域转为 map（兼容旧格式的 bodyAttributes）
+     *
+     * @return 域号 → 域数据
+     */
+    public Map<Integer, String> toMap() {
+        Map<Integer, String> map = new TreeMap<>();
+        for (int field = 2; field <= Iso8583Spec.MAX_FIELD; field++) {
+            if (this.has(field)) {
+                map.put(field, this.getString(field));
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public int mti() {
+        return (int) this.parseDigits(0, MTI_LENGTH);
+    }
+
+    @Override
+    public boolean has(int field) {
+        if (field < 2 || field > Iso8583Spec.MAX_FIELD) {
+            return false;
+        }
+        long bit = 1L << ((field - 1) & 63);
+        return ((field <= 64 ? this.low : this.high) & bit) != 0L;
+    }
+
+    @Override
+    public int length(int field) {
+        return this.has(field) ? this.lengths[field] : -1;
+    }
+
+    @Override
+    public ByteString bytes(int field) {
+        if (!this.has(field)) {
+            return null;
+        }
+        int offset = this.offsets[field];
+        return this.raw.substring(offset, offset + this.lengths[field]);
+    }
+
+    @Override
+    public String getString(int field) {
+        ByteString bytes = this.bytes(field);
+        return bytes == null ? null : bytes.toString(StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public long getLong(int field, long defaultValue) {
+        return this.has(field) ? this.parseDigits(this.offsets[field], this.lengths[field]) : defaultValue;
+    }
+
+    @Override
+    public boolean contentEquals(int field, CharSequence value) {
+        if (!this.has(field) || this.lengths[field] != value.length()) {
+            return false;
+        }
+        int offset = this.offsets[field];
+        for (int i = 0; i < value.length(); i++) {
+            if (this.raw.byteAt(offset + i) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void put(int field, int offset, int length) {
+        if (field < 2 || field > Iso8583Spec.MAX_FIELD) {
+            throw new IllegalArgumentException("Invalid field: " + field);
+        }
+        if (offset < 0 || length < 0 || offset > this.raw.size() - length) {
+            throw new IllegalArgumentException("Field " + field + " out of range: " + offset + "+" + length);
+        }
+        this.offsets[field] = offset;
+        this.lengths[field] = length;
+        long bit = 1L << ((field - 1) & 63);
+        if (field <= 64) {
+            this.low |= bit;
+        } else {
+            this.high |= bit;
+        }
+    }
+
+    private long parseDigits(int offset, int length) {
+        if (length > 18) {
+            throw new IllegalArgumentException("Numeric too long at " + offset + ": " + length);
+        }
+        if (offset + length > this.raw.size()) {
+            throw new IllegalArgumentException("Invalid numeric at " + offset + ", length " + length);
+        }
+        long value = 0L;
+        for (int i = offset; i < offset + length; i++) {
+            int digit = this.raw.byteAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IllegalArgumentException("Invalid digit at " + i);
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private long parseHex(int offset) {
+        if (offset + BITMAP_LENGTH > this.raw.size()) {
+            throw new IllegalArgumentException("Missing bitmap at " + offset);
+        }
+        long value = 0L;
+        for (int i = offset; i < offset + BITMAP_LENGTH; i++) {
+            int digit = Character.digit(this.raw.byteAt(i), 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException("Invalid bitmap at " + i);
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.yak;
+
+import com.allinfinance.grpc.demo.YakMessageProto;
+import com.allinfinance.grpc.demo.yak.iso8583.Iso8583Message;
+
+/**
+ * {@link YakMessageProto.YakMessage} 与 {@link YakMessageProto.CompactYakMessage} 互相转换
+ *
+ * <p>用于还在使用 {@code map<int32,string> bodyAttributes} 的客户端；两种格式中报文本身（rawMessage / raw）
+ * 都是权威数据，bodyAttributes 只是报文域的展开。</p>
+ *
+ */
+public final class YakMessageBridge {
+
+    private YakMessageBridge() {
+    }
+
+    /**
+     * 转为紧凑格式：raw 取 rawMessage，域索引由解析 raw 得到；bodyAttributes 中不在报文里的项不保留
+     *
+     * @param message 旧格式
+     * @return 紧凑格式
+     * @throws IllegalArgumentException 报文格式错误
+     */
+    public static YakMessageProto.CompactYakMessage toCompact(YakMessageProto.YakMessage message) {
+        YakMessageProto.CompactYakMessage.Builder builder = YakMessageProto.CompactYakMessage.newBuilder()
+                .setRaw(message.getRawMessageBytes())
+                .setIsHeartBeat(message.getIsHeartBeat())
+                .setSrcChannelId(message.getSrcChannelId())
+                .setIsRequest(message.getIsRequest())
+                .setIsInComing(message.getIsInComing());
+        if (!builder.getRaw().isEmpty()) {
+            YakFields.index(Iso8583Message.parse(builder.getRaw())).writeIndex(builder);
+        }
+        return builder.build();
+    }
+
+    /**
+     * 转为旧格式：rawMessage 取 raw，域索引展开为 bodyAttributes
+     *
+     * @param message 紧凑格式
+     * @return 旧格式
+     * @throws IllegalArgumentException 域索引格式错误
+     */
+    public static YakMessageProto.YakMessage toLegacy(YakMessageProto.CompactYakMessage message) {
+        return YakMessageProto.YakMessage.newBuilder()
+                .setRawMessageBytes(message.getRaw())
+                .setIsHeartBeat(message.getIsHeartBeat())
+                .setSrcChannelId(message.getSrcChannelId())
+                .setIsRequest(message.getIsRequest())
+                .setIsInComing(message.getIsInComing())
+                .putAllBodyAttributes(YakFields.of(message).toMap())
+                .build();
+    }
+
+}
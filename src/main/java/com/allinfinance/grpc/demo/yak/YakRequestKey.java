@@ -0,0 +1,72 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.yak;
+
+import com.allinfinance.grpc.demo.CpsProcessProto;
+import com.google.protobuf.ByteString;
+
+/**
+ * 授权请求的幂等 key：渠道（srcChannelId）+ 报文原文
+ *
+ * <p>渠道超时重发的是同一份报文，因此以报文原文判断重复；requestId 只在一个流内唯一，不作为 key。</p>
+ *
+ */
+public final class YakRequestKey {
+
+    private final String srcChannelId;
+
+    private final ByteString raw;
+
+    private YakRequestKey(String srcChannelId, ByteString raw) {
+        this.srcChannelId = srcChannelId;
+        this.raw = raw;
+    }
+
+    /**
+     * @param request 请求
+     * @return 幂等 key；心跳或没有报文时返回 null（不做幂等）
+     */
+    public static YakRequestKey of(CpsProcessProto.YakMessageRequest request) {
+        switch (request.getPayloadCase()) {
+            case YAKMESSAGE:
+                if (request.getYakMessage().getIsHeartBeat()) {
+                    return null;
+                }
+                return of(request.getYakMessage().getSrcChannelId(), request.getYakMessage().getRawMessageBytes());
+            case COMPACTMESSAGE:
+                if (request.getCompactMessage().getIsHeartBeat()) {
+                    return null;
+                }
+                return of(request.getCompactMessage().getSrcChannelId(), request.getCompactMessage().getRaw());
+            default:
+                return null;
+        }
+    }
+
+    private static YakRequestKey of(String srcChannelId, ByteString raw) {
+        return raw.isEmpty() ? null : new YakRequestKey(srcChannelId, raw);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof YakRequestKey)) {
+            return false;
+        }
+        YakRequestKey other = (YakRequestKey) o;
+        return this.raw.equals(other.raw) && this.srcChannelId.equals(other.srcChannelId);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * this.srcChannelId.hashCode() + this.raw.hashCode();
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.yak.auth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 编译后的授权规则（不可变）
+ *
+ * <p>规则文件是 properties 格式，加载时编译为数组与位图，授权时只做下标访问，不解析、不查找字符串：</p>
+ * <pre>
+ * # 单笔限额（最小单位，与 4 域一致）：默认值，以及按交易类型（3 域前两位）覆盖
+ * limit.default=1000000
+ * limit.type.01=200000
+ * # 禁止的商户类型（18 域），逗号分隔，支持区间
+ * mcc.blocked=7995,5967,6010-6012
+ * # 每张卡在时间窗口内的最大笔数与累计金额，0 或不配置表示不限
+ * velocity.windowSeconds=60
+ * velocity.maxCount=20
+ * velocity.maxAmount=5000000
+ * </pre>
+ *
+ */
+public final class AuthorizationRules {
+
+    /**
+     * 不限制任何交易
+     */
+    public static final AuthorizationRules EMPTY = compile(new Properties());
+
+    private static final int TRANSACTION_TYPES = 100;
+
+    private static final int MCC_COUNT = 10000;
+
+    /**
+     * 单笔限额，下标为交易类型
+     */
+    private final long[] limits;
+
+    private final long defaultLimit;
+
+    private final BitSet blockedMcc;
+
+    private final long velocityWindowNanos;
+
+    private final int velocityMaxCount;
+
+    private final long velocityMaxAmount;
+
+    private AuthorizationRules(long[] limits, long defaultLimit, BitSet blockedMcc, long velocityWindowNanos,
+            int velocityMaxCount, long velocityMaxAmount) {
+        this.limits = limits;
+        this.defaultLimit = defaultLimit;
+        this.blockedMcc = blockedMcc;
+        this.velocityWindowNanos = velocityWindowNanos;
+        this.velocityMaxCount = velocityMaxCount;
+        this.velocityMaxAmount = velocityMaxAmount;
+    }
+
+    /**
+     * 读取并编译规则文件
+     *
+     * @param file 规则文件
+     * @return 规则
+     * @throws IOException 读取文件出错
+     * @throws IllegalArgumentException 规则格式错误
+     */
+    public static AuthorizationRules load(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        return compile(properties);
+    }
+
+    /**
+     * 编译规则
+     *
+     * @param properties 规则
+     * @return 规则
+     * @throws IllegalArgumentException 规则格式错误
+     */
+    public static AuthorizationRules compile(Properties properties) {
+        long[] limits = new long[TRANSACTION_TYPES];
+        long defaultLimit = positiveOrUnlimited(properties, "limit.default");
+        Arrays.fill(limits, defaultLimit);
+        BitSet blockedMcc = new BitSet(MCC_COUNT);
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith("limit.type.")) {
+                int type = parseInt(key, key.substring("limit.type.".length()));
+                if (type < 0 || type >= TRANSACTION_TYPES) {
+                    throw new IllegalArgumentException("Invalid transaction type: " + key);
+                }
+                limits[type] = positiveOrUnlimited(properties, key);
+            }
+        }
+        for (String item : properties.getProperty("mcc.blocked", "").split(",")) {
+            item = item.trim();
+            if (item.isEmpty()) {
+                continue;
+            }
+            int dash = item.indexOf('-');
+            int from = parseInt("mcc.blocked", dash < 0 ? item : item.substring(0, dash).trim());
+            int to = dash < 0 ? from : parseInt("mcc.blocked", item.substring(dash + 1).trim());
+            if (from < 0 || to >= MCC_COUNT || from > to) {
+                throw new IllegalArgumentException("Invalid mcc.blocked: " + item);
+            }
+            blockedMcc.set(from, to + 1);
+        }
+        long window = TimeUnit.SECONDS.toNanos(parseLong(properties, "velocity.windowSeconds"));
+        return new AuthorizationRules(limits, defaultLimit, blockedMcc, window,
+                (int) parseLong(properties, "velocity.maxCount"), parseLong(properties, "velocity.maxAmount"));
+    }
+
+    /**
+     * @param transactionType 交易类型（3 域前两位）
+     * @return 单笔限额；{@link Long#MAX_VALUE} 表示不限
+     */
+    public long limit(int transactionType) {
+        return transactionType >= 0 && transactionType < TRANSACTION_TYPES
+                ? this.limits[transactionType] : this.defaultLimit;
+    }
+
+    /**
+     * @param mcc 商户类型
+     * @return 是否禁止
+     */
+    public boolean mccBlocked(int mcc) {
+        return mcc >= 0 && mcc < MCC_COUNT && this.blockedMcc.get(mcc);
+    }
+
+    /**
+     * @return 是否检查交易频率
+     */
+    public boolean velocityEnabled() {
+        return this.velocityWindowNanos > 0L && (this.velocityMaxCount > 0 || this.velocityMaxAmount > 0L);
+    }
+
+    public long velocityWindowNanos() {
+        return this.velocityWindowNanos;
+    }
+
+    /**
+     * @return 窗口内最大笔数，0 表示不限
+     */
+    public int velocityMaxCount() {
+        return this.velocityMaxCount;
+    }
+
+    /**
+     * @return 窗口内最大累计金额，0 表示不限
+     */
+    public long velocityMaxAmount() {
+        return this.velocityMaxAmount;
+    }
+
+    private static long positiveOrUnlimited(Properties properties, String key) {
+        long value = parseLong(properties, key);
+        return value <= 0L ? Long.MAX_VALUE : value;
+    }
+
+    private static long parseLong(Properties properties, String key) {
+        String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return 0L;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + key + ": " + value, e);
+        }
+    }
+
+    private static int parseInt(String key, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + key + ": " + value, e);
+        }
+    }
+
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.yak.auth;
+
+import com.allinfinance.grpc.demo.yak.iso8583.Iso8583Fields;
+
+/**
+ * 授权服务
+ *
+ * <p>实现必须线程安全；只读取决策需要的域。</p>
+ *
+ */
+@FunctionalInterface
+public interface AuthorizationService {
+
+    /**
+     * 授权
+     *
+     * @param request 请求报文
+     * @return 应答码（39 域），如 00 批准
+     * @throws IllegalArgumentException 报文格式错误
+     */
+    String authorize(Iso8583Fields request);
+
+}
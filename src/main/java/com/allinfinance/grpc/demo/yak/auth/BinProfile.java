@@ -0,0 +1,42 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.yak.auth;
+
+/**
+ * 卡 BIN（主账号前 6 位）资料
+ *
+ */
+public final class BinProfile {
+
+    /**
+     * 没有资料的 BIN：不限制
+     */
+    public static final BinProfile DEFAULT = new BinProfile(false, Long.MAX_VALUE);
+
+    private final boolean blocked;
+
+    private final long singleLimit;
+
+    /**
+     * @param blocked 是否禁止交易
+     * @param singleLimit 单笔限额（最小单位），{@link Long#MAX_VALUE} 表示不限
+     */
+    public BinProfile(boolean blocked, long singleLimit) {
+        this.blocked = blocked;
+        this.singleLimit = singleLimit;
+    }
+
+    public boolean blocked() {
+        return this.blocked;
+    }
+
+    public long singleLimit() {
+        return this.singleLimit;
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.yak.auth;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 卡 BIN 资料来源（如卡管系统、数据库），通常较慢，由 {@link RuleBasedAuthorizationService} 缓存
+ *
+ */
+@FunctionalInterface
+public interface BinProfileSource {
+
+    /**
+     * 没有任何资料
+     */
+    BinProfileSource NONE = bin -> BinProfile.DEFAULT;
+
+    /**
+     * 查询 BIN 资料
+     *
+     * @param bin 主账号前 6 位
+     * @return 资料；没有资料时返回 {@link BinProfile#DEFAULT}，不能返回 null
+     */
+    BinProfile load(int bin);
+
+    /**
+     * 从文件读取 BIN 资料，每行 {@code bin,blocked,singleLimit}，{@code #} 开头为注释；singleLimit 为空表示不限
+     *
+     * @param file 文件
+     * @return 资料来源
+     * @throws IOException 读取文件出错
+     */
+    static BinProfileSource fromFile(Path file) throws IOException {
+        Map<Integer, BinProfile> profiles = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] columns = line.split(",", -1);
+                if (columns.length != 3) {
+                    throw new IllegalArgumentException("Invalid BIN profile: " + line);
+                }
+                long limit = columns[2].trim().isEmpty() ? Long.MAX_VALUE : Long.parseLong(columns[2].trim());
+                profiles.put(Integer.parseInt(columns[0].trim()),
+                        new BinProfile(Boolean.parseBoolean(columns[1].trim()), limit));
+            }
+        }
+        return bin -> profiles.getOrDefault(bin, BinProfile.DEFAULT);
+    }
+
+}
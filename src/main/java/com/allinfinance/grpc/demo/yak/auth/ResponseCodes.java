@@ -0,0 +1,54 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.yak.auth;
+
+/**
+ * 应答码（39 域）
+ *
+ */
+public final class ResponseCodes {
+
+    /**
+     * 批准
+     */
+    public static final String APPROVED = "00";
+
+    /**
+     * 无效金额
+     */
+    public static final String INVALID_AMOUNT = "13";
+
+    /**
+     * 无效卡号
+     */
+    public static final String INVALID_CARD = "14";
+
+    /**
+     * 不允许持卡人进行的交易
+     */
+    public static final String NOT_PERMITTED = "57";
+
+    /**
+     * 超出金额限制
+     */
+    public static final String EXCEEDS_AMOUNT_LIMIT = "61";
+
+    /**
+     * 受限制的卡
+     */
+    public static final String RESTRICTED_CARD = "62";
+
+    /**
+     * 超出交易次数限制
+     */
+    public static final String EXCEEDS_FREQUENCY_LIMIT = "65";
+
+    private ResponseCodes() {
+    }
+
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.yak.auth;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+
+import com.allinfinance.grpc.demo.metrics.MetricsSource;
+import com.allinfinance.grpc.demo.metrics.PrometheusText;
+import com.allinfinance.grpc.demo.support.BoundedCache;
+import com.allinfinance.grpc.demo.support.NamedThreadFactory;
+import com.allinfinance.grpc.demo.yak.iso8583.Iso8583Fields;
+import com.google.protobuf.ByteString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 基于规则的授权
+ *
+ * <p>依次检查：主账号、金额、商户类型（MCC）、卡 BIN 资料、单笔限额、交易频率。规则由 {@link AuthorizationRules}
+ * 预先编译；BIN 资料经 {@link BoundedCache} 缓存；交易频率按卡号分别计数，计数器同样放在有界缓存中，
+ * 长时间没有交易的卡会被淘汰。</p>
+ * <p>规则文件被修改后由后台线程重新编译，再整体替换规则的引用：进行中的请求继续使用读到的旧规则，
+ * 不需要加锁或暂停；编译失败时保留旧规则。</p>
+ *
+ */
+public final class RuleBasedAuthorizationService implements AuthorizationService, MetricsSource, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(RuleBasedAuthorizationService.class);
+
+    private static final int FIELD_PAN = 2;
+
+    private static final int FIELD_PROCESSING_CODE = 3;
+
+    private static final int FIELD_AMOUNT = 4;
+
+    private static final int FIELD_MCC = 18;
+
+    private static final int BIN_LENGTH = 6;
+
+    private volatile AuthorizationRules rules;
+
+    @Nullable
+    private final Path rulesFile;
+
+    private final BinProfileSource binSource;
+
+    private final BoundedCache<Integer, BinProfile> binCache;
+
+    private final BoundedCache<String, Velocity> velocities;
+
+    private final ConcurrentMap<String, LongAdder> decisions = new ConcurrentHashMap<>();
+
+    private final LongAdder reloads = new LongAdder();
+
+    private final LongAdder reloadFailures = new LongAdder();
+
+    @Nullable
+    private ScheduledExecutorService reloader;
+
+    private volatile FileTime rulesModified;
+
+    /**
+     * 固定规则，不重新加载
+     *
+     * @param rules 规则
+     * @param binSource BIN 资料来源
+     * @param binCacheSize BIN 资料缓存的最大条目数
+     * @param velocityCacheSize 交易频率计数器的最大条目数（卡数）
+     */
+    public RuleBasedAuthorizationService(AuthorizationRules rules, BinProfileSource binSource, int binCacheSize,
+            int velocityCacheSize) {
+        this.rules = rules;
+        this.rulesFile = null;
+        this.binSource = binSource;
+        this.binCache = new BoundedCache<>(binCacheSize);
+        this.velocities = new BoundedCache<>(velocityCacheSize);
+    }
+
+    /**
+     * 从文件加载规则，并定期检查文件是否被修改
+     *
+     * @param rulesFile 规则文件
+     * @param reloadIntervalMillis 检查间隔（毫秒），小于等于 0 时不检查
+     * @param binSource BIN 资料来源
+     * @param binCacheSize BIN 资料缓存的最大条目数
+     * @param velocityCacheSize 交易频率计数器的最大条目数（卡数）
+     * @throws IOException 读取规则文件出错
+     */
+    public RuleBasedAuthorizationService(Path rulesFile, long reloadIntervalMillis, BinProfileSource binSource,
+            int binCacheSize, int velocityCacheSize) throws IOException {
+        this.rulesFile = rulesFile;
+        this.rulesModified = Files.getLastModifiedTime(rulesFile);
+        this.rules = AuthorizationRules.load(rulesFile);
+        this.binSource = binSource;
+        this.binCache = new BoundedCache<>(binCacheSize);
+        this.velocities = new BoundedCache<>(velocityCacheSize);
+        if (reloadIntervalMillis > 0L) {
+            this.reloader = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("authorization-rules"));
+            this.reloader.scheduleWithFixedDelay(this::reloadIfModified, reloadIntervalMillis, reloadIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+        logger.info("Authorization rules loaded: {}", rulesFile);
+    }
+
+    @Override
+    public String authorize(Iso8583Fields request) {
+        return this.count(this.decide(request, this.rules));
+    }
+
+    /**
+     * 替换规则
+     *
+     * @param rules 新规则
+     */
+    public void setRules(AuthorizationRules rules) {
+        this.rules = rules;
+        this.reloads.increment();
+    }
+
+    private String decide(Iso8583Fields request, AuthorizationRules rules) {
+        ByteString pan = request.bytes(FIELD_PAN);
+        if (pan == null || pan.size() < BIN_LENGTH) {
+            return ResponseCodes.INVALID_CARD;
+        }
+        long amount = request.getLong(FIELD_AMOUNT, 0L);
+        if (amount <= 0L) {
+            return ResponseCodes.INVALID_AMOUNT;
+        }
+        if (rules.mccBlocked((int) request.getLong(FIELD_MCC, -1L))) {
+            return ResponseCodes.NOT_PERMITTED;
+        }
+        BinProfile profile = this.binCache.get(bin(pan), this.binSource::load);
+        if (profile.blocked()) {
+            return ResponseCodes.RESTRICTED_CARD;
+        }
+        int transactionType = (int) (request.getLong(FIELD_PROCESSING_CODE, 0L) / 10000L);
+        if (amount > Math.min(rules.limit(transactionType), profile.singleLimit())) {
+            return ResponseCodes.EXCEEDS_AMOUNT_LIMIT;
+        }
+        if (rules.velocityEnabled()) {
+            Velocity velocity = this.velocities.get(pan.toString(StandardCharsets.US_ASCII), key -> new Velocity());
+            if (!velocity.tryAcquire(System.nanoTime(), amount, rules)) {
+                return ResponseCodes.EXCEEDS_FREQUENCY_LIMIT;
+            }
+        }
+        return ResponseCodes.APPROVED;
+    }
+
+    private String count(String code) {
+        LongAdder counter = this.decisions.get(code);
+        if (counter == null) {
+            counter = this.decisions.computeIfAbsent(code, k -> new LongAdder());
+        }
+        counter.increment();
+        return code;
+    }
+
+    private void reloadIfModified() {
+        try {
+            FileTime modified = Files.getLastModifiedTime(this.rulesFile);
+            if (modified.equals(this.rulesModified)) {
+                return;
+            }
+            this.setRules(AuthorizationRules.load(this.rulesFile));
+            // 加载成功后才记录修改时间：文件写到一半时解析失败，下次检查会重试
+            this.rulesModified = modified;
+            logger.info("Authorization rules reloaded: {}", this.rulesFile);
+        } catch (IOException | RuntimeException e) {
+            this.reloadFailures.increment();
+            logger.error("Authorization rules reload error, keep the previous rules", e);
+        }
+    }
+
+    private static int bin(ByteString pan) {
+        int bin = 0;
+        for (int i = 0; i < BIN_LENGTH; i++) {
+            int digit = pan.byteAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IllegalArgumentException("Invalid PAN");
+            }
+            bin = bin * 10 + digit;
+        }
+        return bin;
+    }
+
+    @Override
+    public void close() {
+        if (this.reloader != null) {
+            this.reloader.shutdownNow();
+        }
+    }
+
+    @Override
+    public void writeTo(StringBuilder out) {
+        PrometheusText.header(out, "authorize_decisions_total", "counter", "Authorization decisions, by response code.");
+        for (Map.Entry<String, LongAdder> entry : this.decisions.entrySet()) {
+            PrometheusText.sample(out, "authorize_decisions_total", entry.getValue().sum(), "code", entry.getKey());
+        }
+        PrometheusText.header(out, "authorize_rules_reloads_total", "counter", "Authorization rule reloads.");
+        PrometheusText.sample(out, "authorize_rules_reloads_total", this.reloads.sum(), "result", "success");
+        PrometheusText.sample(out, "authorize_rules_reloads_total", this.reloadFailures.sum(), "result", "failure");
+        PrometheusText.header(out, "authorize_bin_cache_requests_total", "counter", "BIN profile cache lookups.");
+        PrometheusText.sample(out, "authorize_bin_cache_requests_total", this.binCache.hits(), "result", "hit");
+        PrometheusText.sample(out, "authorize_bin_cache_requests_total", this.binCache.misses(), "result", "miss");
+        PrometheusText.header(out, "authorize_bin_cache_evictions_total", "counter", "BIN profile cache evictions.");
+        PrometheusText.sample(out, "authorize_bin_cache_evictions_total", this.binCache.evictions());
+    }
+
+    /**
+     * 一张卡的交易频率计数（固定窗口）
+     */
+    private static final class Velocity {
+
+        private long windowStart;
+
+        private int count;
+
+        private long amount;
+
+        private boolean started;
+
+        synchronized boolean tryAcquire(long now, long txnAmount, AuthorizationRules rules) {
+            if (!this.started || now - this.windowStart >= rules.velocityWindowNanos()) {
+                this.started = true;
+                this.windowStart = now;
+                this.count = 0;
+                this.amount = 0L;
+            }
+            if (rules.velocityMaxCount() > 0 && this.count + 1 > rules.velocityMaxCount()) {
+                return false;
+            }
+            if (rules.velocityMaxAmount() > 0L && this.amount + txnAmount > rules.velocityMaxAmount()) {
+                return false;
+            }
+            this.count++;
+            this.amount += txnAmount;
+            return true;
+        }
+    }
+
+}
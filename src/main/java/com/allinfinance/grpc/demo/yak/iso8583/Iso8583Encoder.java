@@ -0,0 +1,221 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.yak.iso8583;
+
+import java.nio.charset.StandardCharsets;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+/**
+ * ISO 8583 报文组装
+ *
+ * <p>域的值以 {@link ByteString} 保存，从请求复制的域（{@link #copy(Iso8583Fields, int...)}）只引用请求的切片；
+ * {@link #toByteString()} 先计算总长度，再一次性写入一个数组。位图按已设置的域自动生成。</p>
+ * <p>非线程安全。</p>
+ *
+ */
+public final class Iso8583Encoder {
+
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    private final Iso8583Spec spec;
+
+    private final ByteString[] values = new ByteString[Iso8583Spec.MAX_FIELD + 1];
+
+    private int mti;
+
+    /**
+     * 按 {@link Iso8583Spec#STANDARD} 组装
+     */
+    public Iso8583Encoder() {
+        this(Iso8583Spec.STANDARD);
+    }
+
+    /**
+     * @param spec 域定义
+     */
+    public Iso8583Encoder(Iso8583Spec spec) {
+        this.spec = spec;
+    }
+
+    /**
+     * @param mti 消息类型，如 0110 传 110
+     * @return this
+     */
+    public Iso8583Encoder mti(int mti) {
+        if (mti < 0 || mti > 9999) {
+            throw new IllegalArgumentException("Invalid MTI: " + mti);
+        }
+        this.mti = mti;
+        return this;
+    }
+
+    /**
+     * 设置域
+     *
+     * @param field 域号，2 ~ 128
+     * @param value 域数据；为 null 时移除该域
+     * @return this
+     */
+    public Iso8583Encoder set(int field, ByteString value) {
+        Iso8583Spec.checkField(field);
+        if (value != null) {
+            Iso8583Spec.Type type = this.spec.type(field);
+            if (type == null) {
+                throw new IllegalArgumentException("Undefined field: " + field);
+            }
+            int length = this.spec.length(field);
+            if (type == Iso8583Spec.Type.FIXED ? value.size() != length : value.size() > length) {
+                throw new IllegalArgumentException("Invalid length of field " + field + ": " + value.size());
+            }
+        }
+        this.values[field] = value;
+        return this;
+    }
+
+    /**
+     * @param field 域号
+     * @param value 域数据（ASCII）
+     * @return this
+     */
+    public Iso8583Encoder set(int field, String value) {
+        return this.set(field, ByteString.copyFrom(value, StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * 设置定长数字域，左补 0
+     *
+     * @param field 域号
+     * @param value 数值，不能为负
+     * @return this
+     */
+    public Iso8583Encoder setNumber(int field, long value) {
+        Iso8583Spec.checkField(field);
+        if (value < 0L || this.spec.type(field) != Iso8583Spec.Type.FIXED) {
+            throw new IllegalArgumentException("Invalid numeric field " + field + ": " + value);
+        }
+        byte[] digits = new byte[this.spec.length(field)];
+        long v = value;
+        for (int i = digits.length - 1; i >= 0; i--) {
+            digits[i] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+        if (v != 0L) {
+            throw new IllegalArgumentException("Value too long for field " + field + ": " + value);
+        }
+        return this.set(field, UnsafeByteOperations.unsafeWrap(digits));
+    }
+
+    /**
+     * 从报文复制域（只引用原报文的切片）；报文中没有的域跳过
+     *
+     * @param source 报文
+     * @param fields 域号
+     * @return this
+     */
+    public Iso8583Encoder copy(Iso8583Fields source, int... fields) {
+        for (int field : fields) {
+            ByteString value = source.bytes(field);
+            if (value != null) {
+                this.set(field, value);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * 组装报文
+     *
+     * @return 报文
+     */
+    public ByteString toByteString() {
+        return this.toByteString(null);
+    }
+
+    /**
+     * 组装报文，同时输出每个域的位置
+     *
+     * @param visitor 按域号顺序接收每个域的位置；为 null 时不输出
+     * @return 报文
+     */
+    public ByteString toByteString(Iso8583FieldVisitor visitor) {
+        long primary = 0L;
+        long secondary = 0L;
+        int size = 4 + 16;
+        for (int field = 2; field <= Iso8583Spec.MAX_FIELD; field++) {
+            ByteString value = this.values[field];
+            if (value == null) {
+                continue;
+            }
+            long bit = 1L << (63 - ((field - 1) & 63));
+            if (field <= 64) {
+                primary |= bit;
+            } else {
+                secondary |= bit;
+            }
+            size += value.size() + prefixLength(this.spec.type(field));
+        }
+        if (secondary != 0L) {
+            primary |= Long.MIN_VALUE;
+            size += 16;
+        }
+
+        byte[] out = new byte[size];
+        int position = writeDigits(out, 0, this.mti, 4);
+        position = writeHex(out, position, primary);
+        if (secondary != 0L) {
+            position = writeHex(out, position, secondary);
+        }
+        for (int field = 2; field <= Iso8583Spec.MAX_FIELD; field++) {
+            ByteString value = this.values[field];
+            if (value == null) {
+                continue;
+            }
+            int prefix = prefixLength(this.spec.type(field));
+            if (prefix > 0) {
+                position = writeDigits(out, position, value.size(), prefix);
+            }
+            value.copyTo(out, position);
+            if (visitor != null) {
+                visitor.visit(field, position, value.size());
+            }
+            position += value.size();
+        }
+        return UnsafeByteOperations.unsafeWrap(out);
+    }
+
+    private static int prefixLength(Iso8583Spec.Type type) {
+        switch (type) {
+            case LLVAR:
+                return 2;
+            case LLLVAR:
+                return 3;
+            case FIXED:
+            default:
+                return 0;
+        }
+    }
+
+    private static int writeDigits(byte[] out, int position, int value, int length) {
+        int v = value;
+        for (int i = position + length - 1; i >= position; i--) {
+            out[i] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+        return position + length;
+    }
+
+    private static int writeHex(byte[] out, int position, long bitmap) {
+        for (int i = 0; i < 16; i++) {
+            out[position + i] = HEX[(int) (bitmap >>> (60 - i * 4)) & 0xF];
+        }
+        return position + 16;
+    }
+
+}
@@ -0,0 +1,24 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.yak.iso8583;
+
+/**
+ * 按域号顺序接收每个域在报文中的位置
+ *
+ */
+@FunctionalInterface
+public interface Iso8583FieldVisitor {
+
+    /**
+     * @param field 域号
+     * @param offset 域数据（不含长度前缀）在报文中的偏移
+     * @param length 域数据的长度
+     */
+    void visit(int field, int offset, int length);
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.yak.iso8583;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * ISO 8583 报文的域（只读）
+ *
+ * <p>授权逻辑通过该接口读取域，不关心域是延迟解析（{@link Iso8583Message}）还是由客户端随报文带来的索引定位。</p>
+ *
+ */
+public interface Iso8583Fields {
+
+    /**
+     * @return 消息类型，如 0100 返回 100
+     */
+    int mti();
+
+    /**
+     * @param field 域号，2 ~ 128
+     * @return 是否有该域
+     */
+    boolean has(int field);
+
+    /**
+     * @param field 域号
+     * @return 域数据的长度；域不存在时返回 -1
+     */
+    int length(int field);
+
+    /**
+     * @param field 域号
+     * @return 域数据（与报文共享底层数组）；域不存在时返回 null
+     */
+    ByteString bytes(int field);
+
+    /**
+     * @param field 域号
+     * @return 域数据；域不存在时返回 null
+     */
+    String getString(int field);
+
+    /**
+     * 读取数字域，不创建中间对象
+     *
+     * @param field 域号
+     * @param defaultValue 域不存在时的返回值
+     * @return 数值
+     */
+    long getLong(int field, long defaultValue);
+
+    /**
+     * 域数据是否等于给定的 ASCII 字符串，不创建中间对象
+     *
+     * @param field 域号
+     * @param value 比较的值
+     * @return 域存在且相等时返回 true
+     */
+    boolean contentEquals(int field, CharSequence value);
+
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.yak.iso8583;
+
+import java.nio.charset.StandardCharsets;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * ISO 8583 报文（只读，延迟解析）
+ *
+ * <p>{@link #parse(ByteString)} 只解析 MTI 与位图；域在第一次读取时才定位：从上次定位到的域继续向后扫描，
+ * 记录每个域的偏移与长度，已定位的域不会重复扫描。域的值直接从原始字节读取，
+ * {@link #bytes(int)} 返回共享底层数组的切片，{@link #getLong(int)} 不创建 String。</p>
+ * <p>非线程安全。报文格式错误时抛出 {@link IllegalArgumentException}（可能在读取域时才发现）。</p>
+ *
+ */
+public final class Iso8583Message implements Iso8583Fields {
+
+    private static final int MTI_LENGTH = 4;
+
+    private static final int BITMAP_LENGTH = 16;
+
+    private final ByteString raw;
+
+    private final Iso8583Spec spec;
+
+    private final int mti;
+
+    private final long primaryBitmap;
+
+    private final long secondaryBitmap;
+
+    /**
+     * 域数据的偏移，下标为域号；只有不大于 {@link #scannedField} 的域有效
+     */
+    private final int[] offsets = new int[Iso8583Spec.MAX_FIELD + 1];
+
+    private final int[] lengths = new int[Iso8583Spec.MAX_FIELD + 1];
+
+    /**
+     * 已定位到的最大域号
+     */
+    private int scannedField = 1;
+
+    /**
+     * 下一个域的起始位置
+     */
+    private int scanPosition;
+
+    private Iso8583Message(ByteString raw, Iso8583Spec spec) {
+        this.raw = raw;
+        this.spec = spec;
+        if (raw.size() < MTI_LENGTH + BITMAP_LENGTH) {
+            throw new IllegalArgumentException("Message too short: " + raw.size());
+        }
+        this.mti = (int) this.parseDigits(0, MTI_LENGTH);
+        this.primaryBitmap = this.parseHex(MTI_LENGTH);
+        int position = MTI_LENGTH + BITMAP_LENGTH;
+        if (this.primaryBitmap < 0L) {
+            // 第 1 位：存在第二位图
+            if (raw.size() < position + BITMAP_LENGTH) {
+                throw new IllegalArgumentException("Missing secondary bitmap");
+            }
+            this.secondaryBitmap = this.parseHex(position);
+            position += BITMAP_LENGTH;
+        } else {
+            this.secondaryBitmap = 0L;
+        }
+        this.scanPosition = position;
+    }
+
+    /**
+     * 按 {@link Iso8583Spec#STANDARD} 解析
+     *
+     * @param raw 报文
+     * @return 报文
+     */
+    public static Iso8583Message parse(ByteString raw) {
+        return new Iso8583Message(raw, Iso8583Spec.STANDARD);
+    }
+
+    /**
+     * @param raw 报文
+     * @param spec 域定义
+     * @return 报文
+     */
+    public static Iso8583Message parse(ByteString raw, Iso8583Spec spec) {
+        return new Iso8583Message(raw, spec);
+    }
+
+    @Override
+    public int mti() {
+        return this.mti;
+    }
+
+    @Override
+    public boolean has(int field) {
+        Iso8583Spec.checkField(field);
+        return isSet(field <= 64 ? this.primaryBitmap : this.secondaryBitmap, field);
+    }
+
+    @Override
+    public int length(int field) {
+        return this.locate(field) < 0 ? -1 : this.lengths[field];
+    }
+
+    @Override
+    public ByteString bytes(int field) {
+        int offset = this.locate(field);
+        return offset < 0 ? null : this.raw.substring(offset, offset + this.lengths[field]);
+    }
+
+    @Override
+    public String getString(int field) {
+        int offset = this.locate(field);
+        return offset < 0 ? null : this.raw.substring(offset, offset + this.lengths[field])
+                .toString(StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public long getLong(int field, long defaultValue) {
+        int offset = this.locate(field);
+        return offset < 0 ? defaultValue : this.parseDigits(offset, this.lengths[field]);
+    }
+
+    @Override
+    public boolean contentEquals(int field, CharSequence value) {
+        int offset = this.locate(field);
+        if (offset < 0 || this.lengths[field] != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (this.raw.byteAt(offset + i) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 按域号顺序访问全部域（会定位所有域）
+     *
+     * @param visitor 访问者
+     */
+    public void forEachField(Iso8583FieldVisitor visitor) {
+        for (int field = 2; field <= Iso8583Spec.MAX_FIELD; field++) {
+            int offset = this.locate(field);
+            if (offset >= 0) {
+                visitor.visit(field, offset, this.lengths[field]);
+            }
+        }
+    }
+
+    /**
+     * @return 原始报文
+     */
+    public ByteString raw() {
+        return this.raw;
+    }
+
+    /**
+     * 定位域数据
+     *
+     * @return 偏移；域不存在时返回 -1
+     */
+    private int locate(int field) {
+        if (!this.has(field)) {
+            return -1;
+        }
+        while (this.scannedField < field) {
+            int next = ++this.scannedField;
+            if (!this.has(next)) {
+                continue;
+            }
+            Iso8583Spec.Type type = this.spec.type(next);
+            if (type == null) {
+                throw new IllegalArgumentException("Undefined field: " + next);
+            }
+            int position = this.scanPosition;
+            int length;
+            switch (type) {
+                case LLVAR:
+                    length = (int) this.parseDigits(position, 2);
+                    position += 2;
+                    break;
+                case LLLVAR:
+                    length = (int) this.parseDigits(position, 3);
+                    position += 3;
+                    break;
+                case FIXED:
+                default:
+                    length = this.spec.length(next);
+                    break;
+            }
+            if (length > this.spec.length(next) || position + length > this.raw.size()) {
+                throw new IllegalArgumentException("Invalid length of field " + next + ": " + length);
+            }
+            this.offsets[next] = position;
+            this.lengths[next] = length;
+            this.scanPosition = position + length;
+        }
+        return this.offsets[field];
+    }
+
+    private long parseDigits(int offset, int length) {
+        if (offset + length > this.raw.size() || length > 18) {
+            throw new IllegalArgumentException("Invalid numeric at " + offset + ", length " + length);
+        }
+        long value = 0L;
+        for (int i = offset; i < offset + length; i++) {
+            int digit = this.raw.byteAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IllegalArgumentException("Invalid digit at " + i);
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private long parseHex(int offset) {
+        long value = 0L;
+        for (int i = offset; i < offset + BITMAP_LENGTH; i++) {
+            int c = this.raw.byteAt(i);
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException("Invalid bitmap at " + i);
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    /**
+     * @param bitmap 位图，最高位为第 1 位（第二位图中为第 65 位）
+     */
+    static boolean isSet(long bitmap, int field) {
+        return ((bitmap >>> (63 - ((field - 1) & 63))) & 1L) != 0L;
+    }
+
+}
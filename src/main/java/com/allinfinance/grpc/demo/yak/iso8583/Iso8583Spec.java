@@ -0,0 +1,143 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.yak.iso8583;
+
+import java.util.Arrays;
+
+/**
+ * ISO 8583 域定义（不可变）
+ *
+ * <p>{@link #STANDARD} 按 ISO 8583:1987 定义 2 ~ 128 域；二进制域（如 52、64、128）在 ASCII 报文中
+ * 以十六进制表示，长度按字符数计。渠道有差异时用 {@link #with(int, Type, int)} 派生新的定义。</p>
+ *
+ */
+public final class Iso8583Spec {
+
+    /**
+     * 域的长度类型
+     */
+    public enum Type {
+        /**
+         * 定长
+         */
+        FIXED,
+        /**
+         * 2 位长度前缀的变长
+         */
+        LLVAR,
+        /**
+         * 3 位长度前缀的变长
+         */
+        LLLVAR
+    }
+
+    /**
+     * 最大域号
+     */
+    public static final int MAX_FIELD = 128;
+
+    /**
+     * ISO 8583:1987 标准定义
+     */
+    public static final Iso8583Spec STANDARD = standard();
+
+    private final Type[] types;
+
+    /**
+     * 定长域为长度，变长域为最大长度
+     */
+    private final int[] lengths;
+
+    private Iso8583Spec(Type[] types, int[] lengths) {
+        this.types = types;
+        this.lengths = lengths;
+    }
+
+    /**
+     * 派生新的定义，修改一个域
+     *
+     * @param field 域号，2 ~ 128
+     * @param type 长度类型
+     * @param length 定长域为长度，变长域为最大长度
+     * @return 新的定义
+     */
+    public Iso8583Spec with(int field, Type type, int length) {
+        checkField(field);
+        int max = type == Type.LLVAR ? 99 : 999;
+        if (length <= 0 || length > max) {
+            throw new IllegalArgumentException("Invalid length of field " + field + ": " + length);
+        }
+        Type[] newTypes = Arrays.copyOf(this.types, this.types.length);
+        int[] newLengths = Arrays.copyOf(this.lengths, this.lengths.length);
+        newTypes[field] = type;
+        newLengths[field] = length;
+        return new Iso8583Spec(newTypes, newLengths);
+    }
+
+    /**
+     * @param field 域号
+     * @return 长度类型；未定义时返回 null
+     */
+    public Type type(int field) {
+        return this.types[field];
+    }
+
+    /**
+     * @param field 域号
+     * @return 定长域为长度，变长域为最大长度
+     */
+    public int length(int field) {
+        return this.lengths[field];
+    }
+
+    static void checkField(int field) {
+        if (field < 2 || field > MAX_FIELD) {
+            throw new IllegalArgumentException("Invalid field: " + field);
+        }
+    }
+
+    private static Iso8583Spec standard() {
+        Type[] types = new Type[MAX_FIELD + 1];
+        int[] lengths = new int[MAX_FIELD + 1];
+        // 域号, 长度（负数表示 LLVAR 最大长度，大于 1000 表示 LLLVAR 最大长度 + 1000）
+        int[] definitions = {
+            2, -19, 3, 6, 4, 12, 5, 12, 6, 12, 7, 10, 8, 8, 9, 8, 10, 8,
+            11, 6, 12, 6, 13, 4, 14, 4, 15, 4, 16, 4, 17, 4, 18, 4, 19, 3, 20, 3,
+            21, 3, 22, 3, 23, 3, 24, 3, 25, 2, 26, 2, 27, 1, 28, 9, 29, 9, 30, 9,
+            31, 9, 32, -11, 33, -11, 34, -28, 35, -37, 36, 1104, 37, 12, 38, 6, 39, 2, 40, 3,
+            41, 8, 42, 15, 43, 40, 44, -25, 45, -76, 46, 1999, 47, 1999, 48, 1999, 49, 3, 50, 3,
+            51, 3, 52, 16, 53, 16, 54, 1120, 55, 1999, 56, 1999, 57, 1999, 58, 1999, 59, 1999, 60, 1999,
+            61, 1999, 62, 1999, 63, 1999, 64, 16, 65, 16, 66, 1, 67, 2, 68, 3, 69, 3, 70, 3,
+            71, 4, 72, 4, 73, 6, 74, 10, 75, 10, 76, 10, 77, 10, 78, 10, 79, 10, 80, 10,
+            81, 10, 82, 12, 83, 12, 84, 12, 85, 12, 86, 16, 87, 16, 88, 16, 89, 16, 90, 42,
+            91, 1, 92, 2, 93, 5, 94, 7, 95, 42, 96, 16, 97, 17, 98, 25, 99, -11, 100, -11,
+            101, -17, 102, -28, 103, -28, 128, 16
+        };
+        for (int i = 0; i < definitions.length; i += 2) {
+            int field = definitions[i];
+            int length = definitions[i + 1];
+            if (length < 0) {
+                types[field] = Type.LLVAR;
+                lengths[field] = -length;
+            } else if (length > 1000) {
+                types[field] = Type.LLLVAR;
+                lengths[field] = length - 1000;
+            } else {
+                types[field] = Type.FIXED;
+                lengths[field] = length;
+            }
+        }
+        // 104 ~ 127：保留域，LLLVAR
+        for (int field = 104; field < MAX_FIELD; field++) {
+            types[field] = Type.LLLVAR;
+            lengths[field] = 999;
+        }
+        return new Iso8583Spec(types, lengths);
+    }
+
+}
@@ -0,0 +1,12 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+/**
+ * ISO 8583 报文解析与组装（ASCII 编码：MTI、十六进制位图、定长/LLVAR/LLLVAR 域）
+ *
+ */
+package com.allinfinance.grpc.demo.yak.iso8583;
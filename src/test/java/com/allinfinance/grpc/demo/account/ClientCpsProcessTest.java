@@ -8,12 +8,19 @@
 package com.allinfinance.grpc.demo.account;
 
 import com.allinfinance.grpc.demo.*;
+import com.allinfinance.grpc.demo.yak.YakFields;
+import com.allinfinance.grpc.demo.yak.iso8583.Iso8583Encoder;
+import com.google.protobuf.ByteString;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.stub.StreamObserver;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 /**
  * 客户端测试
  *
@@ -36,8 +43,19 @@ public class ClientCpsProcessTest {
         CpsProcessServiceGrpc.CpsProcessServiceBlockingStub stub =
                 CpsProcessServiceGrpc.newBlockingStub(channel);
 
+        // 0100 授权请求：主账号、处理码、金额、系统跟踪号、终端号
+        ByteString rawMessage = new Iso8583Encoder()
+                .mti(100)
+                .set(2, "4111111111111111")
+                .setNumber(3, 0)
+                .setNumber(4, 12345)
+                .setNumber(11, 1)
+                .set(41, "TERM0001")
+                .toByteString();
         YakMessageProto.YakMessage yakMessage = CpsProcessProto.YakMessageRequest.newBuilder()
-                .getYakMessageBuilder().putBodyAttributes(1,"hello")
+                .getYakMessageBuilder()
+                .setRawMessageBytes(rawMessage)
+                .setIsRequest(true)
                 .build();
 
         CpsProcessProto.YakMessageRequest request = CpsProcessProto.YakMessageRequest.newBuilder()
@@ -48,4 +66,93 @@ public class ClientCpsProcessTest {
         channel.shutdown();
     }
 
+    /**
+     * 紧凑格式：请求只带 raw，应答带域索引
+     *
+     * @since
+     */
+    @Test
+    public void testCompact02() {
+        ManagedChannel channel = ManagedChannelBuilder.forAddress("localhost", 8883)
+                .usePlaintext()
+                .build();
+        CpsProcessServiceGrpc.CpsProcessServiceBlockingStub stub =
+                CpsProcessServiceGrpc.newBlockingStub(channel);
+
+        ByteString raw = new Iso8583Encoder()
+                .mti(100)
+                .set(2, "4111111111111111")
+                .setNumber(3, 0)
+                .setNumber(4, 12345)
+                .setNumber(11, 2)
+                .set(41, "TERM0001")
+                .toByteString();
+        CpsProcessProto.YakMessageRequest request = CpsProcessProto.YakMessageRequest.newBuilder()
+                .setCompactMessage(YakMessageProto.CompactYakMessage.newBuilder()
+                        .setRaw(raw)
+                        .setIsRequest(true))
+                .build();
+        CpsProcessProto.YakMessageResponse rsp = stub.authorize(request);
+        YakFields fields = YakFields.of(rsp.getCompactMessage());
+        logger.info("Response code: {}, amount: {}", fields.getString(39), fields.getLong(4, 0L));
+        channel.shutdown();
+    }
+
+    /**
+     * 双向流：一个流上发送多笔授权，应答乱序返回，以 requestId 对应
+     *
+     * @since
+     */
+    @Test
+    public void testAuthorizeStream03() throws InterruptedException {
+        ManagedChannel channel = ManagedChannelBuilder.forAddress("localhost", 8883)
+                .usePlaintext()
+                .build();
+        // 异步 stub
+        CpsProcessServiceGrpc.CpsProcessServiceStub asyncStub = CpsProcessServiceGrpc.newStub(channel);
+
+        CountDownLatch finished = new CountDownLatch(1);
+        StreamObserver<CpsProcessProto.YakMessageResponse> responseObserver =
+                new StreamObserver<CpsProcessProto.YakMessageResponse>() {
+
+            @Override
+            public void onNext(CpsProcessProto.YakMessageResponse rsp) {
+                logger.info("Response {}: {}", rsp.getRequestId(),
+                        rsp.getError().isEmpty() ? YakFields.of(rsp.getCompactMessage()).getString(39) : rsp.getError());
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                logger.error("Observe response error", t);
+                finished.countDown();
+            }
+
+            @Override
+            public void onCompleted() {
+                finished.countDown();
+            }
+        };
+
+        StreamObserver<CpsProcessProto.YakMessageRequest> requestObserver = asyncStub.authorizeStream(responseObserver);
+        for (int i = 1; i <= 10; i++) {
+            ByteString raw = new Iso8583Encoder()
+                    .mti(100)
+                    .set(2, "4111111111111111")
+                    .setNumber(3, 0)
+                    .setNumber(4, 100L * i)
+                    .setNumber(11, i)
+                    .set(41, "TERM0001")
+                    .toByteString();
+            requestObserver.onNext(CpsProcessProto.YakMessageRequest.newBuilder()
+                    .setRequestId("req#" + i)
+                    .setCompactMessage(YakMessageProto.CompactYakMessage.newBuilder()
+                            .setRaw(raw)
+                            .setIsRequest(true))
+                    .build());
+        }
+        requestObserver.onCompleted();
+        finished.await(5, TimeUnit.SECONDS);
+        channel.shutdown();
+    }
+
 }
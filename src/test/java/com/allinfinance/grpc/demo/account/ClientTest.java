@@ -7,12 +7,19 @@
 
 package com.allinfinance.grpc.demo.account;
 
-import java.math.BigDecimal;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
 
 import com.allinfinance.grpc.demo.AccountProto;
 import com.allinfinance.grpc.demo.AccountServiceGrpc;
+import com.allinfinance.grpc.demo.client.BatchingQueryClient;
+import com.allinfinance.grpc.demo.client.ChannelPool;
+import com.allinfinance.grpc.demo.client.LoadBalancePolicy;
+import com.allinfinance.grpc.demo.client.TargetSource;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -112,6 +119,7 @@ public class ClientTest {
      * @since
      * @since 修改为测试 {@link AccountService#addClientStreaming(io.grpc.stub.StreamObserver)}
      * @since 客户端的观察者使用 {@link ClientCallStreamObserver}
+     * @since 金额使用定点字段 amountMinor、amountScale
      */
     @Test
     public void testAddClientStreaming04() {
@@ -178,7 +186,8 @@ public class ClientTest {
             AccountProto.AddRequest request = builder.setSerialNo("Serial#" + i)
                     .setUserId("user#" + i)
                     .setUserName("User#" + i)
-                    .setAmount(this.calcAmount(666.6604D, i))
+                    .setAmountMinor(6666604L * i)
+                    .setAmountScale(4)
                     .build();
             requestObserver.onNext(request);
         }
@@ -191,18 +200,6 @@ public class ClientTest {
         }
     }
 
-    /**
-     * 计算金额
-     *
-     * @param amount 金额
-     * @param i 顺序
-     * @return 金额
-     */
-    private double calcAmount(double amount, int i) {
-        BigDecimal val = BigDecimal.valueOf(amount).multiply(BigDecimal.valueOf(i));
-        return val.doubleValue();
-    }
-
     /**
      * @since
      * @since 客户端的观察者使用 {@link ClientCallStreamObserver}
@@ -283,4 +280,83 @@ public class ClientTest {
         }
     }
 
+    /**
+     * 测试批量查询：一次请求查询 1024 个账户
+     */
+    @Test
+    public void testQueryBatch06() {
+        ManagedChannel channel = ManagedChannelBuilder.forAddress("localhost", 8883)
+                .usePlaintext()
+                .build();
+        // 同步阻塞 stub
+        AccountServiceGrpc.AccountServiceBlockingStub stub = AccountServiceGrpc.newBlockingStub(channel);
+
+        AccountProto.QueryBatchRequest.Builder builder = AccountProto.QueryBatchRequest.newBuilder()
+                .setSerialNo("serial#batch");
+        for (int i = 1; i <= 1024; i++) {
+            builder.addUserIds("user#" + i);
+        }
+        AccountProto.QueryBatchResponse rsp = stub.queryBatch(builder.build());
+        logger.info("QueryBatchResponse: {} results, first: {}", rsp.getResultsCount(), rsp.getResults(0));
+
+        // 分块返回
+        Iterator<AccountProto.QueryBatchResponse> chunks = stub.queryBatchStreaming(builder.build());
+        while (chunks.hasNext()) {
+            AccountProto.QueryBatchResponse chunk = chunks.next();
+            logger.info("QueryBatchResponse chunk: offset {}, {} results", chunk.getOffset(), chunk.getResultsCount());
+        }
+        channel.shutdown();
+    }
+
+    /**
+     * 测试连接池：多个服务端实例（此处为同一实例的两个地址）、每个实例 2 个连接，按未完成调用数负载均衡
+     */
+    @Test
+    public void testChannelPool07() throws IOException {
+        try (ChannelPool pool = new ChannelPool(TargetSource.of("localhost:8883", "127.0.0.1:8883"), 2,
+                LoadBalancePolicy.LEAST_OUTSTANDING)) {
+            AccountServiceGrpc.AccountServiceBlockingStub stub = AccountServiceGrpc.newBlockingStub(pool);
+            AccountProto.QueryRequest.Builder builder = AccountProto.QueryRequest.newBuilder();
+            for (int i = 1; i <= 1024; i++) {
+                AccountProto.QueryResponse rsp = stub.query(builder.setSerialNo("serial#" + i)
+                        .setUserId("user#" + i)
+                        .build());
+                logger.debug("QueryResponse: {}", rsp);
+            }
+            logger.info("Outstanding: {}", pool.outstanding());
+        }
+    }
+
+    /**
+     * 测试合并查询：8 个线程的并发查询合并到 2 个双向流上
+     */
+    @Test
+    public void testBatchingQuery08() throws InterruptedException {
+        ManagedChannel channel = ManagedChannelBuilder.forAddress("localhost", 8883)
+                .usePlaintext()
+                .build();
+        try (BatchingQueryClient client = new BatchingQueryClient(channel, 2, 64, 200, TimeUnit.MICROSECONDS)) {
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 1; t <= 8; t++) {
+                int thread = t;
+                threads.add(new Thread(() -> {
+                    AccountProto.QueryRequest.Builder builder = AccountProto.QueryRequest.newBuilder();
+                    for (int j = 1; j <= 1024; j++) {
+                        AccountProto.QueryResponse rsp = client.query(builder.setSerialNo("serial#" + thread + '#' + j)
+                                .setUserId("user#" + j)
+                                .build());
+                        logger.debug("QueryResponse: {}", rsp);
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        channel.shutdown();
+    }
+
 }
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.account.journal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 预写日志测试：写入、宕机截断与恢复
+ *
+ */
+public class AccountJournalTest {
+
+    /**
+     * 正常关闭后重新打开，回放全部记录，序号继续递增
+     */
+    @Test
+    public void testReopen01() throws Exception {
+        Path dir = Files.createTempDirectory("journal");
+        try {
+            try (AccountJournal journal = new AccountJournal(dir, AccountJournal.Durability.STREAM)) {
+                journal.append("user#0001", 100L);
+                journal.append("user#0002", -30L);
+                long seq = journal.append("用户#0003", 7L, "sn-0003");
+                journal.sync(seq).get(10, TimeUnit.SECONDS);
+                assertEquals(3L, journal.durableSeq());
+            }
+            try (AccountJournal journal = new AccountJournal(dir, AccountJournal.Durability.STREAM)) {
+                assertEquals(3L, journal.lastSeq());
+                assertEquals(3L, journal.durableSeq());
+                List<String> records = new ArrayList<>();
+                assertEquals(3L, journal.replay(0L, (seq, userId, amount, serialNo, timestamp) ->
+                        records.add(seq + ":" + userId + ":" + amount + ":" + serialNo)));
+                assertEquals("[1:user#0001:100:, 2:user#0002:-30:, 3:用户#0003:7:sn-0003]", records.toString());
+                assertEquals(4L, journal.append("user#0004", 1L));
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * 宕机时最后一条记录只写了一部分：恢复时截断，之后的写入接在最后一条完整记录后面
+     */
+    @Test
+    public void testRecoverTornTail02() throws Exception {
+        Path dir = Files.createTempDirectory("journal");
+        try {
+            try (AccountJournal journal = new AccountJournal(dir, AccountJournal.Durability.STREAM)) {
+                journal.append("user#0001", 100L);
+                journal.sync(journal.append("user#0002", 200L)).get(10, TimeUnit.SECONDS);
+            }
+            Path segment = lastSegment(dir);
+            long complete = Files.size(segment);
+            // 第三条记录只写入了长度与一半的 payload
+            try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                ByteBuffer torn = ByteBuffer.allocate(20);
+                torn.putInt(27).putInt(0).putLong(3L).putInt(0);
+                torn.flip();
+                ch.write(torn);
+            }
+
+            try (AccountJournal journal = new AccountJournal(dir, AccountJournal.Durability.STREAM)) {
+                assertEquals(2L, journal.lastSeq());
+                assertEquals(complete, Files.size(segment));
+                journal.sync(journal.append("user#0003", 300L)).get(10, TimeUnit.SECONDS);
+            }
+            try (AccountJournal journal = new AccountJournal(dir, AccountJournal.Durability.STREAM)) {
+                long[] sum = {0L};
+                assertEquals(3L, journal.replay(0L, (seq, userId, amount, serialNo, timestamp) -> sum[0] += amount));
+                assertEquals(600L, sum[0]);
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * 最后一条记录的内容损坏（校验和不符）：恢复时截断该记录
+     */
+    @Test
+    public void testRecoverCorruptedTail03() throws Exception {
+        Path dir = Files.createTempDirectory("journal");
+        try {
+            try (AccountJournal journal = new AccountJournal(dir, AccountJournal.Durability.STREAM)) {
+                journal.append("user#0001", 100L);
+                journal.sync(journal.append("user#0002", 200L)).get(10, TimeUnit.SECONDS);
+            }
+            Path segment = lastSegment(dir);
+            try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer b = ByteBuffer.allocate(1);
+                ch.read(b, ch.size() - 1);
+                b.put(0, (byte) (b.get(0) ^ 0xFF));
+                b.rewind();
+                ch.write(b, ch.size() - 1);
+            }
+
+            try (AccountJournal journal = new AccountJournal(dir, AccountJournal.Durability.STREAM)) {
+                assertEquals(1L, journal.lastSeq());
+                assertEquals(1L, journal.replay(0L, (seq, userId, amount, serialNo, timestamp) ->
+                        assertEquals("user#0001", userId)));
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * 只回放快照之后的记录；关闭后等待落盘以异常结束
+     */
+    @Test
+    public void testReplayAfterAndClose04() throws Exception {
+        Path dir = Files.createTempDirectory("journal");
+        try {
+            AccountJournal journal = new AccountJournal(dir, AccountJournal.Durability.BATCH);
+            for (int i = 1; i <= 10; i++) {
+                journal.append("user#" + i, i);
+            }
+            journal.close();
+            ExecutionException e = assertThrows(ExecutionException.class, () -> journal.sync(11L).get());
+            assertTrue(e.getCause() instanceof IllegalStateException);
+
+            try (AccountJournal reopened = new AccountJournal(dir, AccountJournal.Durability.BATCH)) {
+                long[] first = {0L};
+                assertEquals(3L, reopened.replay(7L, (seq, userId, amount, serialNo, timestamp) -> {
+                    if (first[0] == 0L) {
+                        first[0] = seq;
+                    }
+                }));
+                assertEquals(8L, first[0]);
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * 有 serialNo 的记录带写入时间；没有 serialNo 的记录与之前版本的格式相同，两种记录可以混在同一段中
+     */
+    @Test
+    public void testSerialNo05() throws Exception {
+        Path dir = Files.createTempDirectory("journal");
+        try {
+            long before = System.currentTimeMillis();
+            try (AccountJournal journal = new AccountJournal(dir, AccountJournal.Durability.STREAM)) {
+                journal.append("user#0001", 100L);
+                journal.sync(journal.append("user#0002", 200L, "sn-0002")).get(10, TimeUnit.SECONDS);
+            }
+            // 记录头 8 字节，固定 payload 18 字节；serialNo 另加写入时间 8 字节、长度 2 字节
+            assertEquals(8 + 18 + 9 + 8 + 18 + 9 + 8 + 2 + 7, Files.size(lastSegment(dir)));
+            long after = System.currentTimeMillis();
+
+            try (AccountJournal journal = new AccountJournal(dir, AccountJournal.Durability.STREAM)) {
+                List<String> serialNos = new ArrayList<>();
+                long[] timestamps = new long[2];
+                assertEquals(2L, journal.replay(0L, (seq, userId, amount, serialNo, timestamp) -> {
+                    serialNos.add(serialNo);
+                    timestamps[(int) seq - 1] = timestamp;
+                }));
+                assertEquals("[, sn-0002]", serialNos.toString());
+                assertEquals(0L, timestamps[0]);
+                assertTrue(timestamps[1] >= before && timestamps[1] <= after);
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static Path lastSegment(Path dir) throws IOException {
+        Path last = null;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "account-*.journal")) {
+            for (Path path : stream) {
+                if (last == null || path.compareTo(last) > 0) {
+                    last = path;
+                }
+            }
+        }
+        return last;
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                Files.delete(path);
+            }
+        }
+        Files.delete(dir);
+    }
+
+}
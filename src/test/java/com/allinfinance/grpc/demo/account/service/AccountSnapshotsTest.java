@@ -0,0 +1,157 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.account.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.allinfinance.grpc.demo.account.journal.AccountJournal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 快照测试：写入后加载与原存储一致，分段损坏时不加载
+ *
+ */
+public class AccountSnapshotsTest {
+
+    private static final int ACCOUNTS = 5000;
+
+    /**
+     * 快照之后还有日志：加载快照并回放其后的日志，与原存储一致
+     */
+    @Test
+    public void testWriteAndLoad01() throws Exception {
+        Path dir = Files.createTempDirectory("snapshots");
+        try {
+            Map<String, Long> expected = new HashMap<>();
+            try (AccountJournal journal = new AccountJournal(dir.resolve("journal"), AccountJournal.Durability.STREAM)) {
+                AccountStore store = AccountSnapshots.recover(dir.resolve("snapshot"), journal);
+                AccountSnapshots snapshots = new AccountSnapshots(dir.resolve("snapshot"), store, journal, 0L, 0L, 2);
+                addAll(journal, store, expected, 0);
+                Path file = snapshots.snapshot();
+                assertEquals(String.format("snapshot-%020d.snap", journal.lastSeq()), file.getFileName().toString());
+                addAll(journal, store, expected, 1);
+                journal.sync(journal.lastSeq()).join();
+            }
+
+            try (AccountJournal journal = new AccountJournal(dir.resolve("journal"), AccountJournal.Durability.STREAM)) {
+                assertEqualsStore(expected, AccountSnapshots.recover(dir.resolve("snapshot"), journal));
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * 最新快照的分段损坏（校验和不符）：跳过该快照，退回上一个快照并回放日志
+     */
+    @Test
+    public void testCorruptedSection02() throws Exception {
+        Path dir = Files.createTempDirectory("snapshots");
+        try {
+            Map<String, Long> expected = new HashMap<>();
+            Path latest;
+            try (AccountJournal journal = new AccountJournal(dir.resolve("journal"), AccountJournal.Durability.STREAM)) {
+                AccountStore store = AccountSnapshots.recover(dir.resolve("snapshot"), journal);
+                AccountSnapshots snapshots = new AccountSnapshots(dir.resolve("snapshot"), store, journal, 0L, 0L, 2);
+                addAll(journal, store, expected, 0);
+                snapshots.snapshot();
+                addAll(journal, store, expected, 1);
+                latest = snapshots.snapshot();
+            }
+            // 改写第一个分段中第一个账户的余额
+            try (FileChannel ch = FileChannel.open(latest, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(2);
+                ch.read(header, 40L);
+                int idLength = header.getShort(0);
+                ByteBuffer b = ByteBuffer.allocate(1);
+                long position = 40L + 2 + idLength + 7;
+                ch.read(b, position);
+                b.put(0, (byte) (b.get(0) + 1));
+                b.rewind();
+                ch.write(b, position);
+            }
+
+            try (AccountJournal journal = new AccountJournal(dir.resolve("journal"), AccountJournal.Durability.STREAM)) {
+                assertEqualsStore(expected, AccountSnapshots.recover(dir.resolve("snapshot"), journal));
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * 快照比日志新（日志丢失）时拒绝恢复
+     */
+    @Test
+    public void testJournalBehind03() throws Exception {
+        Path dir = Files.createTempDirectory("snapshots");
+        try {
+            try (AccountJournal journal = new AccountJournal(dir.resolve("journal"), AccountJournal.Durability.STREAM)) {
+                AccountStore store = AccountSnapshots.recover(dir.resolve("snapshot"), journal);
+                AccountSnapshots snapshots = new AccountSnapshots(dir.resolve("snapshot"), store, journal, 0L, 0L, 1);
+                addAll(journal, store, new HashMap<>(), 0);
+                snapshots.snapshot();
+            }
+            try (AccountJournal journal = new AccountJournal(dir.resolve("journal2"), AccountJournal.Durability.STREAM)) {
+                boolean rejected = false;
+                try {
+                    AccountSnapshots.recover(dir.resolve("snapshot"), journal);
+                } catch (IOException e) {
+                    rejected = true;
+                }
+                assertTrue(rejected);
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * 与 {@link AccountService} 入账相同：先写日志，再写存储
+     */
+    private static void addAll(AccountJournal journal, AccountStore store, Map<String, Long> expected, int round) {
+        for (int i = 0; i < ACCOUNTS; i++) {
+            String userId = (i % 7 == 0 ? "用户#" : "user#") + i;
+            long amount = (i * 31L + round * 17L) % 10007L - 5000L;
+            journal.append(userId, amount);
+            store.add(userId, amount);
+            expected.merge(userId, amount, Long::sum);
+        }
+    }
+
+    private static void assertEqualsStore(Map<String, Long> expected, AccountStore store) {
+        assertEquals((long) expected.size(), store.size());
+        for (Map.Entry<String, Long> entry : expected.entrySet()) {
+            assertEquals(entry.getValue().longValue(), store.get(entry.getKey()));
+        }
+    }
+
+    private static void delete(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                for (Path child : stream) {
+                    delete(child);
+                }
+            }
+        }
+        Files.delete(path);
+    }
+
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.account.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 账户存储测试：开放寻址与扩容、批量查询、游标、溢出、写时复制快照、并发读写
+ *
+ */
+public class AccountStoreTest {
+
+    /**
+     * 从最小容量开始插入，多次扩容后全部账户仍可查到
+     */
+    @Test
+    public void testAddAndResize01() {
+        for (int shards : new int[] {1, 2, 16}) {
+            AccountStore store = new AccountStore(shards, 0L);
+            for (int i = 0; i < 20000; i++) {
+                assertEquals((long) i, store.add("user#" + i, i));
+            }
+            assertEquals(20000L, store.size());
+            for (int i = 0; i < 20000; i++) {
+                assertEquals(2L * i - 1, store.add("user#" + i, i - 1L));
+                assertEquals(2L * i - 1, store.get("user#" + i));
+            }
+            assertEquals(20000L, store.size());
+            assertEquals(AccountStore.ABSENT, store.get("user#20000"));
+            assertFalse(store.contains("user#20000"));
+            assertTrue(store.contains("user#0"));
+        }
+    }
+
+    /**
+     * 批量查询按分片分组后，结果仍按请求的顺序写回；支持子区间、重复与不存在的账户
+     */
+    @Test
+    public void testGetAll02() {
+        for (int shards : new int[] {1, 8, 64}) {
+            AccountStore store = new AccountStore(shards, 1000L);
+            for (int i = 0; i < 1000; i++) {
+                store.add("user#" + i, i * 10L);
+            }
+            List<String> userIds = new ArrayList<>();
+            for (int i = 0; i < 500; i++) {
+                userIds.add("user#" + ThreadLocalRandom.current().nextInt(1200));
+            }
+            userIds.add("user#7");
+            userIds.add("user#7");
+
+            long[] balances = new long[userIds.size()];
+            Arrays.fill(balances, -1L);
+            store.getAll(userIds, 100, 300, balances);
+            for (int i = 0; i < balances.length; i++) {
+                assertEquals(i >= 100 && i < 300 ? store.get(userIds.get(i)) : -1L, balances[i]);
+            }
+            store.getAll(userIds, 0, userIds.size(), balances);
+            for (int i = 0; i < balances.length; i++) {
+                assertEquals(store.get(userIds.get(i)), balances[i]);
+            }
+            assertEquals(70L, balances[balances.length - 1]);
+        }
+    }
+
+    /**
+     * 游标按前缀遍历，每个账户恰好一次；槽位数超过单次扫描上限、前缀很稀疏时也能遍历完
+     */
+    @Test
+    public void testCursor03() {
+        for (int shards : new int[] {1, 16}) {
+            AccountStore store = new AccountStore(shards, 0L);
+            for (int i = 0; i < 50000; i++) {
+                store.add((i % 1000 == 0 ? "vip#" : "user#") + i, i);
+            }
+            assertEquals(50L, count(store, "vip#"));
+            assertEquals(49950L, count(store, "user#"));
+            assertEquals(50000L, count(store, ""));
+            assertEquals(0L, count(store, "none#"));
+
+            AccountStore.Cursor cursor = store.cursor("vip#");
+            while (cursor.next()) {
+                assertEquals(Long.parseLong(cursor.userId().substring(4)), cursor.balance());
+            }
+            assertNull(cursor.userId());
+            assertFalse(cursor.next());
+        }
+        assertFalse(new AccountStore().cursor(null).next());
+    }
+
+    /**
+     * 余额溢出时不入账，也不执行 beforeWrite；beforeWrite 失败时不入账
+     */
+    @Test
+    public void testOverflow04() {
+        AccountStore store = new AccountStore(4, 0L);
+        store.add("user#0001", Long.MAX_VALUE - 1);
+        AtomicBoolean ran = new AtomicBoolean();
+        assertThrows(ArithmeticException.class, () -> store.add("user#0001", 2L, () -> ran.set(true)));
+        assertFalse(ran.get());
+        assertEquals(Long.MAX_VALUE - 1, store.get("user#0001"));
+        assertEquals(Long.MAX_VALUE, store.add("user#0001", 1L, () -> ran.set(true)));
+        assertTrue(ran.get());
+
+        store.add("user#0002", Long.MIN_VALUE + 1);
+        assertThrows(ArithmeticException.class, () -> store.add("user#0002", -2L));
+        assertEquals(Long.MIN_VALUE + 1, store.get("user#0002"));
+
+        assertThrows(IllegalStateException.class, () -> store.add("user#0003", 5L, () -> {
+            throw new IllegalStateException("journal closed");
+        }));
+        assertFalse(store.contains("user#0003"));
+        assertEquals(2L, store.size());
+    }
+
+    /**
+     * 快照读取切点时的状态：切点之后的写入（包括新账户与扩容）不影响快照，写入也不被快照阻塞
+     */
+    @Test
+    public void testSnapshotCopyOnWrite05() {
+        AccountStore store = new AccountStore(4, 0L);
+        Map<String, Long> expected = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            store.add("user#" + i, i);
+            expected.put("user#" + i, (long) i);
+        }
+        try (AccountStore.Snapshot snapshot = store.snapshot(() -> 42L)) {
+            assertEquals(42L, snapshot.position());
+            // 先读一个分段，再写入：已读的分段已释放，未读的分段写入时复制
+            Map<String, Long> seen = new HashMap<>();
+            snapshot.forEach(0, seen::put);
+            for (int i = 0; i < 5000; i++) {
+                store.add("user#" + i, 1_000_000L);
+            }
+            for (int s = 1; s < snapshot.sections(); s++) {
+                snapshot.forEach(s, seen::put);
+            }
+            assertEquals(expected, seen);
+        }
+        assertEquals(5000L, store.size());
+        assertEquals(1_000_007L, store.get("user#7"));
+
+        // 下一个快照看到最新状态；没有被写入的分片不必复制
+        try (AccountStore.Snapshot snapshot = store.snapshot(() -> 43L)) {
+            long[] sum = {0L};
+            for (int s = 0; s < snapshot.sections(); s++) {
+                snapshot.forEach(s, (userId, balance) -> sum[0] += balance);
+            }
+            assertEquals(5000L * 1_000_000L + 999L * 1000L / 2, sum[0]);
+        }
+        // 放弃的快照（没有读取）关闭后写入照常
+        store.snapshot(() -> 44L).close();
+        store.add("user#0", 1L);
+        assertEquals(1_000_001L, store.get("user#0"));
+    }
+
+    /**
+     * 并发写入与快照：切点读取已完成的入账数，快照中的余额合计必须恰好等于它
+     */
+    @Test
+    public void testSnapshotCut06() throws Exception {
+        AccountStore store = new AccountStore(8, 0L);
+        AtomicLong applied = new AtomicLong();
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread writer = new Thread(() -> {
+                try {
+                    while (!stop.get()) {
+                        long stamp = store.beginUpdate();
+                        try {
+                            store.add("user#" + ThreadLocalRandom.current().nextInt(20000), 1L);
+                            applied.incrementAndGet();
+                        } finally {
+                            store.endUpdate(stamp);
+                        }
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        try {
+            for (int round = 0; round < 20; round++) {
+                Thread.sleep(5L);
+                try (AccountStore.Snapshot snapshot = store.snapshot(applied::get)) {
+                    long[] sum = {0L};
+                    for (int s = 0; s < snapshot.sections(); s++) {
+                        snapshot.forEach(s, (userId, balance) -> sum[0] += balance);
+                    }
+                    assertEquals(snapshot.position(), sum[0]);
+                }
+            }
+        } finally {
+            stop.set(true);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        }
+        assertNull(error.get());
+    }
+
+    /**
+     * 多线程并发入账与查询，与参照结果比较；扩容期间乐观读不会漏掉已写入的账户
+     */
+    @Test
+    public void testConcurrentAddAndGet07() throws Exception {
+        int threads = 4;
+        int perThread = 50000;
+        AccountStore store = new AccountStore(2, 0L);
+        Map<String, LongAdder> reference = new ConcurrentHashMap<>();
+        // 每个写线程已插入的账户数，读线程只查询已插入的账户
+        AtomicIntegerArray inserted = new AtomicIntegerArray(threads);
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> all = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            all.add(new Thread(() -> {
+                try {
+                    start.await();
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 0; i < perThread; i++) {
+                        String own = "w" + id + "#" + i;
+                        store.add(own, 1L);
+                        reference.computeIfAbsent(own, k -> new LongAdder()).increment();
+                        inserted.set(id, i + 1);
+                        // 共享账户：多个线程同时写同一个账户
+                        String shared = "shared#" + random.nextInt(100);
+                        long delta = random.nextInt(1000) - 500;
+                        store.add(shared, delta);
+                        reference.computeIfAbsent(shared, k -> new LongAdder()).add(delta);
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }));
+        }
+        for (int r = 0; r < 2; r++) {
+            all.add(new Thread(() -> {
+                try {
+                    start.await();
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    List<String> batch = new ArrayList<>();
+                    while (!done.get()) {
+                        int t = random.nextInt(threads);
+                        int n = inserted.get(t);
+                        if (n == 0) {
+                            continue;
+                        }
+                        String userId = "w" + t + "#" + random.nextInt(n);
+                        if (store.get(userId) != 1L) {
+                            throw new AssertionError("Lost " + userId + ": " + store.get(userId));
+                        }
+                        batch.add(userId);
+                        if (batch.size() == 64) {
+                            long[] balances = new long[batch.size()];
+                            store.getAll(batch, 0, batch.size(), balances);
+                            for (long balance : balances) {
+                                if (balance != 1L) {
+                                    throw new AssertionError("Lost in batch: " + balance);
+                                }
+                            }
+                            batch.clear();
+                        }
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }));
+        }
+        for (Thread thread : all) {
+            thread.start();
+        }
+        start.countDown();
+        for (int t = 0; t < threads; t++) {
+            all.get(t).join();
+        }
+        done.set(true);
+        for (Thread thread : all) {
+            thread.join();
+        }
+        assertNull(error.get());
+
+        assertEquals((long) reference.size(), store.size());
+        for (Map.Entry<String, LongAdder> entry : reference.entrySet()) {
+            assertEquals(entry.getValue().sum(), store.get(entry.getKey()));
+        }
+        Set<String> visited = new HashSet<>();
+        AccountStore.Cursor cursor = store.cursor("");
+        while (cursor.next()) {
+            assertTrue(visited.add(cursor.userId()));
+        }
+        assertEquals(reference.keySet(), visited);
+    }
+
+    /**
+     * 参数检查
+     */
+    @Test
+    public void testInvalidArguments08() {
+        assertThrows(IllegalArgumentException.class, () -> new AccountStore(0, 16L));
+        assertThrows(IllegalArgumentException.class, () -> new AccountStore((1 << 16) + 1, 16L));
+        assertThrows(IllegalArgumentException.class, () -> new AccountStore(4, -1L));
+    }
+
+    private static long count(AccountStore store, String prefix) {
+        Set<String> seen = new HashSet<>();
+        AccountStore.Cursor cursor = store.cursor(prefix);
+        while (cursor.next()) {
+            assertTrue(cursor.userId().startsWith(prefix));
+            assertTrue(seen.add(cursor.userId()));
+        }
+        return seen.size();
+    }
+
+}
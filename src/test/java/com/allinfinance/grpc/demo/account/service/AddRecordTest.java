@@ -0,0 +1,105 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.account.service;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.allinfinance.grpc.demo.account.journal.AccountJournal;
+import com.allinfinance.grpc.demo.support.IdempotencyCache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 入账记录测试：从预写日志恢复幂等缓存，重发请求的比对
+ *
+ */
+public class AddRecordTest {
+
+    /**
+     * 重启后恢复的 serialNo 不再执行，得到重启前的记录；没有 serialNo 的记录不恢复
+     */
+    @Test
+    public void testReload01() throws Exception {
+        Path dir = Files.createTempDirectory("journal");
+        try {
+            try (AccountJournal journal = new AccountJournal(dir, AccountJournal.Durability.STREAM)) {
+                journal.append("user#0001", 100L, "sn-0001");
+                journal.append("user#0002", 200L);
+                journal.sync(journal.append("user#0003", 300L, "sn-0003")).get(10, TimeUnit.SECONDS);
+            }
+            try (AccountJournal journal = new AccountJournal(dir, AccountJournal.Durability.STREAM)) {
+                IdempotencyCache<String, AddRecord> cache = new IdempotencyCache<>("add", 100, 60L, TimeUnit.SECONDS);
+                assertEquals(2L, AddRecord.reload(journal, cache, 100L, 60L, TimeUnit.SECONDS));
+
+                AddRecord record = cache.execute("sn-0003", () -> new AddRecord(-1L, "other", 0L));
+                assertEquals(3L, record.seq());
+                assertTrue(record.matches("user#0003", 300L));
+                assertEquals(-1L, cache.execute("sn-0002", () -> new AddRecord(-1L, "other", 0L)).seq());
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * 只回放最近 maxRecords 条记录；写入时间已超出时间窗口的不恢复
+     */
+    @Test
+    public void testReloadBounds02() throws Exception {
+        Path dir = Files.createTempDirectory("journal");
+        try {
+            try (AccountJournal journal = new AccountJournal(dir, AccountJournal.Durability.STREAM)) {
+                for (int i = 1; i <= 10; i++) {
+                    journal.append("user#" + i, i, "sn-" + i);
+                }
+                journal.sync(10L).get(10, TimeUnit.SECONDS);
+
+                IdempotencyCache<String, AddRecord> cache = new IdempotencyCache<>("add", 100, 60L, TimeUnit.SECONDS);
+                assertEquals(3L, AddRecord.reload(journal, cache, 3L, 60L, TimeUnit.SECONDS));
+                assertEquals(8L, cache.execute("sn-8", () -> new AddRecord(-1L, "other", 0L)).seq());
+                assertEquals(-1L, cache.execute("sn-7", () -> new AddRecord(-1L, "other", 0L)).seq());
+
+                Thread.sleep(20L);
+                IdempotencyCache<String, AddRecord> expired = new IdempotencyCache<>("add", 100, 10L,
+                        TimeUnit.MILLISECONDS);
+                assertEquals(0L, AddRecord.reload(journal, expired, 100L, 10L, TimeUnit.MILLISECONDS));
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * userId 与金额都相同才是同一笔入账
+     */
+    @Test
+    public void testMatches03() {
+        AddRecord record = new AddRecord(1L, "user#0001", 100L);
+        assertTrue(record.matches("user#0001", 100L));
+        assertFalse(record.matches("user#0001", 101L));
+        assertFalse(record.matches("user#0002", 100L));
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                Files.delete(path);
+            }
+        }
+        Files.delete(dir);
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.admission;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 梯度限制测试：样本的时间由测试给出，每 100ms 一个窗口
+ *
+ */
+public class GradientLimitTest {
+
+    private static final long WINDOW = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final long RTT = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * 延迟稳定且并发接近限制时，限制逐步增加，不超过上限
+     */
+    @Test
+    public void testGrowWhenStable01() {
+        GradientLimit limit = new GradientLimit(10, 1, 20);
+        Clock clock = new Clock();
+        for (int w = 0; w < 10; w++) {
+            window(limit, clock, RTT, limit.limit(), false);
+        }
+        assertTrue(limit.limit() > 10);
+        assertFalse(limit.congested());
+        for (int w = 0; w < 200; w++) {
+            window(limit, clock, RTT, limit.limit(), false);
+        }
+        assertEquals(20, limit.limit());
+    }
+
+    /**
+     * 实际并发远低于限制时不增加
+     */
+    @Test
+    public void testNoGrowthWhenIdle02() {
+        GradientLimit limit = new GradientLimit(10, 1, 100);
+        Clock clock = new Clock();
+        for (int w = 0; w < 20; w++) {
+            window(limit, clock, RTT, 2, false);
+        }
+        assertEquals(10, limit.limit());
+    }
+
+    /**
+     * 短期延迟明显高于长期延迟时收缩，并报告拥塞
+     */
+    @Test
+    public void testShrinkOnLatencyRise03() {
+        GradientLimit limit = new GradientLimit(50, 1, 100);
+        Clock clock = new Clock();
+        for (int w = 0; w < 5; w++) {
+            window(limit, clock, RTT, 50, false);
+        }
+        int before = limit.limit();
+        for (int w = 0; w < 5; w++) {
+            window(limit, clock, RTT * 10, 50, false);
+        }
+        assertTrue(limit.limit() < before);
+        assertTrue(limit.congested());
+    }
+
+    /**
+     * 窗口内有超时时直接乘以 0.9，不需要足够的样本；连续超时时不低于下限
+     */
+    @Test
+    public void testBackoffOnDrop04() {
+        GradientLimit limit = new GradientLimit(100, 5, 100);
+        Clock clock = new Clock();
+        limit.onSample(RTT, 100, true, clock.next());
+        limit.onSample(RTT, 100, false, clock.advance(WINDOW));
+        assertEquals(90, limit.limit());
+        assertTrue(limit.congested());
+        for (int w = 0; w < 100; w++) {
+            window(limit, clock, RTT, 100, true);
+        }
+        assertEquals(5, limit.limit());
+    }
+
+    /**
+     * 累计样本不足 10 个且没有超时时，窗口到期也不更新；样本保留到下一个窗口
+     */
+    @Test
+    public void testMinSamples05() {
+        GradientLimit limit = new GradientLimit(50, 1, 100);
+        Clock clock = new Clock();
+        for (int w = 0; w < 9; w++) {
+            limit.onSample(RTT, 50, false, clock.advance(WINDOW));
+        }
+        assertEquals(50, limit.limit());
+        limit.onSample(RTT, 50, false, clock.advance(WINDOW));
+        assertEquals(51, limit.limit());
+        assertFalse(limit.congested());
+    }
+
+    /**
+     * 一个窗口：12 个样本，之后时间推进到下一个窗口
+     */
+    private static void window(GradientLimit limit, Clock clock, long rtt, int inFlight, boolean drop) {
+        for (int i = 0; i < 12; i++) {
+            limit.onSample(rtt, inFlight, drop, clock.next());
+        }
+        clock.advance(WINDOW);
+    }
+
+    /**
+     * 从当前时间开始的测试时钟（与 GradientLimit 构造时读取的 System.nanoTime() 可比）
+     */
+    private static final class Clock {
+
+        private long now = System.nanoTime();
+
+        long next() {
+            return ++this.now;
+        }
+
+        long advance(long nanos) {
+            this.now += nanos;
+            return this.now;
+        }
+    }
+
+}
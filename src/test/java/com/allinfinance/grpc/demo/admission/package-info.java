@@ -0,0 +1,11 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+/**
+ * package-info
+ */
+package com.allinfinance.grpc.demo.admission;
@@ -0,0 +1,392 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.support;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Test;
+
+import io.grpc.CallOptions;
+import io.grpc.Context;
+import io.grpc.ManagedChannel;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientCalls;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.ServerCalls;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 流水线式双向流测试（进程内传输）：入站窗口、乱序应答、取消、线程池拒绝
+ *
+ */
+public class PipelinedStreamObserverTest {
+
+    private static final MethodDescriptor.Marshaller<String> STRING = new MethodDescriptor.Marshaller<String>() {
+
+        @Override
+        public InputStream stream(String value) {
+            return new ByteArrayInputStream(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public String parse(InputStream stream) {
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[256];
+                int n;
+                while ((n = stream.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+                return new String(out.toByteArray(), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    };
+
+    private static final MethodDescriptor<String, String> METHOD = MethodDescriptor.<String, String>newBuilder()
+            .setType(MethodDescriptor.MethodType.BIDI_STREAMING)
+            .setFullMethodName(MethodDescriptor.generateFullMethodName("test.Pipeline", "Run"))
+            .setRequestMarshaller(STRING)
+            .setResponseMarshaller(STRING)
+            .build();
+
+    /**
+     * 同时处理的请求数不超过 maxInFlight：处理阻塞时服务端只拉取一个窗口的请求
+     */
+    @Test
+    public void testInFlightBound01() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger started = new AtomicInteger();
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+        try (Harness harness = new Harness(request -> executor, 4, request -> {
+            started.incrementAndGet();
+            maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            await(release);
+            active.decrementAndGet();
+            return "ok:" + request;
+        }, null)) {
+            Recorder recorder = harness.call();
+            for (int i = 0; i < 20; i++) {
+                recorder.requests.onNext("r" + i);
+            }
+            recorder.requests.onCompleted();
+            waitUntil(() -> active.get() == 4);
+            Thread.sleep(100L);
+            assertEquals(4, started.get());
+
+            release.countDown();
+            Set<String> responses = new HashSet<>();
+            for (int i = 0; i < 20; i++) {
+                responses.add(recorder.take());
+            }
+            assertEquals(20, responses.size());
+            assertEquals(Status.Code.OK, recorder.status.get(10, TimeUnit.SECONDS).getCode());
+            assertEquals(4, maxActive.get());
+            assertEquals(20, started.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 应答按完成顺序返回：慢请求不阻塞后面的请求
+     */
+    @Test
+    public void testOutOfOrder02() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        CountDownLatch slow = new CountDownLatch(1);
+        try (Harness harness = new Harness(request -> executor, 8, request -> {
+            if (request.equals("slow")) {
+                await(slow);
+            }
+            return request;
+        }, null)) {
+            Recorder recorder = harness.call();
+            recorder.requests.onNext("slow");
+            recorder.requests.onNext("a");
+            recorder.requests.onNext("b");
+            recorder.requests.onNext("c");
+            recorder.requests.onCompleted();
+            Set<String> first = new HashSet<>();
+            for (int i = 0; i < 3; i++) {
+                first.add(recorder.take());
+            }
+            assertEquals(new HashSet<>(Arrays.asList("a", "b", "c")), first);
+            // 慢请求完成前流不结束
+            Thread.sleep(50L);
+            assertFalse(recorder.status.isDone());
+
+            slow.countDown();
+            assertEquals("slow", recorder.take());
+            assertEquals(Status.Code.OK, recorder.status.get(10, TimeUnit.SECONDS).getCode());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 流中途被取消：已在处理的请求处理完后不再应答，排队中的请求不再处理
+     */
+    @Test
+    public void testCancel03() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger handled = new AtomicInteger();
+        try (Harness harness = new Harness(request -> executor, 4, request -> {
+            handled.incrementAndGet();
+            await(release);
+            return request;
+        }, null)) {
+            Recorder recorder = harness.call();
+            for (int i = 0; i < 4; i++) {
+                recorder.requests.onNext("r" + i);
+            }
+            waitUntil(() -> handled.get() == 1);
+            // 其余 3 个请求已到达服务端、在单线程池中排队
+            waitUntil(() -> harness.received.get() == 4);
+
+            recorder.requests.cancel("client gave up", null);
+            assertEquals(Status.Code.CANCELLED, recorder.status.get(10, TimeUnit.SECONDS).getCode());
+            assertTrue(harness.cancelled.await(10, TimeUnit.SECONDS));
+            release.countDown();
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+            assertEquals(1, handled.get());
+            assertTrue(recorder.responses.isEmpty());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 超过截止时间：排队中的请求不再处理，客户端收到 DEADLINE_EXCEEDED
+     */
+    @Test
+    public void testDeadline04() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger handled = new AtomicInteger();
+        try (Harness harness = new Harness(request -> executor, 4, request -> {
+            handled.incrementAndGet();
+            await(release);
+            return request;
+        }, null)) {
+            Recorder recorder = harness.call(CallOptions.DEFAULT.withDeadlineAfter(200L, TimeUnit.MILLISECONDS));
+            for (int i = 0; i < 3; i++) {
+                recorder.requests.onNext("r" + i);
+            }
+            assertEquals(Status.Code.DEADLINE_EXCEEDED, recorder.status.get(10, TimeUnit.SECONDS).getCode());
+            release.countDown();
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+            assertEquals(1, handled.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 线程池拒绝：配置了 rejected 时只应答被拒绝的请求，流继续；否则以 RESOURCE_EXHAUSTED 结束整个流
+     */
+    @Test
+    public void testRejected05() throws Exception {
+        Executor full = command -> {
+            throw new RejectedExecutionException("full");
+        };
+        Executor direct = Runnable::run;
+        try (Harness harness = new Harness(request -> request.startsWith("x") ? full : direct, 2,
+                request -> "ok:" + request, (request, e) -> "rejected:" + request)) {
+            Recorder recorder = harness.call();
+            List<String> requests = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                String request = (i % 2 == 0 ? "x" : "y") + i;
+                requests.add(request);
+                recorder.requests.onNext(request);
+            }
+            recorder.requests.onCompleted();
+            Set<String> responses = new HashSet<>();
+            for (int i = 0; i < 10; i++) {
+                responses.add(recorder.take());
+            }
+            for (String request : requests) {
+                assertTrue(responses.contains((request.startsWith("x") ? "rejected:" : "ok:") + request));
+            }
+            assertEquals(Status.Code.OK, recorder.status.get(10, TimeUnit.SECONDS).getCode());
+        }
+
+        try (Harness harness = new Harness(request -> full, 2, request -> "ok:" + request, null)) {
+            Recorder recorder = harness.call();
+            recorder.requests.onNext("x0");
+            assertEquals(Status.Code.RESOURCE_EXHAUSTED, recorder.status.get(10, TimeUnit.SECONDS).getCode());
+        }
+    }
+
+    /**
+     * 处理抛出异常时以对应的状态结束流
+     */
+    @Test
+    public void testHandlerError06() throws Exception {
+        try (Harness harness = new Harness(request -> Runnable::run, 2, request -> {
+            throw Status.INVALID_ARGUMENT.withDescription("bad " + request).asRuntimeException();
+        }, null)) {
+            Recorder recorder = harness.call();
+            recorder.requests.onNext("r0");
+            Status status = recorder.status.get(10, TimeUnit.SECONDS);
+            assertEquals(Status.Code.INVALID_ARGUMENT, status.getCode());
+            assertEquals("bad r0", status.getDescription());
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("Condition not met in 10s");
+            }
+            Thread.sleep(5L);
+        }
+    }
+
+    /**
+     * 进程内服务端与通道
+     */
+    private static final class Harness implements AutoCloseable {
+
+        private final Server server;
+
+        private final ManagedChannel channel;
+
+        /**
+         * 服务端收到的请求数
+         */
+        private final AtomicInteger received = new AtomicInteger();
+
+        /**
+         * 服务端的调用上下文已取消
+         */
+        private final CountDownLatch cancelled = new CountDownLatch(1);
+
+        Harness(Function<String, Executor> executors, int maxInFlight, Function<String, String> handler,
+                BiFunction<String, RejectedExecutionException, String> rejected) throws IOException {
+            String name = InProcessServerBuilder.generateName();
+            ServerServiceDefinition service = ServerServiceDefinition.builder("test.Pipeline")
+                    .addMethod(METHOD, ServerCalls.asyncBidiStreamingCall(responseObserver -> {
+                        Context.current().addListener(context -> this.cancelled.countDown(), Runnable::run);
+                        return PipelinedStreamObserver.start(responseObserver, executors, maxInFlight,
+                                handler, request -> {
+                                    this.received.incrementAndGet();
+                                    return null;
+                                }, rejected, new CallDeadlines().tracker(METHOD));
+                    }))
+                    .build();
+            this.server = InProcessServerBuilder.forName(name).directExecutor().addService(service).build().start();
+            this.channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+        }
+
+        Recorder call() {
+            return this.call(CallOptions.DEFAULT);
+        }
+
+        Recorder call(CallOptions options) {
+            Recorder recorder = new Recorder();
+            ClientCalls.asyncBidiStreamingCall(this.channel.newCall(METHOD, options), recorder);
+            return recorder;
+        }
+
+        @Override
+        public void close() {
+            this.channel.shutdownNow();
+            this.server.shutdownNow();
+        }
+    }
+
+    /**
+     * 记录应答与结束状态
+     */
+    private static final class Recorder implements ClientResponseObserver<String, String> {
+
+        private final BlockingQueue<String> responses = new LinkedBlockingQueue<>();
+
+        private final CompletableFuture<Status> status = new CompletableFuture<>();
+
+        private volatile ClientCallStreamObserver<String> requests;
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<String> requestStream) {
+            this.requests = requestStream;
+        }
+
+        @Override
+        public void onNext(String value) {
+            this.responses.add(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            this.status.complete(Status.fromThrowable(t));
+        }
+
+        @Override
+        public void onCompleted() {
+            this.status.complete(Status.OK);
+        }
+
+        String take() throws InterruptedException {
+            String value = this.responses.poll(10, TimeUnit.SECONDS);
+            if (value == null) {
+                throw new AssertionError("No response in 10s");
+            }
+            return value;
+        }
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.support;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 串行执行器测试：顺序、互斥、底层线程池拒绝与任务异常
+ *
+ */
+public class SerializingExecutorTest {
+
+    /**
+     * 多个线程并发提交，任务在多线程的底层线程池中执行，但任意时刻最多一个在执行，同一线程提交的任务按提交顺序执行
+     */
+    @Test
+    public void testSerialOrder01() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        ExecutorService submitters = Executors.newFixedThreadPool(4);
+        try {
+            SerializingExecutor executor = new SerializingExecutor(pool);
+            int perSubmitter = 10_000;
+            AtomicInteger active = new AtomicInteger();
+            AtomicInteger overlaps = new AtomicInteger();
+            List<List<Integer>> executed = new ArrayList<>();
+            CountDownLatch done = new CountDownLatch(4 * perSubmitter);
+            for (int s = 0; s < 4; s++) {
+                List<Integer> order = new ArrayList<>();
+                executed.add(order);
+                submitters.execute(() -> {
+                    for (int i = 0; i < perSubmitter; i++) {
+                        int n = i;
+                        executor.execute(() -> {
+                            if (active.incrementAndGet() != 1) {
+                                overlaps.incrementAndGet();
+                            }
+                            // 串行执行：不加锁修改普通的 ArrayList
+                            order.add(n);
+                            active.decrementAndGet();
+                            done.countDown();
+                        });
+                    }
+                });
+            }
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            assertEquals(0, overlaps.get());
+            for (List<Integer> order : executed) {
+                assertEquals(perSubmitter, order.size());
+                for (int i = 0; i < perSubmitter; i++) {
+                    assertEquals(i, order.get(i).intValue());
+                }
+            }
+        } finally {
+            submitters.shutdown();
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * 底层线程池拒绝时在提交任务的线程上执行，不丢失任务
+     */
+    @Test
+    public void testRejected02() {
+        SerializingExecutor executor = new SerializingExecutor(command -> {
+            throw new RejectedExecutionException("shutdown");
+        });
+        Thread caller = Thread.currentThread();
+        List<Integer> executed = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            int n = i;
+            executor.execute(() -> {
+                assertEquals(caller, Thread.currentThread());
+                executed.add(n);
+            });
+        }
+        assertEquals("[0, 1, 2]", executed.toString());
+    }
+
+    /**
+     * 任务抛出异常时记录日志，继续执行之后的任务
+     */
+    @Test
+    public void testTaskError03() throws Exception {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            SerializingExecutor executor = new SerializingExecutor(pool);
+            CountDownLatch done = new CountDownLatch(1);
+            executor.execute(() -> {
+                throw new IllegalStateException("task error");
+            });
+            executor.execute(done::countDown);
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.yak;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 渠道舱壁测试：公平调度、并发配额、队列上限与 GCRA 限速
+ *
+ * <p>除并发配额外，工作线程池用手动执行的队列代替，调度顺序是确定的。</p>
+ *
+ */
+public class ChannelBulkheadsTest {
+
+    /**
+     * 一个渠道积压大量请求时，另一个渠道的请求与它轮流执行，不会排在积压的请求之后
+     */
+    @Test
+    public void testFairness01() {
+        Queue<Runnable> workers = new ArrayDeque<>();
+        ChannelBulkheads bulkheads = new ChannelBulkheads(workers::add, 100, 1, 0, 1, 10);
+        List<String> executed = new ArrayList<>();
+        Executor flooding = bulkheads.executor("A");
+        for (int i = 1; i <= 50; i++) {
+            String name = "A" + i;
+            flooding.execute(() -> executed.add(name));
+        }
+        Executor quiet = bulkheads.executor("B");
+        for (int i = 1; i <= 3; i++) {
+            String name = "B" + i;
+            quiet.execute(() -> executed.add(name));
+        }
+
+        runAll(workers);
+        assertEquals(53, executed.size());
+        assertEquals("[A1, B1, A2, B2, A3, B3, A4]", executed.subList(0, 7).toString());
+    }
+
+    /**
+     * 一个渠道的请求全部阻塞时最多占用 maxConcurrency 个工作线程，另一个渠道仍有线程可用
+     */
+    @Test
+    public void testConcurrencyCap02() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(20);
+        try {
+            ChannelBulkheads bulkheads = new ChannelBulkheads(pool, 100, 2, 0, 1, 10);
+            Executor flooding = bulkheads.executor("A");
+            CountDownLatch started = new CountDownLatch(2);
+            for (int i = 0; i < 20; i++) {
+                flooding.execute(() -> {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    finished.countDown();
+                });
+            }
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            CountDownLatch done = new CountDownLatch(1);
+            bulkheads.executor("B").execute(done::countDown);
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+
+            String metrics = metrics(bulkheads);
+            assertTrue(metrics.contains("cps_channel_running{channel=\"A\"} 2"), metrics);
+            assertTrue(metrics.contains("cps_channel_queued{channel=\"A\"} 18"), metrics);
+        } finally {
+            release.countDown();
+            // 积压的请求执行完再关闭线程池，否则调度时被拒绝
+            finished.await(10, TimeUnit.SECONDS);
+            pool.shutdown();
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 积压达到队列上限时拒绝，计入 reason="queue"；其它渠道不受影响
+     */
+    @Test
+    public void testQueueFull03() {
+        Queue<Runnable> workers = new ArrayDeque<>();
+        ChannelBulkheads bulkheads = new ChannelBulkheads(workers::add, 2, 1, 0, 1, 10);
+        Executor executor = bulkheads.executor("A");
+        executor.execute(() -> { });
+        executor.execute(() -> { });
+        assertThrows(RejectedExecutionException.class, () -> executor.execute(() -> { }));
+        bulkheads.executor("B").execute(() -> { });
+
+        String metrics = metrics(bulkheads);
+        assertTrue(metrics.contains("cps_channel_queued{channel=\"A\"} 2"), metrics);
+        assertTrue(metrics.contains("cps_channel_rejected_total{channel=\"A\",reason=\"queue\"} 1"), metrics);
+        assertTrue(metrics.contains("cps_channel_rejected_total{channel=\"B\",reason=\"queue\"} 0"), metrics);
+
+        runAll(workers);
+        executor.execute(() -> { });
+    }
+
+    /**
+     * GCRA：空闲的渠道最多连续接受 burst 个请求，之后超过速率的请求拒绝，计入 reason="rate"
+     */
+    @Test
+    public void testRateBurst04() {
+        Queue<Runnable> workers = new ArrayDeque<>();
+        ChannelBulkheads bulkheads = new ChannelBulkheads(workers::add, 100, 1, 1.0, 3, 10);
+        Executor executor = bulkheads.executor("A");
+        for (int i = 0; i < 3; i++) {
+            executor.execute(() -> { });
+        }
+        assertThrows(RejectedExecutionException.class, () -> executor.execute(() -> { }));
+        // 渠道之间不共享速率
+        bulkheads.executor("B").execute(() -> { });
+
+        String metrics = metrics(bulkheads);
+        assertTrue(metrics.contains("cps_channel_rejected_total{channel=\"A\",reason=\"rate\"} 1"), metrics);
+        assertTrue(metrics.contains("cps_channel_rejected_total{channel=\"B\",reason=\"rate\"} 0"), metrics);
+    }
+
+    /**
+     * 超过速率被拒绝后，经过一个请求的间隔又可以接受
+     */
+    @Test
+    public void testRateRefill05() throws Exception {
+        Queue<Runnable> workers = new ArrayDeque<>();
+        ChannelBulkheads bulkheads = new ChannelBulkheads(workers::add, 100, 1, 10.0, 1, 10);
+        Executor executor = bulkheads.executor("A");
+        executor.execute(() -> { });
+        assertThrows(RejectedExecutionException.class, () -> executor.execute(() -> { }));
+        Thread.sleep(150L);
+        executor.execute(() -> { });
+    }
+
+    /**
+     * 渠道数达到上限后，新的渠道共用一个舱壁
+     */
+    @Test
+    public void testOverflowChannel06() {
+        Queue<Runnable> workers = new ArrayDeque<>();
+        ChannelBulkheads bulkheads = new ChannelBulkheads(workers::add, 100, 1, 0, 1, 1);
+        bulkheads.executor("A").execute(() -> { });
+        bulkheads.executor("B").execute(() -> { });
+        bulkheads.executor("C").execute(() -> { });
+
+        String metrics = metrics(bulkheads);
+        assertTrue(metrics.contains("cps_channel_queued{channel=\"A\"} 1"), metrics);
+        assertTrue(metrics.contains("cps_channel_queued{channel=\"" + ChannelBulkheads.OVERFLOW_CHANNEL + "\"} 2"),
+                metrics);
+    }
+
+    private static void runAll(Queue<Runnable> workers) {
+        Runnable task;
+        while ((task = workers.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private static String metrics(ChannelBulkheads bulkheads) {
+        StringBuilder out = new StringBuilder();
+        bulkheads.writeTo(out);
+        return out.toString();
+    }
+
+}
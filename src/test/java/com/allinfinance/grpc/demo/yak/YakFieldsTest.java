@@ -0,0 +1,133 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.yak;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.allinfinance.grpc.demo.YakMessageProto;
+import com.allinfinance.grpc.demo.yak.iso8583.Iso8583Encoder;
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * 紧凑格式域索引测试：客户端带来的索引必须与 raw 的位图和域定义一致
+ *
+ */
+public class YakFieldsTest {
+
+    private static final ByteString RAW;
+
+    private static final List<Integer> INDEX = new ArrayList<>();
+
+    static {
+        RAW = new Iso8583Encoder()
+                .mti(100)
+                .set(2, "6222021234567890123")
+                .setNumber(4, 1250L)
+                .set(18, "5411")
+                .set(48, "additional data")
+                .set(128, "0123456789ABCDEF")
+                .toByteString((field, offset, length) -> {
+                    INDEX.add(field);
+                    INDEX.add(offset);
+                    INDEX.add(length);
+                });
+    }
+
+    /**
+     * 组装报文时生成的索引可以直接使用
+     */
+    @Test
+    public void testValidIndex01() {
+        YakFields fields = YakFields.of(message(index()));
+        assertEquals(100, fields.mti());
+        assertEquals("6222021234567890123", fields.getString(2));
+        assertEquals(1250L, fields.getLong(4, -1L));
+        assertEquals("5411", fields.getString(18));
+        assertEquals("additional data", fields.getString(48));
+        assertEquals("0123456789ABCDEF", fields.getString(128));
+        assertEquals(-1, fields.length(3));
+    }
+
+    /**
+     * 偏移、长度、域号与报文不符，缺少或多出域时拒绝
+     */
+    @Test
+    public void testMismatchedIndex02() {
+        // 金额指向卡号中的数字
+        assertRejected(replace(index(), 4, 1, -10));
+        // 变长域的偏移指向长度前缀
+        assertRejected(replace(index(), 2, 1, -2));
+        // 变长域长度与前缀不符
+        assertRejected(replace(index(), 48, 2, -1));
+        // 定长域长度与定义不符
+        assertRejected(replace(index(), 18, 2, -1));
+        // 缺少位图中的域
+        List<Integer> missing = index();
+        missing.subList(3, 6).clear();
+        assertRejected(missing);
+        // 多出位图之外的域
+        List<Integer> extra = index();
+        extra.add(3);
+        extra.add(0);
+        extra.add(6);
+        assertRejected(extra);
+        List<Integer> partial = index();
+        partial.remove(partial.size() - 1);
+        assertRejected(partial);
+    }
+
+    /**
+     * raw 本身格式错误时拒绝
+     */
+    @Test
+    public void testMalformedRaw03() {
+        assertThrows(IllegalArgumentException.class, () -> YakFields.of(YakMessageProto.CompactYakMessage.newBuilder()
+                .setRaw(ByteString.copyFrom("0100", StandardCharsets.US_ASCII))
+                .addFieldIndex(2).addFieldIndex(20).addFieldIndex(0)
+                .build()));
+        assertThrows(IllegalArgumentException.class, () -> YakFields.of(YakMessageProto.CompactYakMessage.newBuilder()
+                .setRaw(ByteString.copyFrom("0100" + "4000000000000000" + "9", StandardCharsets.US_ASCII))
+                .addFieldIndex(2).addFieldIndex(22).addFieldIndex(9)
+                .build()));
+    }
+
+    private static List<Integer> index() {
+        return new ArrayList<>(INDEX);
+    }
+
+    /**
+     * 修改 {@code field} 的第 {@code item} 项（0 域号，1 偏移，2 长度）
+     */
+    private static List<Integer> replace(List<Integer> index, int field, int item, int delta) {
+        for (int i = 0; i < index.size(); i += 3) {
+            if (index.get(i) == field) {
+                index.set(i + item, index.get(i + item) + delta);
+                return index;
+            }
+        }
+        throw new IllegalArgumentException("No field " + field);
+    }
+
+    private static YakMessageProto.CompactYakMessage message(List<Integer> index) {
+        return YakMessageProto.CompactYakMessage.newBuilder()
+                .setRaw(RAW)
+                .addAllFieldIndex(index)
+                .build();
+    }
+
+    private static void assertRejected(List<Integer> index) {
+        assertThrows(IllegalArgumentException.class, () -> YakFields.of(message(index)));
+    }
+
+}
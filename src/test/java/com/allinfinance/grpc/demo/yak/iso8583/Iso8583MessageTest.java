@@ -0,0 +1,156 @@
+/*
+ * Copyright 2011-2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0.
+ * See `LICENSE` in the project root for license information.
+ */
+
+package com.allinfinance.grpc.demo.yak.iso8583;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * ISO 8583 报文组装与解析测试
+ *
+ */
+public class Iso8583MessageTest {
+
+    /**
+     * 定长、LLVAR、LLLVAR 域组装后解析，域值与位置一致
+     */
+    @Test
+    public void testRoundTrip01() {
+        List<String> encoded = new ArrayList<>();
+        ByteString raw = new Iso8583Encoder()
+                .mti(200)
+                .set(2, "6222021234567890123")
+                .setNumber(4, 1250L)
+                .setNumber(11, 42L)
+                .set(41, "TERM0001")
+                .set(48, "additional data")
+                .toByteString((field, offset, length) -> encoded.add(field + "@" + offset + "+" + length));
+        assertEquals("0200" + "5020000000810000" + "196222021234567890123" + "000000001250" + "000042"
+                + "TERM0001" + "015additional data", ascii(raw));
+
+        Iso8583Message message = Iso8583Message.parse(raw);
+        assertEquals(200, message.mti());
+        assertEquals("6222021234567890123", message.getString(2));
+        assertEquals(1250L, message.getLong(4, -1L));
+        assertEquals(42L, message.getLong(11, -1L));
+        assertTrue(message.contentEquals(41, "TERM0001"));
+        assertEquals("additional data", message.getString(48));
+        assertFalse(message.has(3));
+        assertNull(message.getString(3));
+        assertEquals(-1, message.length(3));
+
+        List<String> parsed = new ArrayList<>();
+        message.forEachField((field, offset, length) -> parsed.add(field + "@" + offset + "+" + length));
+        assertEquals(encoded, parsed);
+    }
+
+    /**
+     * 有 64 以上的域时生成第二位图，并置主位图第 1 位
+     */
+    @Test
+    public void testSecondaryBitmap02() {
+        ByteString raw = new Iso8583Encoder()
+                .mti(210)
+                .set(39, "00")
+                .set(102, "6222020000000001")
+                .set(128, "0123456789ABCDEF")
+                .toByteString();
+        assertEquals("0210" + "8000000002000000" + "0000000004000001", ascii(raw.substring(0, 36)));
+
+        Iso8583Message message = Iso8583Message.parse(raw);
+        assertTrue(message.has(39));
+        assertTrue(message.has(102));
+        assertEquals("6222020000000001", message.getString(102));
+        assertEquals("0123456789ABCDEF", message.getString(128));
+        // 没有第二位图中的域时不生成第二位图
+        ByteString primaryOnly = new Iso8583Encoder().mti(210).set(39, "00").toByteString();
+        assertEquals(4 + 16 + 2, primaryOnly.size());
+        assertFalse(Iso8583Message.parse(primaryOnly).has(102));
+    }
+
+    /**
+     * 复制请求的域后组装应答
+     */
+    @Test
+    public void testCopy03() {
+        Iso8583Message request = Iso8583Message.parse(new Iso8583Encoder()
+                .mti(200)
+                .set(2, "6222021234567890123")
+                .setNumber(11, 7L)
+                .set(41, "TERM0001")
+                .toByteString());
+        Iso8583Message response = Iso8583Message.parse(new Iso8583Encoder()
+                .mti(210)
+                .copy(request, 2, 3, 11, 41)
+                .set(39, "00")
+                .toByteString());
+        assertEquals("6222021234567890123", response.getString(2));
+        assertFalse(response.has(3));
+        assertEquals(7L, response.getLong(11, -1L));
+        assertEquals("00", response.getString(39));
+    }
+
+    /**
+     * 组装时拒绝超长、定长不符、未定义的域
+     */
+    @Test
+    public void testEncodeInvalid04() {
+        Iso8583Encoder encoder = new Iso8583Encoder();
+        assertThrows(IllegalArgumentException.class, () -> encoder.set(2, "62220212345678901234"));
+        assertThrows(IllegalArgumentException.class, () -> encoder.set(41, "TERM01"));
+        assertThrows(IllegalArgumentException.class, () -> encoder.setNumber(11, 1234567L));
+        assertThrows(IllegalArgumentException.class, () -> encoder.set(1, "x"));
+        assertThrows(IllegalArgumentException.class, () -> encoder.mti(10000));
+    }
+
+    /**
+     * 解析时拒绝长度前缀超过最大长度、超出报文、不是数字的域，以及缺少第二位图的报文
+     */
+    @Test
+    public void testParseMalformed05() {
+        // 第 2 域 LLVAR 最大 19，前缀为 20
+        assertThrows(IllegalArgumentException.class,
+                () -> parse("0200" + "4000000000000000" + "2062220212345678901234").getString(2));
+        // 前缀 05，只有 3 个字节
+        assertThrows(IllegalArgumentException.class,
+                () -> parse("0200" + "4000000000000000" + "05622").getString(2));
+        // 第 48 域 LLLVAR 前缀不是数字
+        assertThrows(IllegalArgumentException.class,
+                () -> parse("0200" + "0000000000010000" + "0x5abcde").getString(48));
+        // 定长域数据不足
+        assertThrows(IllegalArgumentException.class,
+                () -> parse("0200" + "0000000000800000" + "TERM").getString(41));
+        assertThrows(IllegalArgumentException.class,
+                () -> parse("0200" + "8000000000000000" + "00000000"));
+        assertThrows(IllegalArgumentException.class, () -> parse("0200" + "Z000000000000000"));
+        assertThrows(IllegalArgumentException.class, () -> parse("0200"));
+        // 之前的域完整时，只在定位到损坏的域时报错
+        Iso8583Message message = parse("0200" + "4000000000800000" + "051234500x");
+        assertEquals("12345", message.getString(2));
+        assertThrows(IllegalArgumentException.class, () -> message.getString(41));
+    }
+
+    private static Iso8583Message parse(String raw) {
+        return Iso8583Message.parse(ByteString.copyFrom(raw, StandardCharsets.US_ASCII));
+    }
+
+    private static String ascii(ByteString raw) {
+        return raw.toString(StandardCharsets.US_ASCII);
+    }
+
+}